@@ -0,0 +1,76 @@
+package pkj;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of the steps of coding a block alone: counting the bytes of a corpus (from a direct buffer,
+ * as the compressor reads it), building the code lengths from the counts and assigning the canonical codes.
+ * Each benchmark returns what it computed so JMH consumes it and the work can't be eliminated
+ *
+ * Usage: mvn -Pbench verify -Djmh.args="CodingStepsBenchmark"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodingStepsBenchmark
+{
+    @Param({"text", "log", "skewed", "uniform", "tiny"})
+    public String corpus;
+
+    // the corpus in a direct buffer
+    private ByteBuffer direct;
+    private final ByteHistogram histogram = new ByteHistogram();
+    private final int[] counts = new int[Compressor.ALPHABET_SIZE];
+    // byte frequencies of the corpus, and the code lengths and codes built from them
+    private final long[] freq = new long[Compressor.ALPHABET_SIZE];
+    private final int[] lengths = new int[Compressor.ALPHABET_SIZE];
+    private final int[] codes = new int[Compressor.ALPHABET_SIZE];
+    private final int[] nextCode = new int[CanonicalCode.MAX_LENGTH + 2];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        byte[] data = Corpora.get(corpus);
+        direct = ByteBuffer.allocateDirect(data.length).put(data).flip();
+        for(byte b : data)
+            ++freq[b & 0xFF];
+        Compressor.generateCodeLengths(freq, lengths);
+    }
+
+    @Benchmark
+    public int[] count()
+    {
+        histogram.count(direct, counts);
+        return counts;
+    }
+
+    @Benchmark
+    public int[] treeBuild()
+    {
+        Compressor.generateCodeLengths(freq, lengths);
+        return lengths;
+    }
+
+    @Benchmark
+    public int codeGen()
+    {
+        return CanonicalCode.assignCodes(lengths, codes, nextCode);
+    }
+}
@@ -0,0 +1,124 @@
+package pkj;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of file compression and decompression over the {@link Corpora}, in each coding mode:
+ * the default static tables, levels FAST and BEST, interleaved sub-streams, order-1 context tables,
+ * the LZ77 pre-transform and adaptive (one pass) coding.
+ * Compressor and Decompressor run with a parallelism of 1 so all the work and allocation happens
+ * on the benchmark thread, where the GC profiler measures it (gc.alloc.rate.norm is bytes per operation,
+ * divide by the corpus size for bytes per input byte). The compression ratio of each corpus and mode
+ * is printed once per trial.
+ *
+ * Usage: mvn -Pbench verify -Djmh.args="CompressionBenchmark -p corpus=text"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark
+{
+    @Param({"text", "log", "skewed", "uniform", "tiny"})
+    public String corpus;
+
+    @Param({"default", "fast", "best", "interleaved", "context", "lz77", "adaptive"})
+    public String mode;
+
+    // holds the corpus file and its compressed form
+    private Path workDir;
+    // compressed file written by compress and read by decompress
+    private String compressedName;
+    private Compressor compressor;
+    private Decompressor decompressor;
+    // receives the decompressed bytes
+    private final OutputStream sink = OutputStream.nullOutputStream();
+
+    /**
+     * writes the corpus and compresses it once, so decompress has its input
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        workDir = Files.createTempDirectory("huffman-bench");
+        Path file = Files.write(workDir.resolve(corpus + ".dat"), Corpora.get(corpus));
+        Path compressed = workDir.resolve(corpus + "." + mode + ".huf");
+        compressedName = compressed.toString();
+        compressor = new Compressor(file);
+        compressor.setParallelism(1);
+        switch(mode)
+        {
+            case "fast":
+                compressor.setLevel(CompressionLevel.FAST);
+                break;
+            case "best":
+                compressor.setLevel(CompressionLevel.BEST);
+                break;
+            case "interleaved":
+                compressor.setInterleaved(true);
+                break;
+            case "context":
+                compressor.setContextModeling(true);
+                break;
+            case "lz77":
+                compressor.setPreTransform(PreTransform.LZ77);
+                break;
+            case "adaptive":
+                compressor.setAdaptive(true);
+                break;
+            default:
+                break;
+        }
+        compressor.compress(compressedName);
+        // printed in the output of the fork, the ratio doesn't change from run to run
+        System.out.printf(Locale.ROOT, "%nratio %s %s: %.3f%n", corpus, mode,
+                (double)Files.size(compressed) / Math.max(1, Files.size(file)));
+        decompressor = new Decompressor(compressed);
+        decompressor.setParallelism(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        try(Stream<Path> files = Files.list(workDir))
+        {
+            for(Iterator<Path> i = files.iterator(); i.hasNext(); )
+                Files.delete(i.next());
+        }
+        Files.delete(workDir);
+    }
+
+    @Benchmark
+    public void compress() throws IOException
+    {
+        compressor.compress(compressedName);
+    }
+
+    @Benchmark
+    public void decompress() throws IOException
+    {
+        decompressor.decompress(0, Long.MAX_VALUE, sink);
+    }
+}
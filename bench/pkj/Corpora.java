@@ -0,0 +1,92 @@
+package pkj;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Inputs the benchmarks run over, generated from a fixed seed so every fork sees the same bytes:
+ * text (the file named by the pkj.corpus system property, test_huffman.txt by default, else generated words),
+ * log lines, bytes with a geometric distribution, uniform random bytes and a 200 byte text
+ */
+final class Corpora
+{
+    // names accepted by get, in the order they are reported
+    static final String[] NAMES = {"text", "log", "skewed", "uniform", "tiny"};
+
+    private Corpora()
+    {
+    }
+
+    /**
+     * @param name one of {@link #NAMES}
+     * @return the bytes of the corpus
+     * @throws IOException if the text file can't be read
+     * @throws IllegalArgumentException if name is unknown
+     */
+    static byte[] get(String name) throws IOException
+    {
+        Random random = new Random(42);
+        switch(name)
+        {
+            case "text":
+                return text(random);
+            case "log":
+                return logLines(1 << 20);
+            case "skewed":
+            {
+                byte[] skewed = new byte[1 << 22];
+                for(int i = 0; i < skewed.length; ++i)
+                    skewed[i] = (byte)Math.min(255, (int)(-Math.log(1 - random.nextDouble()) * 4));
+                return skewed;
+            }
+            case "uniform":
+            {
+                byte[] uniform = new byte[1 << 22];
+                random.nextBytes(uniform);
+                return uniform;
+            }
+            case "tiny":
+                return Arrays.copyOf(text(random), 200);
+            default:
+                throw new IllegalArgumentException("Unknown corpus: " + name);
+        }
+    }
+
+    /**
+     * @return the text file if it exists, else about 1MB of generated words
+     */
+    private static byte[] text(Random random) throws IOException
+    {
+        Path file = Paths.get(System.getProperty("pkj.corpus", "test_huffman.txt"));
+        if(Files.isRegularFile(file))
+            return Files.readAllBytes(file);
+        String[] words = {"the", "huffman", "of", "and", "compress", "a", "tree", "code", "to", "block"};
+        StringBuilder sb = new StringBuilder();
+        while(sb.length() < 1 << 20)
+            sb.append(words[random.nextInt(words.length)]).append(random.nextInt(12) == 0 ? ".\n" : " ");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return length bytes of generated log lines
+     */
+    static byte[] logLines(int length)
+    {
+        Random random = new Random(42);
+        String[] levels = {"INFO", "INFO", "INFO", "WARN", "DEBUG", "ERROR"};
+        String[] events = {"connection accepted from", "request served to", "cache miss for", "upload retried by"};
+        StringBuilder log = new StringBuilder();
+        while(log.length() < length)
+            log.append(String.format(Locale.ROOT, "2024-03-%02d %02d:%02d:%02d.%03d [%-5s] %s 10.%d.%d.%d,%d ms%n",
+                    1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60),
+                    random.nextInt(1000), levels[random.nextInt(levels.length)], events[random.nextInt(events.length)],
+                    random.nextInt(256), random.nextInt(256), random.nextInt(256), random.nextInt(500)));
+        return Arrays.copyOf(log.toString().getBytes(StandardCharsets.UTF_8), length);
+    }
+}
@@ -0,0 +1,56 @@
+package pkj;
+
+import java.util.Locale;
+
+/**
+ * Prints, for each of the {@link Corpora} and code length cap, the coded size of the corpus with a single table
+ * and how much larger it is than with uncapped huffman codes. It measures compression ratio, not time,
+ * so it runs as a plain program rather than a JMH benchmark
+ *
+ * Usage: java pkj.LengthLimitReport [length cap]...
+ */
+public class LengthLimitReport
+{
+    public static void main(String[] args) throws Exception
+    {
+        int[] limits = {8, 11, 15, 24};
+        if(args.length > 0)
+        {
+            limits = new int[args.length];
+            for(int i = 0; i < args.length; ++i)
+                limits[i] = Integer.parseInt(args[i]);
+        }
+        System.out.printf("%-8s %6s %12s %12s %10s%n", "corpus", "limit", "max length", "bits/byte", "loss %");
+        for(String name : Corpora.NAMES)
+        {
+            byte[] data = Corpora.get(name);
+            long[] freq = new long[Compressor.ALPHABET_SIZE];
+            for(byte b : data)
+                ++freq[b & 0xFF];
+            int[] lengths = new int[Compressor.ALPHABET_SIZE];
+            Compressor.generateCodeLengths(freq, lengths);
+            long uncapped = codedBits(freq, lengths);
+            for(int limit : limits)
+            {
+                Compressor.generateCodeLengths(freq, lengths, limit);
+                long bits = codedBits(freq, lengths);
+                int maxLength = 0;
+                for(int length : lengths)
+                    maxLength = Math.max(maxLength, length);
+                System.out.printf(Locale.ROOT, "%-8s %6d %12d %12.4f %10.3f%n", name, limit, maxLength,
+                        bits / (double)Math.max(1, data.length), 100.0 * (bits - uncapped) / Math.max(1, uncapped));
+            }
+        }
+    }
+
+    /**
+     * @return number of bits the codes of lengths take for the frequencies freq
+     */
+    private static long codedBits(long[] freq, int[] lengths)
+    {
+        long bits = 0;
+        for(int symbol = 0; symbol < freq.length; ++symbol)
+            bits += freq[symbol] * lengths[symbol];
+        return bits;
+    }
+}
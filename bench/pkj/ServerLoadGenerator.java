@@ -0,0 +1,209 @@
+package pkj;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Load test of {@link CompressionServer}: runs a server in process and, for each concurrency level, as many
+ * clients each sending compress then decompress requests back to back over its own connection.
+ * Every run is warmed up then timed for a fixed duration, it reports requests per second, MB/s of payload,
+ * the p50, p99 and largest latency and the bytes allocated per request by the event loop threads,
+ * which is zero once the buffer pools are warm.
+ *
+ * Usage: java pkj.ServerLoadGenerator [seconds per run] [payload bytes] [max concurrency] [event loops]
+ */
+public class ServerLoadGenerator
+{
+    /**
+     * latencies of one client, in nanoseconds
+     */
+    static class Latencies
+    {
+        long[] values = new long[1 << 12];
+        int count;
+
+        void add(long value)
+        {
+            if(count == values.length)
+                values = Arrays.copyOf(values, count * 2);
+            values[count++] = value;
+        }
+    }
+
+    // thread bean that reports allocated bytes per thread on HotSpot
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    // nanoseconds each run is timed for after warm up
+    private final long measureNanos;
+    // address of the server under load
+    private final InetSocketAddress address;
+    // payload of the compress requests and its compressed form
+    private final byte[] payload;
+    private final byte[] compressed;
+
+    ServerLoadGenerator(long measureNanos, InetSocketAddress address, byte[] payload, byte[] compressed)
+    {
+        this.measureNanos = measureNanos;
+        this.address = address;
+        this.payload = payload;
+        this.compressed = compressed;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 2;
+        int payloadLength = args.length > 1 ? Integer.parseInt(args[1]) : 64 << 10;
+        int maxConcurrency = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        byte[] payload = Corpora.logLines(payloadLength);
+        HuffmanCodec codec = new HuffmanCodec();
+        ByteBuffer compressed = ByteBuffer.allocate(codec.maxCompressedLength(payload.length));
+        codec.compress(ByteBuffer.wrap(payload), compressed);
+        try(CompressionServer server = new CompressionServer(0))
+        {
+            if(args.length > 3)
+                server.setEventLoops(Integer.parseInt(args[3]));
+            server.start();
+            ServerLoadGenerator generator = new ServerLoadGenerator((long)(seconds * 1e9), server.getLocalAddress(),
+                    payload, Arrays.copyOf(compressed.array(), compressed.position()));
+            System.out.printf("%-10s %7s %10s %10s %10s %10s %10s %10s %14s%n",
+                    "operation", "clients", "requests", "req/s", "MB/s", "p50 us", "p99 us", "max us", "server B/req");
+            for(int clients = 1; clients <= maxConcurrency; clients *= 2)
+            {
+                generator.run(CompressionServer.OP_COMPRESS, clients);
+                generator.run(CompressionServer.OP_DECOMPRESS, clients);
+            }
+        }
+    }
+
+    /**
+     * runs clients concurrent clients sending requests of one operation and prints one line
+     */
+    void run(byte op, int clients) throws Exception
+    {
+        boolean compress = op == CompressionServer.OP_COMPRESS;
+        byte[] request = compress ? payload : compressed;
+        int responseLength = compress ? new HuffmanCodec().maxCompressedLength(payload.length) : payload.length;
+        // every client is warmed up before the server threads are sampled, then all start timing at once
+        CyclicBarrier warm = new CyclicBarrier(clients + 1);
+        CyclicBarrier start = new CyclicBarrier(clients + 1);
+        Latencies[] latencies = new Latencies[clients];
+        Exception[] failure = new Exception[1];
+        List<Thread> threads = new ArrayList<>();
+        for(int i = 0; i < clients; ++i)
+        {
+            Latencies measured = latencies[i] = new Latencies();
+            Thread thread = new Thread(() ->
+            {
+                try(CompressionClient client = new CompressionClient(address))
+                {
+                    ByteBuffer src = ByteBuffer.allocateDirect(request.length);
+                    src.put(request);
+                    ByteBuffer dst = ByteBuffer.allocateDirect(responseLength);
+                    Latencies warmUp = new Latencies();
+                    long deadline = System.nanoTime() + Math.max(measureNanos / 2, 200_000_000L);
+                    while(System.nanoTime() < deadline)
+                        call(client, op, src, dst, warmUp);
+                    warm.await();
+                    start.await();
+                    deadline = System.nanoTime() + measureNanos;
+                    while(System.nanoTime() < deadline)
+                        call(client, op, src, dst, measured);
+                }
+                catch(Exception e)
+                {
+                    synchronized(failure)
+                    {
+                        if(failure[0] == null)
+                            failure[0] = e;
+                    }
+                    warm.reset();
+                    start.reset();
+                }
+            }, "load-client-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        warm.await();
+        long[] serverThreads = serverThreadIds();
+        long allocatedBefore = allocated(serverThreads);
+        start.await();
+        long started = System.nanoTime();
+        for(Thread thread : threads)
+            thread.join();
+        long elapsed = System.nanoTime() - started;
+        long allocated = allocated(serverThreads) - allocatedBefore;
+        if(failure[0] != null)
+            throw failure[0];
+
+        int count = 0;
+        for(Latencies measured : latencies)
+            count += measured.count;
+        long[] all = new long[count];
+        count = 0;
+        for(Latencies measured : latencies)
+        {
+            System.arraycopy(measured.values, 0, all, count, measured.count);
+            count += measured.count;
+        }
+        Arrays.sort(all);
+        double seconds = elapsed / 1e9;
+        System.out.printf(Locale.ROOT, "%-10s %7d %10d %10.0f %10.1f %10.1f %10.1f %10.1f %14.1f%n",
+                compress ? "compress" : "decompress", clients, count, count / seconds,
+                (double)count * request.length / 1e6 / seconds, percentile(all, 50) / 1e3,
+                percentile(all, 99) / 1e3, all[all.length - 1] / 1e3, allocated / (double)count);
+    }
+
+    /**
+     * sends one request and records its latency
+     */
+    private static void call(CompressionClient client, byte op, ByteBuffer src, ByteBuffer dst, Latencies latencies)
+            throws Exception
+    {
+        src.clear();
+        dst.clear();
+        long start = System.nanoTime();
+        if(op == CompressionServer.OP_COMPRESS)
+            client.compress(src, dst);
+        else
+            client.decompress(src, dst);
+        latencies.add(System.nanoTime() - start);
+    }
+
+    /**
+     * @return value below which percent of the sorted values are
+     */
+    private static long percentile(long[] sorted, int percent)
+    {
+        int index = (int)Math.ceil(sorted.length * percent / 100.0) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * @return ids of the event loop threads of the server
+     */
+    private static long[] serverThreadIds()
+    {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith("huffman-server-"))
+                .mapToLong(Thread::getId)
+                .toArray();
+    }
+
+    /**
+     * @return bytes allocated so far by the threads
+     */
+    private static long allocated(long[] threads)
+    {
+        long total = 0;
+        for(long allocated : THREADS.getThreadAllocatedBytes(threads))
+            total += Math.max(0, allocated);
+        return total;
+    }
+}
@@ -0,0 +1,200 @@
+package pkj;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * One pass (adaptive) huffman coding with the FGK algorithm:
+ * encoder and decoder start from a tree holding only the NYT (not yet transmitted) leaf
+ * and update the tree the same way after every symbol, so no frequencies need to be known up front
+ * and no table is stored, at the cost of a tree walk per symbol.
+ * A symbol seen for the first time is coded as the NYT code followed by its 8 raw bits.
+ * The tree keeps the sibling property: nodes numbered by order have non decreasing weights
+ * and siblings are adjacent, after a symbol every node on its path is swapped with the highest
+ * ordered node of the same weight before its weight is incremented.
+ * The model is reused between blocks with {@link #reset()}, it is not thread safe
+ */
+class AdaptiveHuffman
+{
+    /**
+     * a node of the adaptive tree, a {@link Compressor.TreeNode} that also knows its parent and its order
+     */
+    private static final class Node extends Compressor.TreeNode
+    {
+        // parent node, null for the root
+        Node parent;
+        // position of the node in the sibling ordering, the root has the highest
+        int order;
+
+        Node()
+        {
+            super((char)0, 0);
+        }
+    }
+
+    // number of leaves: every byte value plus NYT
+    private static final int LEAVES = Compressor.ALPHABET_SIZE + 1;
+    // number of nodes of a full tree
+    private static final int NODES = 2 * LEAVES - 1;
+
+    // nodes by order, the root at NODES - 1
+    private final Node[] byOrder = new Node[NODES];
+    // preallocated nodes handed out as the tree grows
+    private final Node[] pool = new Node[NODES];
+    // number of nodes of pool in use
+    private int used;
+    // leaf of each byte value, null if it wasn't seen yet
+    private final Node[] leaves = new Node[Compressor.ALPHABET_SIZE];
+    // the not yet transmitted leaf
+    private Node nyt;
+    // bits of the path of the symbol being encoded, from the leaf up
+    private final int[] path = new int[NODES];
+
+    /**
+     * Initializes a model holding only the NYT leaf
+     */
+    AdaptiveHuffman()
+    {
+        for(int i = 0; i < NODES; ++i)
+            pool[i] = new Node();
+        reset();
+    }
+
+    /**
+     * Forgets every symbol seen so the next block starts from the NYT leaf alone
+     */
+    void reset()
+    {
+        Arrays.fill(leaves, null);
+        Arrays.fill(byOrder, null);
+        used = 0;
+        nyt = node(NODES - 1);
+    }
+
+    /**
+     * Writes the code of symbol then updates the tree
+     * @param symbol byte value, 0 to 255
+     * @param out bit stream receiving the code
+     * @throws IOException if writing fails
+     */
+    void encode(int symbol, BitWriter out) throws IOException
+    {
+        Node leaf = leaves[symbol];
+        writePath(leaf != null ? leaf : nyt, out);
+        if(leaf == null)
+            out.write(symbol, 8);
+        update(symbol);
+    }
+
+    /**
+     * Reads a code, updates the tree and returns its symbol
+     * @param in bit stream holding the codes
+     * @return byte value, 0 to 255
+     */
+    int decode(BitReader in)
+    {
+        Node node = byOrder[NODES - 1];
+        while(node.left != null)
+            node = (Node)(in.readBit() == 0 ? node.left : node.right);
+        int symbol;
+        if(node == nyt)
+        {
+            symbol = in.peek(8);
+            in.skip(8);
+        }
+        else
+            symbol = node.character;
+        update(symbol);
+        return symbol;
+    }
+
+    /**
+     * writes the bits of the path from the root to node
+     */
+    private void writePath(Node node, BitWriter out) throws IOException
+    {
+        int length = 0;
+        for(Node n = node; n.parent != null; n = n.parent)
+            path[length++] = n.parent.right == n ? 1 : 0;
+        while(length > 0)
+        {
+            int chunk = Math.min(length, 32);
+            int code = 0;
+            for(int i = 0; i < chunk; ++i)
+                code = (code << 1) | path[--length];
+            out.write(code, chunk);
+        }
+    }
+
+    /**
+     * adds one occurrence of symbol to the tree, splitting the NYT leaf if it is new
+     */
+    private void update(int symbol)
+    {
+        Node node = leaves[symbol];
+        if(node == null)
+        {
+            // the NYT leaf becomes an internal node whose children are a new NYT and the symbol's leaf
+            Node parent = nyt;
+            Node newNyt = node(parent.order - 2);
+            node = node(parent.order - 1);
+            node.character = (char)symbol;
+            parent.left = newNyt;
+            parent.right = node;
+            newNyt.parent = parent;
+            node.parent = parent;
+            leaves[symbol] = node;
+            nyt = newNyt;
+        }
+        while(node != null)
+        {
+            Node leader = node;
+            for(int i = node.order + 1; i < NODES && byOrder[i].freq == node.freq; ++i)
+                leader = byOrder[i];
+            if(leader != node && leader != node.parent)
+                swap(node, leader);
+            ++node.freq;
+            node = node.parent;
+        }
+    }
+
+    /**
+     * exchanges the places in the tree of two nodes, with their subtrees
+     */
+    private void swap(Node a, Node b)
+    {
+        Node parentA = a.parent, parentB = b.parent;
+        boolean aIsLeft = parentA.left == a, bIsLeft = parentB.left == b;
+        if(aIsLeft)
+            parentA.left = b;
+        else
+            parentA.right = b;
+        if(bIsLeft)
+            parentB.left = a;
+        else
+            parentB.right = a;
+        a.parent = parentB;
+        b.parent = parentA;
+
+        int order = a.order;
+        a.order = b.order;
+        b.order = order;
+        byOrder[a.order] = a;
+        byOrder[b.order] = b;
+    }
+
+    /**
+     * takes an empty leaf of weight 0 from the pool and places it at order
+     */
+    private Node node(int order)
+    {
+        Node node = pool[used++];
+        node.freq = 0;
+        node.character = 0;
+        node.left = node.right = null;
+        node.parent = null;
+        node.order = order;
+        byOrder[order] = node;
+        return node;
+    }
+}
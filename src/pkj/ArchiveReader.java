@@ -0,0 +1,203 @@
+package pkj;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lists and extracts the entries of an archive written by {@link BatchCompressor#compressToArchive(Path)},
+ * the central directory is read once when the reader is created and each entry is decoded on its own.
+ * A reader is not thread safe
+ */
+public class ArchiveReader
+{
+    /**
+     * a file stored in an archive
+     */
+    public static final class Entry
+    {
+        // relative path of the file, '/' separated
+        private final String name;
+        // archive offset of its compressed container
+        private final long offset;
+        // size of its compressed container
+        private final long compressedSize;
+        // size of the original file
+        private final long size;
+
+        Entry(String name, long offset, long compressedSize, long size)
+        {
+            this.name = name;
+            this.offset = offset;
+            this.compressedSize = compressedSize;
+            this.size = size;
+        }
+
+        /**
+         * @return relative path of the file, '/' separated
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @return offset of the compressed data in the archive
+         */
+        public long getOffset()
+        {
+            return offset;
+        }
+
+        /**
+         * @return size of the compressed data
+         */
+        public long getCompressedSize()
+        {
+            return compressedSize;
+        }
+
+        /**
+         * @return size of the original file
+         */
+        public long getSize()
+        {
+            return size;
+        }
+    }
+
+    // archive file
+    private final Path archive;
+    // entries of the central directory, sorted by name
+    private final List<Entry> entries;
+    // decodes the entries
+    private final HuffmanCodec codec = new HuffmanCodec();
+
+    /**
+     * Reads the central directory of an archive
+     * @param archive archive file
+     * @throws IOException if reading fails or the archive is corrupted
+     */
+    public ArchiveReader(Path archive) throws IOException
+    {
+        this.archive = archive;
+        try(FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            ByteBuffer header = readFully(channel, 0, BatchCompressor.ARCHIVE_MAGIC.length + 1);
+            byte[] magic = new byte[BatchCompressor.ARCHIVE_MAGIC.length];
+            header.get(magic);
+            if(!Arrays.equals(magic, BatchCompressor.ARCHIVE_MAGIC))
+                throw new IOException("Not an archive: " + archive);
+            if((header.get() & 0xFF) != BatchCompressor.ARCHIVE_VERSION)
+                throw new IOException("Unsupported archive version: " + archive);
+            long directoryOffset = readFully(channel, size - 8, 8).getLong();
+            if(directoryOffset < magic.length + 1 || directoryOffset > size - 8 - 4
+                    || size - 8 - directoryOffset > Integer.MAX_VALUE)
+                throw new IOException("Corrupted archive: " + archive);
+            ByteBuffer directory = readFully(channel, directoryOffset, (int)(size - 8 - directoryOffset));
+            int count = directory.getInt();
+            if(count < 0)
+                throw new IOException("Corrupted archive: " + archive);
+            List<Entry> entries = new ArrayList<>();
+            for(int i = 0; i < count; ++i)
+            {
+                int nameLength = CanonicalCode.readVarInt(directory);
+                if(nameLength < 0 || nameLength > directory.remaining())
+                    throw new IOException("Corrupted archive: " + archive);
+                byte[] name = new byte[nameLength];
+                directory.get(name);
+                Entry entry = new Entry(new String(name, StandardCharsets.UTF_8),
+                        directory.getLong(), directory.getLong(), directory.getLong());
+                if(entry.offset < 0 || entry.compressedSize < 0 || entry.offset + entry.compressedSize > directoryOffset)
+                    throw new IOException("Corrupted archive: " + archive);
+                entries.add(entry);
+            }
+            this.entries = Collections.unmodifiableList(entries);
+        }
+        catch(BufferUnderflowException | IllegalArgumentException e)
+        {
+            throw new IOException("Corrupted archive: " + archive, e);
+        }
+    }
+
+    /**
+     * Sets the dictionaries entries compressed with a dictionary are decoded with
+     * @param dictionaries cache resolving dictionary ids
+     */
+    public void setDictionaryCache(DictionaryCache dictionaries)
+    {
+        codec.setDictionaryCache(dictionaries);
+    }
+
+    /**
+     * @return entries of the archive sorted by name
+     */
+    public List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+    /**
+     * Decompresses one entry
+     * @param entry entry of this archive
+     * @param out receives the original file, left open
+     * @throws IOException if reading or writing fails or the entry is corrupted
+     */
+    public void extract(Entry entry, OutputStream out) throws IOException
+    {
+        try(FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ))
+        {
+            channel.position(entry.offset);
+            InputStream in = Channels.newInputStream(channel);
+            codec.decompress(in, out);
+        }
+    }
+
+    /**
+     * Decompresses every entry under directory at its relative path
+     * @param directory directory receiving the files, created if missing
+     * @throws IOException if reading or writing fails, the archive is corrupted
+     *                     or an entry name would place a file outside directory
+     */
+    public void extractAll(Path directory) throws IOException
+    {
+        Path base = directory.toAbsolutePath().normalize();
+        for(Entry entry : entries)
+        {
+            Path target = base.resolve(entry.name).normalize();
+            if(!target.startsWith(base) || target.equals(base))
+                throw new IOException("Invalid entry name: " + entry.name);
+            Files.createDirectories(target.getParent());
+            try(OutputStream out = new BufferedOutputStream(Files.newOutputStream(target)))
+            {
+                extract(entry, out);
+            }
+        }
+    }
+
+    /**
+     * reads length bytes of the archive at position
+     */
+    private ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while(buffer.hasRemaining())
+            if(channel.read(buffer, position + buffer.position()) == -1)
+                throw new IOException("Unexpected end of " + archive);
+        return buffer.flip();
+    }
+}
@@ -0,0 +1,564 @@
+package pkj;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Compresses every regular file of a directory tree, either to one compressed file per input file
+ * or to a single archive with a central directory (see {@link ArchiveReader}).
+ * Files are compressed concurrently, on virtual threads when the JDK has them, else on a fixed pool of threads.
+ * Both are bounded: at most parallelism files are compressed at once, each with a worker (codec and buffer)
+ * taken from a pool so buffers are reused from file to file, and the walk of the tree waits
+ * (back-pressure) while too many files are queued or the files in flight add up to more than the memory budget.
+ * A file that fails is reported in the result and doesn't stop the others.
+ * With a {@link CompressionCache}, files compressed to a directory that didn't change since an earlier run
+ * keep their compressed file instead of being compressed again.
+ * Archive layout:
+ * <pre>
+ * header    : magic "HUA", version
+ * entries   : one compressed container per file (see {@link BlockFormat}), back to back
+ * directory : entry count (int), then per entry its name (varint length + UTF-8, '/' separated relative path),
+ *             file offset (long), compressed size (long) and original size (long)
+ * footer    : file offset of the directory (long)
+ * </pre>
+ */
+public class BatchCompressor
+{
+    /**
+     * outcome of a batch
+     */
+    public static final class Result
+    {
+        // number of files compressed successfully
+        private final long fileCount;
+        // bytes read from the files and bytes written for them
+        private final long inputBytes;
+        private final long outputBytes;
+        // error of each file that couldn't be compressed
+        private final Map<Path, IOException> failures;
+
+        Result(long fileCount, long inputBytes, long outputBytes, Map<Path, IOException> failures)
+        {
+            this.fileCount = fileCount;
+            this.inputBytes = inputBytes;
+            this.outputBytes = outputBytes;
+            this.failures = Collections.unmodifiableMap(failures);
+        }
+
+        /**
+         * @return number of files compressed successfully
+         */
+        public long getFileCount()
+        {
+            return fileCount;
+        }
+
+        /**
+         * @return total size of the files compressed successfully
+         */
+        public long getInputBytes()
+        {
+            return inputBytes;
+        }
+
+        /**
+         * @return total size of their compressed data
+         */
+        public long getOutputBytes()
+        {
+            return outputBytes;
+        }
+
+        /**
+         * @return error of each file that couldn't be compressed, empty if every file was
+         */
+        public Map<Path, IOException> getFailures()
+        {
+            return failures;
+        }
+    }
+
+    /**
+     * a codec and an output buffer reused by the files compressed one after the other on it
+     */
+    private static final class Worker
+    {
+        final HuffmanCodec codec;
+        // replaced after a file larger than RETAINED_BUFFER_SIZE so its peak size isn't kept outside the budget
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        // buffer the files are hashed through when a cache is set, allocated on first use
+        ByteBuffer hashBuffer;
+
+        Worker(HuffmanCodec codec)
+        {
+            this.codec = codec;
+        }
+    }
+
+    /**
+     * compression of one file by a worker
+     */
+    @FunctionalInterface
+    private interface FileTask
+    {
+        /**
+         * @return number of bytes written for the file
+         */
+        long compress(Path file, long size, Worker worker) throws IOException;
+    }
+
+    // first bytes of an archive
+    static final byte[] ARCHIVE_MAGIC = {'H', 'U', 'A'};
+    // version of the archive layout written by this code
+    static final int ARCHIVE_VERSION = 1;
+    // suffix of the compressed files written next to each other
+    static final String SUFFIX = ".huf";
+    // largest compressed file a worker's buffer keeps its capacity for between files
+    private static final int RETAINED_BUFFER_SIZE = 1 << 20;
+
+    // file or directory to compress
+    private final Path root;
+    // number of files compressed at the same time
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    // most bytes of input files in flight at once, a larger file is compressed alone
+    private long maxInFlightBytes = 256L << 20;
+    // run the files on virtual threads when the JDK has them
+    private boolean virtualThreads = true;
+    // creates the codec of each worker, configured the same way
+    private Supplier<HuffmanCodec> codecFactory = HuffmanCodec::new;
+    // index of the files compressed by earlier runs, null to compress every file
+    private CompressionCache cache;
+
+    /**
+     * Initializes a batch over a directory tree or a single file
+     * @param root directory whose regular files are compressed, or a single file
+     * @throws IllegalArgumentException if root doesn't exist
+     */
+    public BatchCompressor(Path root)
+    {
+        if(!Files.exists(root))
+            throw new IllegalArgumentException("Invalid path: " + root);
+        this.root = root;
+    }
+
+    /**
+     * Sets the number of files compressed at the same time
+     * @param parallelism number of workers, at least 1
+     * @throws IllegalArgumentException if parallelism is less than 1
+     */
+    public void setParallelism(int parallelism)
+    {
+        if(parallelism < 1)
+            throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Caps the total size of the files being compressed or waiting to be written at once,
+     * the walk of the tree waits until enough files are done. A file larger than the cap is compressed alone,
+     * it is streamed into an archive instead of buffered
+     * @param maxInFlightBytes memory budget in bytes, at least 1KB
+     * @throws IllegalArgumentException if maxInFlightBytes is less than 1KB
+     */
+    public void setMaxInFlightBytes(long maxInFlightBytes)
+    {
+        if(maxInFlightBytes < 1024)
+            throw new IllegalArgumentException("Invalid in-flight memory budget: " + maxInFlightBytes);
+        this.maxInFlightBytes = maxInFlightBytes;
+    }
+
+    /**
+     * Chooses between virtual threads (the default, used when the JDK supports them) and a fixed pool of threads,
+     * parallelism bounds the files compressed at once either way
+     * @param virtualThreads true to use virtual threads when available
+     */
+    public void setVirtualThreads(boolean virtualThreads)
+    {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Sets how the codec of each worker is created, to choose its block size, pre-transform and other options
+     * @param codecFactory creates a configured codec, called once per worker
+     */
+    public void setCodecFactory(Supplier<HuffmanCodec> codecFactory)
+    {
+        this.codecFactory = codecFactory;
+    }
+
+    /**
+     * Sets the index of the files compressed by earlier runs, so {@link #compressToDirectory(Path)}
+     * skips the files that didn't change and links the compressed files of contents it already has.
+     * The index is saved at the end of each batch, archives don't use it
+     * @param cache index to look files up in and record them to, null to compress every file
+     */
+    public void setCache(CompressionCache cache)
+    {
+        this.cache = cache;
+    }
+
+    /**
+     * Compresses every file to its own compressed file under outputDirectory,
+     * at the same relative path with the {@value #SUFFIX} suffix appended.
+     * With a cache, files unchanged since an earlier run keep their compressed file
+     * @param outputDirectory directory receiving the compressed files, created if missing
+     * @return counts of the batch and the files that failed
+     * @throws IOException if the tree can't be walked, the cache can't be saved or the batch is interrupted
+     */
+    public Result compressToDirectory(Path outputDirectory) throws IOException
+    {
+        Path output = outputDirectory.toAbsolutePath().normalize();
+        Result result = run(output, (file, size, worker) -> {
+            Path target = output.resolve(entryName(file) + SUFFIX);
+            Files.createDirectories(target.getParent());
+            if(cache == null)
+            {
+                compress(file, target, worker);
+                return Files.size(target);
+            }
+            if(worker.hashBuffer == null)
+                worker.hashBuffer = ByteBuffer.allocate(ContentHash.BUFFER_SIZE);
+            return cache.refresh(file, size, worker.codec.settings(), target, worker.hashBuffer,
+                    (in, temporary) -> compress(in, temporary, worker));
+        });
+        if(cache != null)
+            cache.save();
+        return result;
+    }
+
+    /**
+     * compresses file to target with the codec of worker
+     */
+    private static void compress(Path file, Path target, Worker worker) throws IOException
+    {
+        try(InputStream in = Files.newInputStream(file))
+        {
+            compress(in, target, worker);
+        }
+    }
+
+    /**
+     * compresses everything in from in to target with the codec of worker, in is left open
+     */
+    private static void compress(InputStream in, Path target, Worker worker) throws IOException
+    {
+        try(OutputStream file = Files.newOutputStream(target);
+            OutputStream out = new BufferedOutputStream(file, 1 << 16))
+        {
+            worker.codec.compress(in, out);
+        }
+    }
+
+    /**
+     * Compresses every file into one archive whose central directory lists them,
+     * files are buffered once compressed and appended in the order they finish
+     * @param archive archive file, replaced if it exists
+     * @return counts of the batch and the files that failed
+     * @throws IOException if the tree can't be walked, the archive can't be written or the batch is interrupted
+     */
+    public Result compressToArchive(Path archive) throws IOException
+    {
+        Path output = archive.toAbsolutePath().normalize();
+        List<ArchiveReader.Entry> entries = new ArrayList<>();
+        try(FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            ByteBuffer header = ByteBuffer.allocate(ARCHIVE_MAGIC.length + 1).put(ARCHIVE_MAGIC).put((byte)ARCHIVE_VERSION);
+            writeFully(channel, header.flip());
+            OutputStream channelOut = Channels.newOutputStream(channel);
+            Result result = run(output, (file, size, worker) -> {
+                String name = entryName(file);
+                if(size >= maxInFlightBytes)
+                {
+                    // too large to buffer: it holds the whole budget so it streams into the archive alone
+                    try(InputStream in = Files.newInputStream(file))
+                    {
+                        synchronized(entries)
+                        {
+                            long offset = channel.position();
+                            try
+                            {
+                                // the codec writes small pieces, flushed to the channel when the container is finished
+                                worker.codec.compress(in, new BufferedOutputStream(channelOut, 1 << 16));
+                            }
+                            catch(IOException | RuntimeException e)
+                            {
+                                rollBack(channel, offset, e);
+                                throw e;
+                            }
+                            entries.add(new ArchiveReader.Entry(name, offset, channel.position() - offset, size));
+                            return channel.position() - offset;
+                        }
+                    }
+                }
+                ByteArrayOutputStream buffer = worker.buffer;
+                buffer.reset();
+                try
+                {
+                    try(InputStream in = Files.newInputStream(file))
+                    {
+                        worker.codec.compress(in, buffer);
+                    }
+                    synchronized(entries)
+                    {
+                        long offset = channel.position();
+                        try
+                        {
+                            buffer.writeTo(channelOut);
+                        }
+                        catch(IOException e)
+                        {
+                            rollBack(channel, offset, e);
+                            throw e;
+                        }
+                        entries.add(new ArchiveReader.Entry(name, offset, buffer.size(), size));
+                    }
+                    return buffer.size();
+                }
+                finally
+                {
+                    if(buffer.size() > RETAINED_BUFFER_SIZE)
+                        worker.buffer = new ByteArrayOutputStream();
+                }
+            });
+            writeDirectory(channel, entries);
+            return result;
+        }
+    }
+
+    /**
+     * walks the tree and runs task on every regular file, waiting for every file to be done
+     * @param output output file or directory, skipped if it is inside the tree
+     * @param task compression of one file
+     * @return counts of the batch and the files that failed
+     * @throws IOException if the tree can't be walked or the batch is interrupted,
+     *         the files already started are finished before it is thrown
+     */
+    private Result run(Path output, FileTask task) throws IOException
+    {
+        BlockingQueue<Worker> workers = new ArrayBlockingQueue<>(parallelism);
+        for(int i = 0; i < parallelism; ++i)
+            workers.add(new Worker(codecFactory.get()));
+        // budget in KB so large budgets fit the int permits of a semaphore
+        int budget = (int)Math.min(maxInFlightBytes >> 10, Integer.MAX_VALUE);
+        Semaphore memory = new Semaphore(budget);
+        // files queued or running, so the walk doesn't get far ahead of the workers
+        Semaphore slots = new Semaphore(2 * parallelism);
+        AtomicLong files = new AtomicLong(), inputBytes = new AtomicLong(), outputBytes = new AtomicLong();
+        Map<Path, IOException> failures = new ConcurrentHashMap<>();
+
+        ExecutorService executor = newExecutor();
+        try(Stream<Path> tree = Files.walk(root))
+        {
+            Iterator<Path> paths = tree.filter(Files::isRegularFile)
+                    .filter(path -> !path.toAbsolutePath().normalize().startsWith(output))
+                    .iterator();
+            while(paths.hasNext())
+            {
+                Path file = paths.next();
+                long size;
+                try
+                {
+                    size = Files.size(file);
+                }
+                catch(IOException e)
+                {
+                    // deleted or unreadable since the walk listed it
+                    failures.put(file, e);
+                    continue;
+                }
+                int cost = (int)Math.min(budget, Math.max(1, size >> 10));
+                slots.acquire();
+                memory.acquire(cost);
+                executor.execute(() -> {
+                    Worker worker = null;
+                    try
+                    {
+                        worker = workers.take();
+                        long written = task.compress(file, size, worker);
+                        files.incrementAndGet();
+                        inputBytes.addAndGet(size);
+                        outputBytes.addAndGet(written);
+                    }
+                    catch(IOException e)
+                    {
+                        failures.put(file, e);
+                    }
+                    catch(RuntimeException e)
+                    {
+                        failures.put(file, new IOException("Failed to compress " + file, e));
+                    }
+                    catch(InterruptedException e)
+                    {
+                        failures.put(file, new InterruptedIOException("Interrupted before compressing " + file));
+                    }
+                    finally
+                    {
+                        if(worker != null)
+                            workers.add(worker);
+                        memory.release(cost);
+                        slots.release();
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch(UncheckedIOException e)
+        {
+            // a directory of the tree couldn't be read
+            throw e.getCause();
+        }
+        catch(InterruptedException e)
+        {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing " + root);
+        }
+        finally
+        {
+            // when the walk fails the files already submitted still finish before the output is closed
+            awaitTermination(executor);
+        }
+        return new Result(files.get(), inputBytes.get(), outputBytes.get(), failures);
+    }
+
+    /**
+     * shuts executor down and waits for its tasks to finish, even when interrupted
+     * since they may still write to the output, the interrupt is kept for the caller
+     */
+    private static void awaitTermination(ExecutorService executor)
+    {
+        executor.shutdown();
+        boolean interrupted = false;
+        while(!executor.isTerminated())
+        {
+            try
+            {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+            catch(InterruptedException e)
+            {
+                interrupted = true;
+                executor.shutdownNow();
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * @return an executor running each file on its own virtual thread when enabled and available,
+     *         else a fixed pool of parallelism threads
+     */
+    private ExecutorService newExecutor()
+    {
+        if(virtualThreads)
+        {
+            try
+            {
+                // looked up reflectively so the code still runs on JDKs without virtual threads
+                return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }
+            catch(ReflectiveOperationException | UnsupportedOperationException e)
+            {
+                // not available, or a preview feature that isn't enabled
+            }
+        }
+        return Executors.newFixedThreadPool(parallelism);
+    }
+
+    /**
+     * @return path of file relative to the root with '/' separators, its file name if the root is a file
+     */
+    private String entryName(Path file)
+    {
+        Path relative = root.equals(file) ? file.getFileName() : root.relativize(file);
+        StringBuilder name = new StringBuilder();
+        for(Path part : relative)
+        {
+            if(name.length() > 0)
+                name.append('/');
+            name.append(part);
+        }
+        return name.toString();
+    }
+
+    /**
+     * drops the partial entry written from offset after failure so the next entry starts there,
+     * a failure to do so is added to it as suppressed
+     */
+    private static void rollBack(FileChannel channel, long offset, Exception failure)
+    {
+        try
+        {
+            channel.truncate(offset);
+            channel.position(offset);
+        }
+        catch(IOException e)
+        {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * appends the central directory, sorted by name, and the footer to the archive
+     */
+    private static void writeDirectory(FileChannel channel, List<ArchiveReader.Entry> entries) throws IOException
+    {
+        entries.sort(Comparator.comparing(ArchiveReader.Entry::getName));
+        long directoryOffset = channel.position();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream directory = new DataOutputStream(bytes);
+        directory.writeInt(entries.size());
+        for(ArchiveReader.Entry entry : entries)
+        {
+            byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+            CanonicalCode.writeVarInt(directory, name.length);
+            directory.write(name);
+            directory.writeLong(entry.getOffset());
+            directory.writeLong(entry.getCompressedSize());
+            directory.writeLong(entry.getSize());
+        }
+        directory.writeLong(directoryOffset);
+        writeFully(channel, ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    /**
+     * writes every remaining byte of buffer at the position of channel
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+    {
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+    }
+}
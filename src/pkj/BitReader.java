@@ -0,0 +1,123 @@
+package pkj;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a bit stream packed most significant bit first by {@link BitWriter}
+ * bits are buffered in a long so several bits can be looked at before being consumed
+ */
+class BitReader
+{
+    // source of the packed bytes, read with absolute gets so several readers can share one buffer
+    private ByteBuffer source;
+    // index in source of the next byte to buffer
+    private int position;
+    // index in source past the last byte of the stream
+    private int limit;
+    // buffered bits, only the lowest bitCount bits are meaningful
+    private long accumulator;
+    // number of buffered bits in the accumulator
+    private int bitCount;
+    // number of meaningful bits left in the stream including the buffered ones
+    private long bitsLeft;
+
+    /**
+     * Initializes the reader over the remaining bytes of source
+     * @param source buffer holding the packed bits
+     * @param totalBits number of meaningful bits, trailing padding is ignored
+     */
+    BitReader(ByteBuffer source, long totalBits)
+    {
+        reset(source, totalBits);
+    }
+
+    /**
+     * Initializes an empty reader, {@link #reset(ByteBuffer, long)} must be called before reading
+     */
+    BitReader()
+    {
+    }
+
+    /**
+     * Starts reading another bit stream, so one reader can be reused without allocating
+     * @param source buffer holding the packed bits from its position to its limit, its position is not moved
+     * @param totalBits number of meaningful bits, trailing padding is ignored
+     */
+    void reset(ByteBuffer source, long totalBits)
+    {
+        reset(source, source.position(), source.limit(), totalBits);
+    }
+
+    /**
+     * Starts reading a bit stream stored in a range of source, its position is not moved
+     * @param source buffer holding the packed bits
+     * @param from index of the first byte of the stream
+     * @param to index past the last byte of the stream
+     * @param totalBits number of meaningful bits, trailing padding is ignored
+     */
+    void reset(ByteBuffer source, int from, int to, long totalBits)
+    {
+        this.source = source;
+        this.position = from;
+        this.limit = to;
+        this.bitsLeft = totalBits;
+        this.accumulator = 0;
+        this.bitCount = 0;
+    }
+
+    /**
+     * @return number of bits that were not consumed yet
+     */
+    long bitsLeft()
+    {
+        return bitsLeft;
+    }
+
+    /**
+     * Returns the next count bits without consuming them
+     * if fewer bits are left, the missing low bits are zeros
+     * @param count number of bits to look at, 1 to 32
+     * @return the next bits right aligned
+     */
+    int peek(int count)
+    {
+        if(bitCount < count)
+            refill();
+        if(bitCount >= count)
+            return (int)(accumulator >>> (bitCount - count)) & (int)((1L << count) - 1);
+        return (int)(accumulator << (count - bitCount)) & (int)((1L << count) - 1);
+    }
+
+    /**
+     * Consumes count bits that were previously looked at with {@link #peek(int)}
+     * @param count number of bits to drop
+     */
+    void skip(int count)
+    {
+        bitCount -= count;
+        bitsLeft -= count;
+    }
+
+    /**
+     * Consumes and returns a single bit
+     * @return 0 or 1
+     */
+    int readBit()
+    {
+        int bit = peek(1);
+        skip(1);
+        return bit;
+    }
+
+    /**
+     * Tops up the accumulator with whole bytes while there is room for them
+     */
+    private void refill()
+    {
+        while(bitCount <= 56 && position < limit)
+        {
+            accumulator = (accumulator << 8) | (source.get(position++) & 0xFF);
+            bitCount += 8;
+        }
+    }
+}
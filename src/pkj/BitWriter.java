@@ -0,0 +1,100 @@
+package pkj;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Packs variable length codes into bytes, most significant bit first,
+ * using a long accumulator and flushes full bytes to the underlying stream
+ */
+class BitWriter
+{
+    // output stream that receives the packed bytes
+    private final OutputStream out;
+    // pending bits, only the lowest bitCount bits are meaningful
+    private long accumulator;
+    // number of pending bits in the accumulator (always < 8 between calls)
+    private int bitCount;
+    // staging buffer so the stream is not called once per byte
+    private final byte[] buffer;
+    // next free index in buffer
+    private int position;
+    // total number of bits written so far
+    private long totalBits;
+
+    /**
+     * Initializes the writer with a default staging buffer of 8KB
+     * @param out stream that receives the packed bytes
+     */
+    BitWriter(OutputStream out)
+    {
+        this(out, 8192);
+    }
+
+    /**
+     * Initializes the writer
+     * @param out stream that receives the packed bytes
+     * @param bufferSize size of the staging buffer in bytes
+     */
+    BitWriter(OutputStream out, int bufferSize)
+    {
+        this.out = out;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Appends the lowest length bits of code to the bit stream
+     * @param code bits of the code, right aligned
+     * @param length number of bits to write, 0 to 32
+     * @throws IOException if the underlying stream fails
+     */
+    void write(int code, int length) throws IOException
+    {
+        accumulator = (accumulator << length) | (code & 0xFFFFFFFFL);
+        bitCount += length;
+        totalBits += length;
+        while(bitCount >= 8)
+        {
+            bitCount -= 8;
+            buffer[position++] = (byte)(accumulator >>> bitCount);
+            if(position == buffer.length)
+                flushBuffer();
+        }
+    }
+
+    /**
+     * Pads the last partial byte with zeros and pushes every pending byte to the stream
+     * the underlying stream is flushed but not closed
+     * @throws IOException if the underlying stream fails
+     */
+    void flush() throws IOException
+    {
+        if(bitCount > 0)
+        {
+            buffer[position++] = (byte)(accumulator << (8 - bitCount));
+            bitCount = 0;
+            if(position == buffer.length)
+                flushBuffer();
+        }
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * @return total number of bits written since creation, excluding padding
+     */
+    long getTotalBits()
+    {
+        return totalBits;
+    }
+
+    /**
+     * writes the staging buffer to the stream
+     * @throws IOException if the underlying stream fails
+     */
+    private void flushBuffer() throws IOException
+    {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+}
@@ -0,0 +1,283 @@
+package pkj;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes blocks written by {@link BlockEncoder},
+ * a decoder keeps its tables between blocks so a thread can reuse it, it is not thread safe
+ */
+class BlockDecoder
+{
+    // code length table of the block being decoded
+    private final int[] codeLengths = new int[Compressor.ALPHABET_SIZE];
+    // decoder rebuilt for every block that has its own table
+    private final HuffmanDecoder decoder = new HuffmanDecoder();
+    // decoder of the table shared by every block: ownSharedDecoder or the decoder of a dictionary
+    private HuffmanDecoder sharedDecoder;
+    // decoder built for the shared table of a header, allocated for the first file that has one
+    private HuffmanDecoder ownSharedDecoder;
+    // whether sharedDecoder holds the table of the current file
+    private boolean hasSharedTable;
+    // reads the payload of every block
+    private final BitReader input = new BitReader();
+    // readers of the sub-streams of interleaved blocks
+    private final BitReader[] streamInputs = new BitReader[BlockFormat.STREAMS];
+    // byte length of each sub-stream of the block being decoded
+    private final int[] streamLengths = new int[BlockFormat.STREAMS];
+    // index in the output of the first byte of each sub-stream
+    private final int[] streamOffsets = new int[BlockFormat.STREAMS];
+    // decoder of each table of context blocks, allocated as blocks need them
+    private final HuffmanDecoder[] contextDecoders = new HuffmanDecoder[ContextModel.MAX_TABLES];
+    // decoder of each context of the context block being decoded
+    private final HuffmanDecoder[] byContext = new HuffmanDecoder[Compressor.ALPHABET_SIZE];
+    // pre-transform stage recorded in the header, matches blocks are only valid after one
+    private PreTransform preTransform = PreTransform.NONE;
+    // decodes the blocks of a pre-transform stage, allocated for the first one
+    private MatchCoder matchCoder;
+    // model of adaptive blocks, allocated for the first one
+    private AdaptiveHuffman model;
+    // receives the time spent decoding each block
+    private CodecMetrics metrics = CodecMetrics.NONE;
+
+    /**
+     * Initializes a decoder
+     * @param sharedLengths code length table of the file header, or null if the file has none
+     */
+    BlockDecoder(int[] sharedLengths)
+    {
+        for(int k = 0; k < streamInputs.length; ++k)
+            streamInputs[k] = new BitReader();
+        setSharedLengths(sharedLengths);
+    }
+
+    /**
+     * Switches to the shared table of another file, reusing the tables already allocated
+     * @param sharedLengths code length table of the file header, or null if the file has none
+     */
+    void setSharedLengths(int[] sharedLengths)
+    {
+        hasSharedTable = sharedLengths != null;
+        if(!hasSharedTable)
+            return;
+        if(ownSharedDecoder == null)
+            ownSharedDecoder = new HuffmanDecoder();
+        ownSharedDecoder.init(sharedLengths);
+        sharedDecoder = ownSharedDecoder;
+    }
+
+    /**
+     * Switches to a shared table that is already built, such as the one of a dictionary
+     * @param decoder decoder of the shared table, only read
+     */
+    void setSharedDecoder(HuffmanDecoder decoder)
+    {
+        hasSharedTable = true;
+        sharedDecoder = decoder;
+    }
+
+    /**
+     * Sets the pre-transform stage recorded in the header of the blocks, see {@link PreTransform#fromFlags(int)}
+     * @param preTransform the stage, NONE if the file has none
+     */
+    void setPreTransform(PreTransform preTransform)
+    {
+        this.preTransform = preTransform;
+    }
+
+    /**
+     * Sets the metrics receiving the time spent decoding each block
+     * @param metrics metrics to report to, {@link CodecMetrics#NONE} for none
+     */
+    void setMetrics(CodecMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the number of bytes a block decodes to without consuming it
+     * @param block buffer positioned at the start of an encoded block
+     * @return raw length of the block
+     * @throws IllegalArgumentException if the block header is corrupted
+     */
+    static int rawLength(ByteBuffer block)
+    {
+        int position = block.position();
+        try
+        {
+            block.get();
+            return CanonicalCode.readVarInt(block);
+        }
+        catch(BufferUnderflowException e)
+        {
+            throw new IllegalArgumentException("Corrupted block", e);
+        }
+        finally
+        {
+            block.position(position);
+        }
+    }
+
+    /**
+     * Decodes one block
+     * @param block buffer holding exactly one encoded block, consumed by the call
+     * @param output receives the decoded bytes
+     * @param offset index in output of the first decoded byte
+     * @return number of decoded bytes
+     * @throws IllegalArgumentException if the block is corrupted or doesn't fit output
+     */
+    int decode(ByteBuffer block, byte[] output, int offset)
+    {
+        try
+        {
+            int type = block.get() & 0xFF;
+            int rawLength = CanonicalCode.readVarInt(block);
+            int payloadLength = CanonicalCode.readVarInt(block);
+            if(rawLength > output.length - offset || payloadLength > block.remaining())
+                throw new IllegalArgumentException("Corrupted block");
+            // the payload is read in place by narrowing the limit instead of slicing the block
+            int limit = block.limit();
+            int payloadEnd = block.position() + payloadLength;
+            block.limit(payloadEnd);
+            long start = Instrumentation.start(metrics);
+            try
+            {
+                decodePayload(type, block, rawLength, output, offset);
+                Instrumentation.end(metrics, CodecMetrics.Stage.DECODE, start, rawLength);
+            }
+            finally
+            {
+                block.limit(limit).position(payloadEnd);
+            }
+            return rawLength;
+        }
+        catch(BufferUnderflowException | IllegalStateException e)
+        {
+            throw new IllegalArgumentException("Corrupted block", e);
+        }
+    }
+
+    /**
+     * decodes the payload of a block, from the position to the limit of payload
+     */
+    private void decodePayload(int type, ByteBuffer payload, int rawLength, byte[] output, int offset)
+    {
+        if(type == BlockFormat.BLOCK_ADAPTIVE)
+        {
+            if(model == null)
+                model = new AdaptiveHuffman();
+            model.reset();
+            input.reset(payload, (long)payload.remaining() * 8);
+            for(int i = offset, end = offset + rawLength; i < end; ++i)
+                output[i] = (byte)model.decode(input);
+            checkComplete(input);
+            return;
+        }
+        if(type == BlockFormat.BLOCK_STORED)
+        {
+            if(payload.remaining() != rawLength)
+                throw new IllegalArgumentException("Corrupted block");
+            payload.get(output, offset, rawLength);
+            return;
+        }
+        if(type == BlockFormat.BLOCK_MATCHES)
+        {
+            if(preTransform == PreTransform.NONE)
+                throw new IllegalArgumentException("Corrupted block");
+            if(matchCoder == null)
+                matchCoder = new MatchCoder();
+            matchCoder.decode(payload, input, output, offset, rawLength);
+            return;
+        }
+        if(type == BlockFormat.BLOCK_CONTEXT)
+        {
+            ContextModel.readTables(payload, contextDecoders, byContext, codeLengths);
+            input.reset(payload, (long)payload.remaining() * 8);
+            int previous = 0;
+            for(int i = offset, end = offset + rawLength; i < end; ++i)
+            {
+                previous = byContext[previous].decode(input);
+                output[i] = (byte)previous;
+            }
+            checkComplete(input);
+            return;
+        }
+        boolean interleaved = type == BlockFormat.BLOCK_HUFFMAN_STREAMS
+                || type == BlockFormat.BLOCK_HUFFMAN_SHARED_STREAMS;
+        HuffmanDecoder huffman;
+        if((type == BlockFormat.BLOCK_HUFFMAN_SHARED || type == BlockFormat.BLOCK_HUFFMAN_SHARED_STREAMS)
+                && hasSharedTable)
+            huffman = sharedDecoder;
+        else if(type == BlockFormat.BLOCK_HUFFMAN || type == BlockFormat.BLOCK_HUFFMAN_STREAMS)
+        {
+            CanonicalCode.readLengths(payload, codeLengths);
+            decoder.init(codeLengths);
+            huffman = decoder;
+        }
+        else
+            throw new IllegalArgumentException("Unknown block type " + type);
+
+        if(interleaved)
+        {
+            decodeStreams(huffman, payload, rawLength, output, offset);
+            return;
+        }
+        input.reset(payload, (long)payload.remaining() * 8);
+        for(int i = offset, end = offset + rawLength; i < end; ++i)
+            output[i] = (byte)huffman.decode(input);
+        checkComplete(input);
+    }
+
+    /**
+     * Checks that the last code decoded was read whole, past the end of its stream the reader
+     * returns zero bits which decode to some symbol instead of failing
+     * @param input reader of a stream that was decoded to its last symbol
+     * @throws IllegalArgumentException if the stream is truncated
+     */
+    static void checkComplete(BitReader input)
+    {
+        if(input.bitsLeft() < 0)
+            throw new IllegalArgumentException("Corrupted block");
+    }
+
+    /**
+     * decodes the sub-streams of an interleaved block, one code of each per iteration
+     * so the table lookups of the sub-streams don't wait on each other
+     */
+    private void decodeStreams(HuffmanDecoder huffman, ByteBuffer payload, int rawLength, byte[] output, int offset)
+    {
+        long total = 0;
+        for(int k = 0; k < BlockFormat.STREAMS - 1; ++k)
+        {
+            streamLengths[k] = CanonicalCode.readVarInt(payload);
+            if(streamLengths[k] < 0)
+                throw new IllegalArgumentException("Corrupted block");
+            total += streamLengths[k];
+        }
+        if(total > payload.remaining())
+            throw new IllegalArgumentException("Corrupted block");
+        streamLengths[BlockFormat.STREAMS - 1] = payload.remaining() - (int)total;
+        for(int k = 0, from = payload.position(), start = offset; k < BlockFormat.STREAMS; ++k)
+        {
+            streamInputs[k].reset(payload, from, from + streamLengths[k], (long)streamLengths[k] * 8);
+            streamOffsets[k] = start;
+            from += streamLengths[k];
+            start += BlockFormat.streamLength(rawLength, k);
+        }
+
+        BitReader input0 = streamInputs[0], input1 = streamInputs[1], input2 = streamInputs[2], input3 = streamInputs[3];
+        int offset0 = streamOffsets[0], offset1 = streamOffsets[1], offset2 = streamOffsets[2], offset3 = streamOffsets[3];
+        int common = rawLength / BlockFormat.STREAMS;
+        for(int i = 0; i < common; ++i)
+        {
+            output[offset0 + i] = (byte)huffman.decode(input0);
+            output[offset1 + i] = (byte)huffman.decode(input1);
+            output[offset2 + i] = (byte)huffman.decode(input2);
+            output[offset3 + i] = (byte)huffman.decode(input3);
+        }
+        for(int k = 0; k < rawLength % BlockFormat.STREAMS; ++k)
+            output[streamOffsets[k] + common] = (byte)huffman.decode(streamInputs[k]);
+        for(BitReader stream : streamInputs)
+            checkComplete(stream);
+    }
+}
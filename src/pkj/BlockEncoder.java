@@ -0,0 +1,531 @@
+package pkj;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Encodes one block of input into a self contained compressed block (see {@link BlockFormat}),
+ * an encoder keeps its tables and buffers between blocks so a thread can reuse it,
+ * it is not thread safe
+ */
+class BlockEncoder
+{
+    // byte counts of the block being encoded
+    private final int[] counts = new int[Compressor.ALPHABET_SIZE];
+    // counts the bytes of each block
+    private final ByteHistogram histogram = new ByteHistogram();
+    // counts widened for tree building
+    private final long[] freq = new long[Compressor.ALPHABET_SIZE];
+    // computes the code lengths of each block without allocating
+    private final CodeLengthBuilder lengthBuilder = new CodeLengthBuilder();
+    // code length of each byte value of the block being encoded
+    private final int[] codeLengths = new int[Compressor.ALPHABET_SIZE];
+    // canonical code of each byte value of the block being encoded
+    private final int[] codes = new int[Compressor.ALPHABET_SIZE];
+    // scratch space of the canonical code assignment
+    private final int[] nextCode = new int[CanonicalCode.MAX_LENGTH + 2];
+    // code lengths shared by every block, null when each block has its own table
+    private int[] sharedLengths;
+    // canonical codes matching sharedLengths
+    private int[] sharedCodes;
+    // payload of the block being encoded
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    private final DataOutputStream payloadData = new DataOutputStream(payload);
+    private final BitWriter bits = new BitWriter(payload);
+    // longest code of the tables built per block
+    private int maxCodeLength = CanonicalCode.MAX_LENGTH;
+    // code blocks in one pass with an adaptive model instead of a table
+    private boolean adaptive;
+    // adaptive model, allocated the first time it is used
+    private AdaptiveHuffman model;
+    // code each block with order-1 context tables when they are smaller than a single table
+    private boolean contextModeling;
+    // context model of the block being encoded, allocated the first time it is used
+    private ContextModel contextModel;
+    // pre-transform stage of the blocks, null if bytes are coded as they are
+    private MatchFinder matchFinder;
+    // codes the tokens of the stage
+    private MatchCoder matchCoder;
+    // tokens of the block being encoded, grown to the largest block
+    private int[] tokens;
+    // split the codes of each block into interleaved sub-streams
+    private boolean interleaved;
+    // codes of each sub-stream of the block being encoded, allocated for the first interleaved block
+    private ByteArrayOutputStream[] streams;
+    private BitWriter[] streamBits;
+    // index in the block of the first byte of each sub-stream
+    private final int[] streamStarts = new int[BlockFormat.STREAMS];
+    // bytes of a direct buffer on their way to the payload of a stored block, allocated for the first one
+    private byte[] copyBuffer;
+    // receives the time spent in each stage and the sizes of each block
+    private CodecMetrics metrics = CodecMetrics.NONE;
+    // header of the block being encoded, it precedes the payload
+    private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+    private final DataOutputStream headerData = new DataOutputStream(header);
+
+    /**
+     * Initializes an encoder that builds a code length table per block
+     */
+    BlockEncoder()
+    {
+        this(null);
+    }
+
+    /**
+     * Initializes an encoder
+     * @param sharedLengths code lengths used for every block, or null to build a table per block,
+     *                      blocks holding a byte value without a code get their own table
+     */
+    BlockEncoder(int[] sharedLengths)
+    {
+        int[] sharedCodes = null;
+        if(sharedLengths != null)
+        {
+            sharedCodes = new int[Compressor.ALPHABET_SIZE];
+            CanonicalCode.assignCodes(sharedLengths, sharedCodes);
+        }
+        setSharedTable(sharedLengths, sharedCodes);
+    }
+
+    /**
+     * Switches to another shared table whose codes are already assigned, such as the one of a dictionary
+     * @param sharedLengths code lengths used for every block, or null to build a table per block
+     * @param sharedCodes canonical codes matching sharedLengths, or null
+     */
+    void setSharedTable(int[] sharedLengths, int[] sharedCodes)
+    {
+        this.sharedLengths = sharedLengths;
+        this.sharedCodes = sharedCodes;
+    }
+
+    /**
+     * Caps the length of the codes of the tables built per block
+     * @param maxCodeLength longest code in bits, already validated
+     */
+    void setMaxCodeLength(int maxCodeLength)
+    {
+        this.maxCodeLength = maxCodeLength;
+    }
+
+    /**
+     * Chooses between coding blocks with a huffman table (the default)
+     * and coding them in one pass with an adaptive model
+     * @param adaptive true for adaptive blocks
+     */
+    void setAdaptive(boolean adaptive)
+    {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Chooses between packing the codes of a block into one bit stream (the default)
+     * and splitting them into {@link BlockFormat#STREAMS} sub-streams that are decoded in the same loop,
+     * so the lookups of independent streams overlap instead of each waiting on the previous code.
+     * Adaptive blocks are never split
+     * @param interleaved true to split the codes into sub-streams
+     */
+    void setInterleaved(boolean interleaved)
+    {
+        this.interleaved = interleaved;
+    }
+
+    /**
+     * Sets the stage turning repeated strings of a block into matches before coding,
+     * matches are kept only for the blocks they code in fewer bits
+     * @param transform stage, NONE to code bytes as they are
+     */
+    void setPreTransform(PreTransform transform)
+    {
+        matchFinder = transform.newMatchFinder();
+        if(matchFinder != null && matchCoder == null)
+            matchCoder = new MatchCoder();
+    }
+
+    /**
+     * Chooses between coding every byte of a block with one table (the default)
+     * and trying order-1 context tables, kept only for the blocks they code in fewer bits.
+     * Context blocks take precedence over interleaving, tables shared by every block don't use contexts
+     * @param contextModeling true to try context tables
+     */
+    void setContextModeling(boolean contextModeling)
+    {
+        this.contextModeling = contextModeling;
+    }
+
+    /**
+     * @return whether order-1 context tables are tried
+     */
+    boolean isContextModeling()
+    {
+        return contextModeling;
+    }
+
+    /**
+     * @return whether blocks are split into sub-streams
+     */
+    boolean isInterleaved()
+    {
+        return interleaved;
+    }
+
+    /**
+     * Sets the metrics receiving the stages and sizes of the blocks encoded by {@link #encode(ByteBuffer)}
+     * @param metrics metrics to report to, {@link CodecMetrics#NONE} for none
+     */
+    void setMetrics(CodecMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts an adaptive block whose bytes are coded as they arrive with {@link #appendAdaptive(byte[], int, int)}
+     */
+    void beginAdaptive()
+    {
+        if(model == null)
+            model = new AdaptiveHuffman();
+        model.reset();
+        payload.reset();
+    }
+
+    /**
+     * Codes more bytes of the adaptive block
+     * @param b bytes to code
+     * @param off index of the first byte
+     * @param len number of bytes
+     */
+    void appendAdaptive(byte[] b, int off, int len)
+    {
+        try
+        {
+            for(int i = off, end = off + len; i < end; ++i)
+                model.encode(b[i] & 0xFF, bits);
+        }
+        catch(IOException e)
+        {
+            // only in memory streams are written
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Ends the adaptive block, it is then kept by the encoder like a block from {@link #encode(ByteBuffer)}.
+     * A block the codes would make larger is stored instead
+     * @param src the bytes coded since {@link #beginAdaptive()} from its position to its limit, not moved
+     */
+    void endAdaptive(ByteBuffer src)
+    {
+        int rawLength = src.remaining();
+        try
+        {
+            bits.flush();
+            writeHeader(payload.size() > rawLength ? writeStored(src) : BlockFormat.BLOCK_ADAPTIVE, rawLength);
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Encodes the remaining bytes of src as one block kept by the encoder until the next call,
+     * src's position is left unchanged.
+     * The coded size is estimated from the byte counts and code lengths before anything is coded,
+     * a block that wouldn't shrink is stored as it is so it never takes more than its length plus its header.
+     * With a shared table, a block holding a byte the table has no code for is coded with its own table
+     * @param src bytes of the block, at most {@link BlockFormat#MAX_BLOCK_SIZE}
+     */
+    void encode(ByteBuffer src)
+    {
+        int rawLength = src.remaining();
+        if(adaptive)
+        {
+            long start = Instrumentation.start(metrics);
+            beginAdaptive();
+            try
+            {
+                for(int i = src.position(), n = src.limit(); i < n; ++i)
+                    model.encode(src.get(i) & 0xFF, bits);
+            }
+            catch(IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+            endAdaptive(src);
+            Instrumentation.end(metrics, CodecMetrics.Stage.ENCODE, start, rawLength);
+            Instrumentation.block(metrics, rawLength, size(), header.size(), rawLength);
+            return;
+        }
+        try
+        {
+            payload.reset();
+            int type, tableLength = 0, symbols = rawLength;
+            long start = Instrumentation.start(metrics);
+            count(src);
+            Instrumentation.end(metrics, CodecMetrics.Stage.COUNT, start, rawLength);
+            // a shared table counted in a separate pass over a file that changed since has no code for some bytes,
+            // those blocks get their own table
+            if(sharedLengths != null && hasCodes(sharedLengths))
+            {
+                start = Instrumentation.start(metrics);
+                if(codedBits(sharedLengths) >= 8L * rawLength)
+                    type = writeStored(src);
+                else
+                {
+                    type = interleaved ? BlockFormat.BLOCK_HUFFMAN_SHARED_STREAMS : BlockFormat.BLOCK_HUFFMAN_SHARED;
+                    writeCodes(src, sharedCodes, sharedLengths);
+                }
+            }
+            else
+            {
+                start = Instrumentation.start(metrics);
+                lengthBuilder.build(freq, codeLengths, maxCodeLength);
+                long plainBits = 8L * CanonicalCode.tableSize(codeLengths) + codedBits(codeLengths);
+                long contextBits = Long.MAX_VALUE, matchBits = Long.MAX_VALUE;
+                int tokenCount = 0;
+                if(contextModeling && rawLength >= ContextModel.MIN_LENGTH)
+                {
+                    if(contextModel == null)
+                        contextModel = new ContextModel();
+                    contextBits = contextModel.build(src, maxCodeLength);
+                }
+                if(matchFinder != null)
+                {
+                    if(tokens == null || tokens.length < rawLength)
+                        tokens = new int[rawLength];
+                    tokenCount = matchFinder.findMatches(src, tokens);
+                    matchBits = matchCoder.build(tokens, tokenCount, maxCodeLength);
+                }
+                Instrumentation.end(metrics, CodecMetrics.Stage.BUILD, start, rawLength);
+
+                start = Instrumentation.start(metrics);
+                long bestBits = Math.min(plainBits, Math.min(contextBits, matchBits));
+                if(bestBits >= 8L * rawLength)
+                    type = writeStored(src);
+                else if(bestBits == plainBits)
+                {
+                    type = interleaved ? BlockFormat.BLOCK_HUFFMAN_STREAMS : BlockFormat.BLOCK_HUFFMAN;
+                    CanonicalCode.assignCodes(codeLengths, codes, nextCode);
+                    CanonicalCode.writeLengths(codeLengths, payloadData);
+                    tableLength = payload.size();
+                    writeCodes(src, codes, codeLengths);
+                }
+                else if(bestBits == matchBits)
+                {
+                    type = BlockFormat.BLOCK_MATCHES;
+                    tableLength = matchCoder.tableSize();
+                    symbols = tokenCount;
+                    matchCoder.write(tokens, tokenCount, payloadData, bits);
+                }
+                else
+                {
+                    type = BlockFormat.BLOCK_CONTEXT;
+                    contextModel.writeTables(payloadData);
+                    tableLength = payload.size();
+                    contextModel.writeCodes(src, bits);
+                }
+            }
+            // the estimates leave out the padding of the last byte and the lengths of sub-streams
+            if(type != BlockFormat.BLOCK_STORED && payload.size() > rawLength)
+                type = writeStored(src);
+            if(type == BlockFormat.BLOCK_STORED)
+            {
+                tableLength = 0;
+                symbols = rawLength;
+            }
+            writeHeader(type, rawLength);
+            Instrumentation.end(metrics, CodecMetrics.Stage.ENCODE, start, rawLength);
+            Instrumentation.block(metrics, rawLength, size(), header.size() + tableLength, symbols);
+        }
+        catch(IOException e)
+        {
+            // only in memory streams are written
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * writes the block header for the payload just coded
+     */
+    private void writeHeader(int type, int rawLength) throws IOException
+    {
+        header.reset();
+        headerData.writeByte(type);
+        CanonicalCode.writeVarInt(headerData, rawLength);
+        CanonicalCode.writeVarInt(headerData, payload.size());
+    }
+
+    /**
+     * @return size in bytes of the last encoded block, header included
+     */
+    int size()
+    {
+        return header.size() + payload.size();
+    }
+
+    /**
+     * Writes the last encoded block
+     * @param out stream receiving the header and the payload
+     * @throws IOException if writing fails
+     */
+    void writeTo(OutputStream out) throws IOException
+    {
+        header.writeTo(out);
+        payload.writeTo(out);
+    }
+
+    /**
+     * @return a copy of the last encoded block: header and payload
+     */
+    byte[] toByteArray()
+    {
+        byte[] encoded = Arrays.copyOf(header.toByteArray(), size());
+        byte[] body = payload.toByteArray();
+        System.arraycopy(body, 0, encoded, header.size(), body.length);
+        return encoded;
+    }
+
+    /**
+     * @return number of bits the bytes counted in freq take with the codes of lengths
+     */
+    private long codedBits(int[] lengths)
+    {
+        long bits = 0;
+        for(int symbol = 0; symbol < freq.length; ++symbol)
+            bits += freq[symbol] * lengths[symbol];
+        return bits;
+    }
+
+    /**
+     * @param lengths code length of each byte value
+     * @return whether every byte value counted in the block has a code
+     */
+    private boolean hasCodes(int[] lengths)
+    {
+        for(int symbol = 0; symbol < freq.length; ++symbol)
+            if(freq[symbol] != 0 && lengths[symbol] == 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * replaces the payload with the bytes of src as they are, for blocks that coding wouldn't shrink
+     * @param src bytes of the block, its position is not moved
+     * @return the block type of stored blocks
+     */
+    private int writeStored(ByteBuffer src)
+    {
+        payload.reset();
+        if(src.hasArray())
+        {
+            payload.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            return BlockFormat.BLOCK_STORED;
+        }
+        if(copyBuffer == null)
+            copyBuffer = new byte[8192];
+        for(int i = src.position(), n; i < src.limit(); i += n)
+        {
+            n = Math.min(copyBuffer.length, src.limit() - i);
+            src.get(i, copyBuffer, 0, n);
+            payload.write(copyBuffer, 0, n);
+        }
+        return BlockFormat.BLOCK_STORED;
+    }
+
+    /**
+     * counts the bytes of src into freq
+     * @param src bytes of the block
+     */
+    private void count(ByteBuffer src)
+    {
+        histogram.count(src, counts);
+        for(int symbol = 0; symbol < counts.length; ++symbol)
+            freq[symbol] = counts[symbol];
+    }
+
+    /**
+     * substitutes every byte of src with its code and packs the codes into the payload
+     * @param src bytes of the block
+     * @param codes code of each byte value
+     * @param lengths code length of each byte value
+     * @throws IOException if writing fails
+     */
+    private void writeCodes(ByteBuffer src, int[] codes, int[] lengths) throws IOException
+    {
+        if(interleaved)
+        {
+            writeStreams(src, codes, lengths);
+            return;
+        }
+        for(int i = src.position(), n = src.limit(); i < n; ++i)
+        {
+            int c = src.get(i) & 0xFF;
+            bits.write(codes[c], lengths[c]);
+        }
+        bits.flush();
+    }
+
+    /**
+     * codes each part of src into its own sub-stream, the parts are coded in the same loop,
+     * then appends the byte length of every sub-stream but the last and the sub-streams to the payload
+     * @param src bytes of the block
+     * @param codes code of each byte value
+     * @param lengths code length of each byte value
+     * @throws IOException if writing fails
+     */
+    private void writeStreams(ByteBuffer src, int[] codes, int[] lengths) throws IOException
+    {
+        if(streams == null)
+        {
+            streams = new ByteArrayOutputStream[BlockFormat.STREAMS];
+            streamBits = new BitWriter[BlockFormat.STREAMS];
+            for(int k = 0; k < BlockFormat.STREAMS; ++k)
+            {
+                streams[k] = new ByteArrayOutputStream();
+                streamBits[k] = new BitWriter(streams[k]);
+            }
+        }
+        int rawLength = src.remaining();
+        for(int k = 0, start = src.position(); k < BlockFormat.STREAMS; ++k)
+        {
+            streams[k].reset();
+            streamStarts[k] = start;
+            start += BlockFormat.streamLength(rawLength, k);
+        }
+
+        BitWriter bits0 = streamBits[0], bits1 = streamBits[1], bits2 = streamBits[2], bits3 = streamBits[3];
+        int start0 = streamStarts[0], start1 = streamStarts[1], start2 = streamStarts[2], start3 = streamStarts[3];
+        int common = rawLength / BlockFormat.STREAMS;
+        for(int i = 0; i < common; ++i)
+        {
+            int c0 = src.get(start0 + i) & 0xFF;
+            int c1 = src.get(start1 + i) & 0xFF;
+            int c2 = src.get(start2 + i) & 0xFF;
+            int c3 = src.get(start3 + i) & 0xFF;
+            bits0.write(codes[c0], lengths[c0]);
+            bits1.write(codes[c1], lengths[c1]);
+            bits2.write(codes[c2], lengths[c2]);
+            bits3.write(codes[c3], lengths[c3]);
+        }
+        // the first sub-streams code the bytes left over by the even split
+        for(int k = 0; k < rawLength % BlockFormat.STREAMS; ++k)
+        {
+            int c = src.get(streamStarts[k] + common) & 0xFF;
+            streamBits[k].write(codes[c], lengths[c]);
+        }
+
+        for(int k = 0; k < BlockFormat.STREAMS; ++k)
+        {
+            streamBits[k].flush();
+            if(k < BlockFormat.STREAMS - 1)
+                CanonicalCode.writeVarInt(payloadData, streams[k].size());
+        }
+        for(ByteArrayOutputStream stream : streams)
+            stream.writeTo(payload);
+    }
+}
@@ -0,0 +1,94 @@
+package pkj;
+
+/**
+ * Constants of the compressed container:
+ * <pre>
+ * header : magic "HUF", version, file name (varint length + UTF-8), flags, block size (varint),
+ *          shared code length table if FLAG_SHARED_TABLE is set, dictionary id (varint)
+ *          and fingerprint (int) if FLAG_DICTIONARY is set,
+ *          FLAG_RLE or FLAG_LZ77 records the pre-transform stage of the file
+ * blocks : block type (byte), raw length (varint), payload length (varint), payload
+ *          the payload of an interleaved block holds its table if it has one, the byte length (varint)
+ *          of each sub-stream but the last, then the STREAMS sub-streams,
+ *          the payload of a context block holds the tables of its ContextModel then the packed codes,
+ *          the payload of a matches block holds the tables and codes of its MatchCoder,
+ *          the payload of a stored block holds the raw bytes
+ * end    : BLOCK_END (byte), so the blocks can also be read sequentially from a stream
+ * index  : block count (int), then per block its file offset (long),
+ *          the offset of its first byte in the original file (long) and its raw length (int)
+ * footer : file offset of the index (long)
+ * </pre>
+ * Blocks are encoded independently of each other so they can be compressed and decompressed in parallel,
+ * the index doubles as a seek table so a range of the original file is decoded from the blocks covering it only
+ */
+final class BlockFormat
+{
+    // first bytes of every compressed file
+    static final byte[] MAGIC = {'H', 'U', 'F'};
+    // version of the container written by this code
+    static final int VERSION = 4;
+
+    // header flag: every block is coded with the code length table of the header
+    static final int FLAG_SHARED_TABLE = 1;
+    // header flag: every block is coded with the table of a dictionary known to both sides, stored by id and fingerprint
+    static final int FLAG_DICTIONARY = 2;
+    // header flag: blocks went through the run length stage, see PreTransform
+    static final int FLAG_RLE = 4;
+    // header flag: blocks went through the LZ77 stage, see PreTransform
+    static final int FLAG_LZ77 = 8;
+
+    // block type: payload starts with its own code length table followed by the packed codes
+    static final int BLOCK_HUFFMAN = 0;
+    // block type: payload holds only the packed codes, coded with the table of the header or the dictionary
+    static final int BLOCK_HUFFMAN_SHARED = 1;
+    // block type: payload holds adaptive (one pass) huffman codes, see AdaptiveHuffman, there is no table
+    static final int BLOCK_ADAPTIVE = 2;
+    // block type: like BLOCK_HUFFMAN with the codes split into STREAMS interleaved sub-streams
+    static final int BLOCK_HUFFMAN_STREAMS = 3;
+    // block type: like BLOCK_HUFFMAN_SHARED with the codes split into STREAMS interleaved sub-streams
+    static final int BLOCK_HUFFMAN_SHARED_STREAMS = 4;
+    // block type: each byte is coded with the table of the context (previous byte) it follows, see ContextModel
+    static final int BLOCK_CONTEXT = 5;
+    // block type: literals and matches left by a pre-transform stage, coded Deflate style, see MatchCoder
+    static final int BLOCK_MATCHES = 6;
+    // block type: payload holds the bytes of the block as they are, used when coding wouldn't shrink them
+    static final int BLOCK_STORED = 7;
+    // marks the end of the blocks, it is followed by the index
+    static final int BLOCK_END = 0xFF;
+
+    // number of sub-streams of an interleaved block, sub-stream k codes the k-th quarter of the block
+    // so a decoder follows STREAMS independent bit streams at once in a single loop
+    static final int STREAMS = 4;
+
+    // default number of input bytes per block
+    static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+    // smallest and largest allowed block sizes
+    static final int MIN_BLOCK_SIZE = 1 << 10;
+    static final int MAX_BLOCK_SIZE = 1 << 26;
+    // largest number of bytes a payload may take over the block size, room for its tables and sub-stream lengths;
+    // the encoder stores any block coding would expand so its payloads never go over their raw length
+    static final int MAX_PAYLOAD_OVERHEAD = 1 << 12;
+    // largest length in bytes of the file name of the header
+    static final int MAX_NAME_LENGTH = 1 << 16;
+
+    // size in bytes of an index entry (offset + raw offset + raw length)
+    static final int INDEX_ENTRY_SIZE = 20;
+    // size in bytes of the footer (index offset)
+    static final int FOOTER_SIZE = 8;
+
+    private BlockFormat()
+    {
+    }
+
+    /**
+     * Returns the number of bytes coded by a sub-stream of an interleaved block,
+     * the bytes are split evenly and the first rawLength % STREAMS sub-streams code one more byte
+     * @param rawLength number of bytes of the block
+     * @param stream index of the sub-stream, 0 to STREAMS - 1
+     * @return number of bytes coded by the sub-stream
+     */
+    static int streamLength(int rawLength, int stream)
+    {
+        return rawLength / STREAMS + (stream < rawLength % STREAMS ? 1 : 0);
+    }
+}
@@ -0,0 +1,357 @@
+package pkj;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a compressed container (see {@link BlockFormat}) sequentially, the header then one block at a time
+ * up to the end marker, either from a buffer holding the container or from a stream.
+ * A stream is read through a window buffer that grows to the largest block, every block returned
+ * is a view of the window valid until the next call.
+ * A reader can be reset to read another container without allocating
+ */
+class BlockReader
+{
+    // initial size of the window over a stream
+    private static final int WINDOW_SIZE = 1 << 13;
+
+    // stream the container is read from, null when reading a buffer
+    private InputStream in;
+    // window over the stream, kept between streams so it is allocated once
+    private ByteBuffer streamWindow;
+    // bytes not consumed yet: the window over the stream or the buffer being read
+    private ByteBuffer window;
+    // UTF-8 name of the original file
+    private byte[] name;
+    // header flags
+    private int flags;
+    // largest number of bytes a block decodes to
+    private int blockSize;
+    // shared code length table, valid when hasSharedTable is set
+    private final int[] sharedLengths = new int[Compressor.ALPHABET_SIZE];
+    private boolean hasSharedTable;
+    // id of the dictionary the blocks are coded with, -1 if there is none
+    private int dictionaryId;
+    // fingerprint of the table of the dictionary, see HuffmanDictionary#getFingerprint()
+    private int dictionaryFingerprint;
+    // size of the last varint read by peekVarInt
+    private int varIntSize;
+
+    /**
+     * Initializes a reader over the remaining bytes of source
+     * @param source buffer holding a container, consumed by the reader
+     */
+    BlockReader(ByteBuffer source)
+    {
+        reset(source);
+    }
+
+    /**
+     * Initializes a reader over a stream
+     * @param in stream holding a container, it is read past the container when it is followed by other data
+     */
+    BlockReader(InputStream in)
+    {
+        reset(in);
+    }
+
+    /**
+     * Starts reading a container from a buffer
+     * @param source buffer holding a container, consumed by the reader
+     */
+    void reset(ByteBuffer source)
+    {
+        this.in = null;
+        this.window = source;
+    }
+
+    /**
+     * Starts reading a container from a stream
+     * @param in stream holding a container
+     */
+    void reset(InputStream in)
+    {
+        this.in = in;
+        if(streamWindow == null)
+            streamWindow = ByteBuffer.allocate(WINDOW_SIZE);
+        this.window = streamWindow.clear().flip();
+    }
+
+    /**
+     * Reads and validates the header
+     * @throws IOException if reading fails or the header is corrupted
+     */
+    void readHeader() throws IOException
+    {
+        try
+        {
+            require(BlockFormat.MAGIC.length + 1);
+            for(byte b : BlockFormat.MAGIC)
+                if(window.get() != b)
+                    throw new IOException("Not a compressed file");
+            if(window.get() != BlockFormat.VERSION)
+                throw new IOException("Unsupported version");
+            int nameLength = readVarInt();
+            if(nameLength < 0 || nameLength > BlockFormat.MAX_NAME_LENGTH)
+                throw new IOException("Corrupted header");
+            require(nameLength);
+            if(name == null || name.length != nameLength)
+                name = new byte[nameLength];
+            window.get(name);
+            require(1);
+            flags = window.get() & 0xFF;
+            blockSize = readVarInt();
+            if(blockSize < BlockFormat.MIN_BLOCK_SIZE || blockSize > BlockFormat.MAX_BLOCK_SIZE)
+                throw new IOException("Corrupted header");
+            hasSharedTable = (flags & BlockFormat.FLAG_SHARED_TABLE) != 0;
+            if(hasSharedTable)
+                readTable();
+            dictionaryId = -1;
+            if((flags & BlockFormat.FLAG_DICTIONARY) != 0)
+            {
+                dictionaryId = readVarInt();
+                if(dictionaryId < 0 || hasSharedTable)
+                    throw new IOException("Corrupted header");
+                require(4);
+                dictionaryFingerprint = window.getInt();
+            }
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new IOException("Corrupted header", e);
+        }
+    }
+
+    /**
+     * @return UTF-8 name of the original file, stored in the header
+     */
+    byte[] name()
+    {
+        return name;
+    }
+
+    /**
+     * @return name of the original file, stored in the header
+     */
+    String fileName()
+    {
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return header flags
+     */
+    int flags()
+    {
+        return flags;
+    }
+
+    /**
+     * @return largest number of bytes a block decodes to
+     */
+    int blockSize()
+    {
+        return blockSize;
+    }
+
+    /**
+     * @return code length table shared by every block, or null if blocks have their own
+     */
+    int[] sharedLengths()
+    {
+        return hasSharedTable ? sharedLengths : null;
+    }
+
+    /**
+     * @return id of the dictionary the blocks are coded with, or -1 if there is none
+     */
+    int dictionaryId()
+    {
+        return dictionaryId;
+    }
+
+    /**
+     * Looks up the dictionary the blocks are coded with
+     * @param dictionaries cache resolving the dictionary id, or null if dictionaries are not expected
+     * @return the dictionary, or null if the blocks don't use one
+     * @throws IOException if the dictionary can't be resolved or isn't the one the blocks were coded with
+     */
+    HuffmanDictionary dictionary(DictionaryCache dictionaries) throws IOException
+    {
+        if(dictionaryId < 0)
+            return null;
+        if(dictionaries == null)
+            throw new IOException("Compressed with dictionary " + dictionaryId + " but no dictionary cache was given");
+        try
+        {
+            HuffmanDictionary dictionary = dictionaries.get(dictionaryId, dictionaryFingerprint);
+            // a cache subclass may not check the fingerprint
+            if(dictionary.getFingerprint() != dictionaryFingerprint)
+                throw new IOException("Dictionary " + dictionaryId + " doesn't match the one the data was compressed with");
+            return dictionary;
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new IOException(e.getMessage(), e);
+        }
+        catch(UncheckedIOException e)
+        {
+            // a loader that failed to read the dictionary, see DictionaryCache.fromDirectory
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Points decoder at the table the blocks share: the shared table of the header or the dictionary,
+     * and at the pre-transform stage of the header flags
+     * @param decoder decoder of the blocks
+     * @param dictionaries cache resolving the dictionary id, or null if dictionaries are not expected
+     * @throws IOException if the dictionary can't be resolved
+     */
+    void configure(BlockDecoder decoder, DictionaryCache dictionaries) throws IOException
+    {
+        HuffmanDictionary dictionary = dictionary(dictionaries);
+        if(dictionary != null)
+            decoder.setSharedDecoder(dictionary.decoder());
+        else
+            decoder.setSharedLengths(sharedLengths());
+        decoder.setPreTransform(PreTransform.fromFlags(flags));
+    }
+
+    /**
+     * Returns the next block, once the end marker is reached the index and the footer are skipped
+     * so a stream is left right after the container
+     * @return buffer positioned at the start of the next block with the whole block remaining,
+     *         or null after the last block
+     * @throws IOException if reading fails or the container is corrupted
+     */
+    ByteBuffer nextBlock() throws IOException
+    {
+        require(1);
+        int type = window.get(window.position()) & 0xFF;
+        if(type == BlockFormat.BLOCK_END)
+        {
+            window.get();
+            require(4);
+            int blockCount = window.getInt();
+            if(blockCount < 0)
+                throw new IOException("Corrupted index");
+            skip((long)blockCount * BlockFormat.INDEX_ENTRY_SIZE + BlockFormat.FOOTER_SIZE);
+            return null;
+        }
+        int rawLength = peekVarInt(1);
+        int rawLengthSize = varIntSize;
+        int payloadLength = peekVarInt(1 + rawLengthSize);
+        if(rawLength > blockSize || payloadLength < 0 || payloadLength > blockSize + BlockFormat.MAX_PAYLOAD_OVERHEAD)
+            throw new IOException("Corrupted block");
+        require(1 + rawLengthSize + varIntSize + payloadLength);
+        return window;
+    }
+
+    /**
+     * reads the shared table, growing the part of the stream buffered until it holds the whole table
+     */
+    private void readTable() throws IOException
+    {
+        int start = window.position();
+        while(true)
+        {
+            try
+            {
+                CanonicalCode.readLengths(window, sharedLengths);
+                return;
+            }
+            catch(BufferUnderflowException e)
+            {
+                // require keeps the unread bytes at the front of the window
+                int buffered = window.limit() - start;
+                window.position(start);
+                require(buffered + 1);
+                start = window.position();
+            }
+        }
+    }
+
+    /**
+     * reads a varint, refilling the window one byte at a time as needed
+     */
+    private int readVarInt() throws IOException
+    {
+        int value = peekVarInt(0);
+        window.position(window.position() + varIntSize);
+        return value;
+    }
+
+    /**
+     * decodes the varint at offset bytes past the position without consuming it, its size goes to varIntSize
+     */
+    private int peekVarInt(int offset) throws IOException
+    {
+        int value = 0;
+        for(int i = 0; i < 5; ++i)
+        {
+            require(offset + i + 1);
+            int b = window.get(window.position() + offset + i) & 0xFF;
+            value |= (b & 0x7F) << (7 * i);
+            if((b & 0x80) == 0)
+            {
+                varIntSize = i + 1;
+                return value;
+            }
+        }
+        throw new IOException("Corrupted varint");
+    }
+
+    /**
+     * consumes count bytes
+     */
+    private void skip(long count) throws IOException
+    {
+        while(count > 0)
+        {
+            int step = (int)Math.min(count, Math.max(window.remaining(), 1));
+            require(step);
+            window.position(window.position() + step);
+            count -= step;
+        }
+    }
+
+    /**
+     * makes sure at least count bytes remain in the window, reading from the stream
+     * and compacting or growing the window as needed
+     * @param count number of bytes needed
+     * @throws EOFException if the container ends first
+     */
+    private void require(int count) throws IOException
+    {
+        if(window.remaining() >= count)
+            return;
+        if(in == null)
+            throw new EOFException("Truncated compressed data");
+        if(window.capacity() < count)
+        {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(count, window.capacity() * 2));
+            grown.put(window);
+            window = streamWindow = grown;
+        }
+        else
+            window.compact();
+        byte[] array = window.array();
+        while(window.position() < count)
+        {
+            int read = in.read(array, window.position(), window.remaining());
+            if(read < 0)
+            {
+                window.flip();
+                throw new EOFException("Truncated compressed data");
+            }
+            window.position(window.position() + read);
+        }
+        window.flip();
+    }
+}
@@ -0,0 +1,190 @@
+package pkj;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes a compressed container (see {@link BlockFormat}) to a stream:
+ * the header, then encoded blocks one after another while their index entries are collected,
+ * then the end marker, the index and the footer.
+ * A writer can be reset to write another container without allocating
+ */
+class BlockWriter
+{
+    /**
+     * forwards bytes to the target stream and counts them
+     */
+    private static class CountingOutputStream extends OutputStream
+    {
+        OutputStream target;
+        long count;
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            target.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            target.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            target.flush();
+        }
+    }
+
+    // counts every byte written to the target
+    private final CountingOutputStream counter = new CountingOutputStream();
+    // writes the fixed size fields through counter
+    private final DataOutputStream out = new DataOutputStream(counter);
+    // file offset, offset in the original data and raw length of every block written so far
+    private long[] offsets = new long[16];
+    private long[] rawOffsets = new long[16];
+    private int[] rawLengths = new int[16];
+    // number of blocks written so far
+    private int blockCount;
+    // number of original bytes covered by the blocks written so far
+    private long rawPosition;
+
+    /**
+     * Initializes a writer, {@link #reset(OutputStream)} must be called before writing
+     */
+    BlockWriter()
+    {
+    }
+
+    /**
+     * Initializes a writer
+     * @param target stream receiving the container
+     */
+    BlockWriter(OutputStream target)
+    {
+        reset(target);
+    }
+
+    /**
+     * Starts a new container on target, forgetting the blocks of the previous one
+     * @param target stream receiving the container
+     */
+    void reset(OutputStream target)
+    {
+        counter.target = target;
+        counter.count = 0;
+        blockCount = 0;
+        rawPosition = 0;
+    }
+
+    /**
+     * @return number of bytes written to the target since the last reset
+     */
+    long size()
+    {
+        return counter.count;
+    }
+
+    /**
+     * Writes the header: magic, version, file name, flags, block size,
+     * the shared table or the dictionary id and fingerprint if any
+     * @param name UTF-8 bytes of the name of the original file
+     * @param flags header flags of {@link BlockFormat}
+     * @param blockSize largest number of bytes a block decodes to
+     * @param sharedLengths code lengths shared by every block, or null
+     * @param dictionary dictionary every block is coded with, or null
+     * @throws IOException if writing fails
+     * @throws IllegalArgumentException if the name is longer than {@link BlockFormat#MAX_NAME_LENGTH}
+     */
+    void writeHeader(byte[] name, int flags, int blockSize, int[] sharedLengths, HuffmanDictionary dictionary)
+            throws IOException
+    {
+        if(name.length > BlockFormat.MAX_NAME_LENGTH)
+            throw new IllegalArgumentException("File name too long");
+        if(sharedLengths != null)
+            flags |= BlockFormat.FLAG_SHARED_TABLE;
+        if(dictionary != null)
+            flags |= BlockFormat.FLAG_DICTIONARY;
+        out.write(BlockFormat.MAGIC);
+        out.writeByte(BlockFormat.VERSION);
+        CanonicalCode.writeVarInt(out, name.length);
+        out.write(name);
+        out.writeByte(flags);
+        CanonicalCode.writeVarInt(out, blockSize);
+        if(sharedLengths != null)
+            CanonicalCode.writeLengths(sharedLengths, out);
+        if(dictionary != null)
+        {
+            CanonicalCode.writeVarInt(out, dictionary.getId());
+            out.writeInt(dictionary.getFingerprint());
+        }
+    }
+
+    /**
+     * Writes an encoded block
+     * @param encoded bytes of the block as returned by {@link BlockEncoder#toByteArray()}
+     * @param rawLength number of original bytes in the block
+     * @throws IOException if writing fails
+     */
+    void writeBlock(byte[] encoded, int rawLength) throws IOException
+    {
+        addEntry(rawLength);
+        out.write(encoded);
+    }
+
+    /**
+     * Writes the block the encoder just encoded
+     * @param encoder encoder holding the block
+     * @param rawLength number of original bytes in the block
+     * @throws IOException if writing fails
+     */
+    void writeBlock(BlockEncoder encoder, int rawLength) throws IOException
+    {
+        addEntry(rawLength);
+        encoder.writeTo(out);
+    }
+
+    /**
+     * Writes the end marker, the index and the footer, then flushes the target
+     * @throws IOException if writing fails
+     */
+    void finish() throws IOException
+    {
+        out.writeByte(BlockFormat.BLOCK_END);
+        long indexOffset = counter.count;
+        out.writeInt(blockCount);
+        for(int i = 0; i < blockCount; ++i)
+        {
+            out.writeLong(offsets[i]);
+            out.writeLong(rawOffsets[i]);
+            out.writeInt(rawLengths[i]);
+        }
+        out.writeLong(indexOffset);
+        out.flush();
+    }
+
+    /**
+     * records the index entry of a block about to be written at the current offset
+     * @param rawLength number of original bytes in the block
+     */
+    private void addEntry(int rawLength)
+    {
+        if(blockCount == offsets.length)
+        {
+            offsets = Arrays.copyOf(offsets, blockCount * 2);
+            rawOffsets = Arrays.copyOf(rawOffsets, blockCount * 2);
+            rawLengths = Arrays.copyOf(rawLengths, blockCount * 2);
+        }
+        offsets[blockCount] = counter.count;
+        rawOffsets[blockCount] = rawPosition;
+        rawLengths[blockCount] = rawLength;
+        ++blockCount;
+        rawPosition += rawLength;
+    }
+}
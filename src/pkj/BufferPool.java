@@ -0,0 +1,76 @@
+package pkj;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct buffers in power of two size classes, so buffers handed back are reused by later requests
+ * of any size in their class instead of being allocated again. Each class keeps at most a fixed number
+ * of free buffers, the ones handed back beyond it are left to the collector.
+ * A pool is not thread safe, {@link CompressionServer} keeps one per event loop
+ */
+class BufferPool
+{
+    // smallest size class, smaller requests get a buffer of this size
+    static final int MIN_CAPACITY = 1 << 12;
+
+    // free buffers of each size class, class k holds buffers of MIN_CAPACITY << k bytes
+    private final ArrayDeque<ByteBuffer>[] free;
+    // most free buffers kept per size class
+    private final int maxFree;
+
+    /**
+     * Initializes an empty pool
+     * @param maxCapacity largest buffer handed out
+     * @param maxFree most free buffers kept per size class
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BufferPool(int maxCapacity, int maxFree)
+    {
+        free = new ArrayDeque[sizeClass(maxCapacity) + 1];
+        for(int k = 0; k < free.length; ++k)
+            free[k] = new ArrayDeque<>(maxFree);
+        this.maxFree = maxFree;
+    }
+
+    /**
+     * Hands out a cleared buffer
+     * @param capacity number of bytes needed
+     * @return a direct buffer of at least capacity bytes, its limit set to capacity
+     * @throws IllegalArgumentException if capacity is larger than the largest size class
+     */
+    ByteBuffer acquire(int capacity)
+    {
+        int k = sizeClass(capacity);
+        if(k >= free.length)
+            throw new IllegalArgumentException("Buffer too large: " + capacity);
+        ByteBuffer buffer = free[k].poll();
+        if(buffer == null)
+            buffer = ByteBuffer.allocateDirect(MIN_CAPACITY << k);
+        buffer.clear().limit(capacity);
+        return buffer;
+    }
+
+    /**
+     * Hands a buffer back to the pool, it must not be used afterwards
+     * @param buffer buffer from {@link #acquire(int)}, or null
+     */
+    void release(ByteBuffer buffer)
+    {
+        if(buffer == null)
+            return;
+        ArrayDeque<ByteBuffer> queue = free[sizeClass(buffer.capacity())];
+        if(queue.size() < maxFree)
+            queue.push(buffer);
+    }
+
+    /**
+     * @return index of the smallest size class holding capacity bytes
+     */
+    private static int sizeClass(int capacity)
+    {
+        if(capacity <= MIN_CAPACITY)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - Integer.numberOfTrailingZeros(MIN_CAPACITY);
+    }
+}
@@ -0,0 +1,42 @@
+package pkj;
+
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Output stream that puts the bytes written to it into a buffer,
+ * it can be pointed at another buffer so writing to caller supplied buffers doesn't allocate
+ */
+class ByteBufferOutputStream extends OutputStream
+{
+    // buffer receiving the bytes from its position
+    private ByteBuffer target;
+
+    /**
+     * Points the stream at another buffer
+     * @param target buffer receiving the bytes from its position
+     */
+    void reset(ByteBuffer target)
+    {
+        this.target = target;
+    }
+
+    /**
+     * @throws BufferOverflowException if the buffer is full
+     */
+    @Override
+    public void write(int b)
+    {
+        target.put((byte)b);
+    }
+
+    /**
+     * @throws BufferOverflowException if the bytes don't fit the buffer
+     */
+    @Override
+    public void write(byte[] b, int off, int len)
+    {
+        target.put(b, off, len);
+    }
+}
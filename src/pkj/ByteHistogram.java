@@ -0,0 +1,88 @@
+package pkj;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Counts byte values near memory bandwidth: bytes are loaded 8 at a time as a long
+ * and spread over {@link #WAYS} interleaved sub-histograms that are summed at the end,
+ * so a run of the same byte increments different counters in a row instead of waiting on
+ * the store of the previous increment of the same counter.
+ * A histogram keeps its sub-histograms between calls, it is not thread safe
+ */
+class ByteHistogram
+{
+    // number of interleaved sub-histograms
+    static final int WAYS = 4;
+    // views a byte array as longs, the byte order doesn't matter to a count
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    // the sub-histograms one after the other, sub-histogram k counts at k * 256
+    private final int[] ways = new int[WAYS * Compressor.ALPHABET_SIZE];
+
+    /**
+     * Counts the remaining bytes of src, its position is left unchanged
+     * @param src bytes to count
+     * @param counts filled with the count of each byte value, at least 256 long
+     */
+    void count(ByteBuffer src, int[] counts)
+    {
+        Arrays.fill(ways, 0);
+        if(src.hasArray())
+            countArray(src.array(), src.arrayOffset() + src.position(), src.arrayOffset() + src.limit());
+        else
+            countBuffer(src, src.position(), src.limit());
+        for(int symbol = 0; symbol < Compressor.ALPHABET_SIZE; ++symbol)
+        {
+            int count = 0;
+            for(int way = symbol; way < ways.length; way += Compressor.ALPHABET_SIZE)
+                count += ways[way];
+            counts[symbol] = count;
+        }
+    }
+
+    /**
+     * counts bytes [from, to) of a heap array into the sub-histograms
+     */
+    private void countArray(byte[] bytes, int from, int to)
+    {
+        int[] ways = this.ways;
+        int i = from;
+        for(int end = to - 7; i < end; i += 8)
+            countWord(ways, (long)LONGS.get(bytes, i));
+        for(; i < to; ++i)
+            ++ways[bytes[i] & 0xFF];
+    }
+
+    /**
+     * counts bytes [from, to) of a direct or read only buffer into the sub-histograms
+     */
+    private void countBuffer(ByteBuffer src, int from, int to)
+    {
+        int[] ways = this.ways;
+        int i = from;
+        for(int end = to - 7; i < end; i += 8)
+            countWord(ways, src.getLong(i));
+        for(; i < to; ++i)
+            ++ways[src.get(i) & 0xFF];
+    }
+
+    /**
+     * counts the 8 bytes of word, two bytes per sub-histogram
+     */
+    private static void countWord(int[] ways, long word)
+    {
+        int low = (int)word, high = (int)(word >>> 32);
+        ++ways[low & 0xFF];
+        ++ways[256 + (low >>> 8 & 0xFF)];
+        ++ways[512 + (low >>> 16 & 0xFF)];
+        ++ways[768 + (low >>> 24)];
+        ++ways[high & 0xFF];
+        ++ways[256 + (high >>> 8 & 0xFF)];
+        ++ways[512 + (high >>> 16 & 0xFF)];
+        ++ways[768 + (high >>> 24)];
+    }
+}
@@ -0,0 +1,253 @@
+package pkj;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Canonical huffman codes: only the code length of each symbol is stored,
+ * codes are then handed out in increasing order of (length, symbol) so both sides
+ * rebuild exactly the same codes from the lengths alone
+ */
+final class CanonicalCode
+{
+    // longest code length that fits the int codes used by BitWriter and HuffmanDecoder
+    static final int MAX_LENGTH = 32;
+
+    private CanonicalCode()
+    {
+    }
+
+    /**
+     * Assigns canonical codes to every symbol that has a non zero length
+     * @param lengths code length of each symbol, 0 if the symbol doesn't occur
+     * @param codes filled with the code of each symbol, right aligned
+     * @return length of the longest code
+     */
+    static int assignCodes(int[] lengths, int[] codes)
+    {
+        return assignCodes(lengths, codes, new int[MAX_LENGTH + 2]);
+    }
+
+    /**
+     * Assigns canonical codes to every symbol that has a non zero length, without allocating
+     * @param lengths code length of each symbol, 0 if the symbol doesn't occur
+     * @param codes filled with the code of each symbol, right aligned
+     * @param nextCode scratch space of at least MAX_LENGTH + 2 ints, overwritten
+     * @return length of the longest code
+     */
+    static int assignCodes(int[] lengths, int[] codes, int[] nextCode)
+    {
+        Arrays.fill(nextCode, 0, MAX_LENGTH + 2, 0);
+        int maxLength = 0;
+        for(int length : lengths)
+        {
+            if(length > MAX_LENGTH)
+                throw new IllegalStateException("Huffman code longer than " + MAX_LENGTH + " bits");
+            ++nextCode[length];
+            maxLength = Math.max(maxLength, length);
+        }
+        // the counts of each length are replaced in place by the first code of that length
+        int code = 0, previousCount = 0;
+        for(int length = 1; length <= MAX_LENGTH; ++length)
+        {
+            int count = nextCode[length];
+            code = (code + previousCount) << 1;
+            nextCode[length] = code;
+            previousCount = count;
+        }
+        for(int symbol = 0; symbol < lengths.length; ++symbol)
+            if(lengths[symbol] != 0)
+                codes[symbol] = nextCode[lengths[symbol]]++;
+        return maxLength;
+    }
+
+    /**
+     * Writes the code lengths as a compact binary table:
+     * the longest length, the number of runs of consecutive present symbols,
+     * then for each run the gap since the previous run, its size and its lengths,
+     * packed two per byte when every length fits in 4 bits
+     * @param lengths code length of each symbol, 0 if the symbol doesn't occur
+     * @param out stream to write the table to
+     * @throws IOException if writing fails
+     */
+    static void writeLengths(int[] lengths, DataOutputStream out) throws IOException
+    {
+        int maxLength = 0, runs = 0;
+        for(int symbol = 0; symbol < lengths.length; ++symbol)
+        {
+            maxLength = Math.max(maxLength, lengths[symbol]);
+            if(lengths[symbol] != 0 && (symbol == 0 || lengths[symbol - 1] == 0))
+                ++runs;
+        }
+        out.writeByte(maxLength);
+        writeVarInt(out, runs);
+        boolean nibbles = maxLength <= 15;
+        int previousEnd = 0;
+        for(int symbol = 0; symbol < lengths.length; )
+        {
+            if(lengths[symbol] == 0)
+            {
+                ++symbol;
+                continue;
+            }
+            int end = symbol;
+            while(end < lengths.length && lengths[end] != 0)
+                ++end;
+            writeVarInt(out, symbol - previousEnd);
+            writeVarInt(out, end - symbol);
+            for(int i = symbol; i < end; i += nibbles ? 2 : 1)
+            {
+                if(!nibbles)
+                    out.writeByte(lengths[i]);
+                else
+                    out.writeByte(lengths[i] << 4 | (i + 1 < end ? lengths[i + 1] : 0));
+            }
+            previousEnd = symbol = end;
+        }
+    }
+
+    /**
+     * Returns the size of the table {@link #writeLengths(int[], DataOutputStream)} writes, without writing it
+     * @param lengths code length of each symbol, 0 if the symbol doesn't occur
+     * @return size of the table in bytes
+     */
+    static int tableSize(int[] lengths)
+    {
+        int maxLength = 0, runs = 0, size = 0, previousEnd = 0;
+        for(int length : lengths)
+            maxLength = Math.max(maxLength, length);
+        for(int symbol = 0; symbol < lengths.length; )
+        {
+            if(lengths[symbol] == 0)
+            {
+                ++symbol;
+                continue;
+            }
+            int end = symbol;
+            while(end < lengths.length && lengths[end] != 0)
+                ++end;
+            ++runs;
+            size += varIntSize(symbol - previousEnd) + varIntSize(end - symbol);
+            size += maxLength <= 15 ? (end - symbol + 1) / 2 : end - symbol;
+            previousEnd = symbol = end;
+        }
+        return 1 + varIntSize(runs) + size;
+    }
+
+    /**
+     * @return number of bytes {@link #writeVarInt(DataOutputStream, int)} writes for value
+     */
+    static int varIntSize(int value)
+    {
+        int size = 1;
+        while((value & ~0x7F) != 0)
+        {
+            ++size;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    /**
+     * Reads a table written by {@link #writeLengths(int[], DataOutputStream)}
+     * @param in buffer positioned at the start of the table
+     * @param lengths filled with the code length of each symbol, absent symbols are set to 0
+     * @throws IllegalArgumentException if the table doesn't fit the alphabet
+     */
+    static void readLengths(ByteBuffer in, int[] lengths)
+    {
+        Arrays.fill(lengths, 0);
+        int maxLength = in.get() & 0xFF;
+        if(maxLength > MAX_LENGTH)
+            throw new IllegalArgumentException("Corrupted code length table");
+        boolean nibbles = maxLength <= 15;
+        int runs = readVarInt(in);
+        int symbol = 0;
+        for(int run = 0; run < runs; ++run)
+        {
+            symbol += readVarInt(in);
+            int end = symbol + readVarInt(in);
+            // the sums overflow on crafted gaps and sizes
+            if(symbol < 0 || end < symbol || end > lengths.length)
+                throw new IllegalArgumentException("Corrupted code length table");
+            for(; symbol < end; symbol += nibbles ? 2 : 1)
+            {
+                int b = in.get() & 0xFF;
+                if(!nibbles)
+                    lengths[symbol] = b;
+                else
+                {
+                    lengths[symbol] = b >>> 4;
+                    if(symbol + 1 < end)
+                        lengths[symbol + 1] = b & 0x0F;
+                }
+                if(lengths[symbol] > maxLength || symbol + 1 < end && lengths[symbol + 1] > maxLength)
+                    throw new IllegalArgumentException("Corrupted code length table");
+            }
+            symbol = end;
+        }
+        if(!isPrefixFree(lengths))
+            throw new IllegalArgumentException("Corrupted code length table");
+    }
+
+    /**
+     * Checks that code lengths can be given prefix free codes: each length is at most {@link #MAX_LENGTH}
+     * and the Kraft sum of 2^-length over the present symbols is at most 1
+     * @param lengths code length of each symbol, 0 if the symbol doesn't occur
+     * @return whether canonical codes of these lengths exist
+     */
+    static boolean isPrefixFree(int[] lengths)
+    {
+        // the sum scaled by 2^MAX_LENGTH, at most 2^39 for 256 symbols
+        long kraft = 0;
+        for(int length : lengths)
+        {
+            if(length < 0 || length > MAX_LENGTH)
+                return false;
+            if(length != 0)
+                kraft += 1L << (MAX_LENGTH - length);
+        }
+        return kraft <= 1L << MAX_LENGTH;
+    }
+
+    /**
+     * Writes a non negative int in 7 bit groups, least significant group first
+     * @param out stream to write to
+     * @param value value to write
+     * @throws IOException if writing fails
+     */
+    static void writeVarInt(DataOutputStream out, int value) throws IOException
+    {
+        while((value & ~0x7F) != 0)
+        {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Reads an int written by {@link #writeVarInt(DataOutputStream, int)}
+     * @param in buffer to read from
+     * @return the value read, not negative
+     * @throws IllegalArgumentException if the varint is longer than 5 bytes or doesn't fit a non negative int
+     */
+    static int readVarInt(ByteBuffer in)
+    {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7)
+        {
+            int b = in.get() & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+            {
+                if(value < 0 || shift == 28 && b > 0x07)
+                    break;
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Corrupted varint");
+    }
+}
@@ -0,0 +1,122 @@
+package pkj;
+
+import java.util.Arrays;
+
+/**
+ * Computes huffman code lengths with primitive arrays only, no tree nodes are allocated:
+ * the used symbols are sorted by frequency once, then the in-place algorithm of Moffat and Katajainen
+ * turns the sorted weights into parent pointers, then depths of internal nodes, then leaf depths,
+ * all inside the same array in linear time.
+ * A builder keeps its scratch arrays so repeated builds don't allocate, it is not thread safe
+ */
+class CodeLengthBuilder
+{
+    // bits of a key holding the symbol, alphabets of up to 1 << SYMBOL_BITS symbols are supported
+    private static final int SYMBOL_BITS = 9;
+    private static final long SYMBOL_MASK = (1 << SYMBOL_BITS) - 1;
+
+    // frequency << SYMBOL_BITS | symbol of every used symbol, sorted so ties are broken by symbol
+    private final long[] keys = new long[1 << SYMBOL_BITS];
+    // weights of the sorted symbols, overwritten in place by parents then depths then code lengths
+    private final long[] work = new long[1 << SYMBOL_BITS];
+
+    /**
+     * Fills the huffman code length of each symbol, codes longer than maxLength
+     * are avoided by switching to package-merge
+     * @param freq frequency of each symbol, such as the byte values, at most 512 symbols
+     * @param codeLengths filled with the code length of each symbol, 0 for absent symbols
+     * @param maxLength longest allowed code
+     */
+    void build(long[] freq, int[] codeLengths, int maxLength)
+    {
+        Arrays.fill(codeLengths, 0);
+        long max = 0;
+        for(long weight : freq)
+            max = Math.max(max, weight);
+        // the symbol takes the low bits of a key, weights beyond the remaining bits are scaled down to fit
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(max) - (63 - SYMBOL_BITS));
+        int n = 0;
+        for(int symbol = 0; symbol < freq.length; ++symbol)
+            if(freq[symbol] != 0)
+                keys[n++] = (Math.max(freq[symbol] >>> shift, 1) << SYMBOL_BITS) | symbol;
+        if(n == 0)
+            return;
+        if(n == 1)
+        {
+            // a single byte value still needs a one bit code
+            codeLengths[(int)(keys[0] & SYMBOL_MASK)] = 1;
+            return;
+        }
+        Arrays.sort(keys, 0, n);
+        for(int i = 0; i < n; ++i)
+            work[i] = keys[i] >>> SYMBOL_BITS;
+
+        computeLengths(work, n);
+        for(int i = 0; i < n; ++i)
+        {
+            if(work[i] > maxLength)
+            {
+                LengthLimitedCode.packageMerge(freq, maxLength, codeLengths);
+                return;
+            }
+            codeLengths[(int)(keys[i] & SYMBOL_MASK)] = (int)work[i];
+        }
+    }
+
+    /**
+     * Moffat and Katajainen's in-place minimum redundancy code computation
+     * @param a weights sorted ascending, replaced by the code length of each position
+     * @param n number of weights, at least 2
+     */
+    private static void computeLengths(long[] a, int n)
+    {
+        // phase 1: combine the two lightest items, internal nodes reuse the slots of consumed leaves
+        // and each stores the index of its parent once it is itself combined
+        a[0] += a[1];
+        int root = 0, leaf = 2;
+        for(int next = 1; next < n - 1; ++next)
+        {
+            if(leaf >= n || a[root] < a[leaf])
+            {
+                a[next] = a[root];
+                a[root++] = next;
+            }
+            else
+                a[next] = a[leaf++];
+
+            if(leaf >= n || (root < next && a[root] < a[leaf]))
+            {
+                a[next] += a[root];
+                a[root++] = next;
+            }
+            else
+                a[next] += a[leaf++];
+        }
+
+        // phase 2: turn parent pointers into depths of the internal nodes, the root is last
+        a[n - 2] = 0;
+        for(int next = n - 3; next >= 0; --next)
+            a[next] = a[(int)a[next]] + 1;
+
+        // phase 3: count the internal nodes at each depth to get the number of leaves at the next one
+        int available = 1, used = 0, depth = 0;
+        root = n - 2;
+        int next = n - 1;
+        while(available > 0)
+        {
+            while(root >= 0 && a[root] == depth)
+            {
+                ++used;
+                --root;
+            }
+            while(available > used)
+            {
+                a[next--] = depth;
+                --available;
+            }
+            available = 2 * used;
+            ++depth;
+            used = 0;
+        }
+    }
+}
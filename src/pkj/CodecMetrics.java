@@ -0,0 +1,67 @@
+package pkj;
+
+/**
+ * Receives measurements of the stages of compression and decompression, once per block and stage.
+ * Every method does nothing by default so an implementation only overrides what it keeps.
+ * Blocks are coded on several threads at once, so an implementation shared by threads must be thread safe,
+ * {@link MetricsRecorder} is one that aggregates everything in memory
+ */
+public interface CodecMetrics
+{
+    /**
+     * metrics that discard everything, the default of every compressor and codec
+     */
+    CodecMetrics NONE = new CodecMetrics() {};
+
+    /**
+     * stage of the pipeline a measured time is spent in
+     */
+    enum Stage
+    {
+        /**
+         * reading the input of a block
+         */
+        READ,
+        /**
+         * counting the byte frequencies of a block
+         */
+        COUNT,
+        /**
+         * building the code lengths of a block, and the context tables and matches it is compared with
+         */
+        BUILD,
+        /**
+         * coding the payload of a block
+         */
+        ENCODE,
+        /**
+         * decoding the payload of a block
+         */
+        DECODE,
+        /**
+         * writing the output of a block
+         */
+        WRITE
+    }
+
+    /**
+     * Records the time one block spent in a stage
+     * @param stage stage of the pipeline
+     * @param nanos elapsed time in nanoseconds
+     * @param bytes number of bytes the stage went through: raw bytes except for reading compressed blocks
+     */
+    default void recordStage(Stage stage, long nanos, long bytes)
+    {
+    }
+
+    /**
+     * Records a block that was encoded
+     * @param rawLength number of bytes of the block
+     * @param encodedLength number of bytes of the encoded block, header included
+     * @param headerLength number of bytes of its header and code tables
+     * @param symbols number of symbols coded: bytes, or literals and matches after a pre-transform stage
+     */
+    default void recordBlock(int rawLength, int encodedLength, int headerLength, int symbols)
+    {
+    }
+}
@@ -0,0 +1,374 @@
+package pkj;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+
+/**
+ * Non interactive entry point used when {@link Main} is started with arguments:
+ * <pre>
+ * compress &lt;file|directory&gt; [-o output] [--archive] [--cache index] [--threads n] [--memory MB]
+ *          [--block-size n] [--level fast|default|best] [--rle | --lz77] [--context] [--stats]
+ * decompress &lt;file&gt; [-o output] [--stats]
+ * list &lt;archive&gt;
+ * extract &lt;archive&gt; [-o directory]
+ * serve &lt;port&gt; [--threads n] [--block-size n] [--level fast|default|best] [--rle | --lz77] [--context] [--stats]
+ * </pre>
+ * A directory is compressed to a directory of .huf files next to it, or to a single archive with --archive,
+ * --cache keeps an index of the compressed files so the next run only compresses the files that changed,
+ * --stats prints the time spent in each stage and the sizes of the blocks once the command is done.
+ * serve runs a {@link CompressionServer} on the loopback address with --threads event loops until the process ends
+ */
+class CommandLine
+{
+    // exit status of a run where every file was processed
+    static final int OK = 0;
+    // exit status of a run where some file failed
+    static final int FAILED = 1;
+    // exit status of invalid arguments
+    static final int USAGE = 2;
+
+    // receives listings and reports
+    private final PrintStream out;
+    // receives errors and usage
+    private final PrintStream err;
+
+    CommandLine(PrintStream out, PrintStream err)
+    {
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * Runs one command on the standard streams
+     * @param args command and its options
+     * @return exit status
+     */
+    static int run(String[] args)
+    {
+        return new CommandLine(System.out, System.err).execute(args);
+    }
+
+    /**
+     * Runs one command
+     * @param args command and its options
+     * @return exit status
+     */
+    int execute(String[] args)
+    {
+        try
+        {
+            Options options = new Options(args);
+            switch(options.command)
+            {
+                case "compress":
+                {
+                    int status = compress(options);
+                    options.printStats(out);
+                    return status;
+                }
+                case "decompress":
+                {
+                    Decompressor decompressor = new Decompressor(options.input);
+                    decompressor.setMetrics(options.metrics);
+                    decompressor.decompress(options.output(""));
+                    options.printStats(out);
+                    return OK;
+                }
+                case "list":
+                    for(ArchiveReader.Entry entry : new ArchiveReader(options.input).getEntries())
+                        out.println(entry.getSize() + "\t" + entry.getCompressedSize() + "\t" + entry.getName());
+                    return OK;
+                case "extract":
+                    new ArchiveReader(options.input).extractAll(Paths.get(options.output(".d")));
+                    return OK;
+                case "serve":
+                    serve(options);
+                    return OK;
+                default:
+                    throw new IllegalArgumentException("Unknown command: " + options.command);
+            }
+        }
+        catch(IllegalArgumentException e)
+        {
+            err.println(e.getMessage());
+            usage();
+            return USAGE;
+        }
+        catch(IOException e)
+        {
+            err.println("Error: " + e.getMessage());
+            return FAILED;
+        }
+    }
+
+    /**
+     * compresses a file, or a directory to a directory or an archive
+     */
+    private int compress(Options options) throws IOException
+    {
+        if(!Files.isDirectory(options.input))
+        {
+            HuffmanCodec codec = options.newCodec();
+            try(InputStream in = new BufferedInputStream(Files.newInputStream(options.input));
+                OutputStream file = new BufferedOutputStream(Files.newOutputStream(Paths.get(options.output(BatchCompressor.SUFFIX)))))
+            {
+                codec.compress(in, file);
+            }
+            return OK;
+        }
+        BatchCompressor batch = new BatchCompressor(options.input);
+        batch.setCodecFactory(options::newCodec);
+        if(options.threads > 0)
+            batch.setParallelism(options.threads);
+        if(options.memory > 0)
+            batch.setMaxInFlightBytes(options.memory << 20);
+        CompressionCache cache = null;
+        if(options.cache != null)
+        {
+            if(options.archive)
+                throw new IllegalArgumentException("--cache doesn't apply to archives");
+            cache = new CompressionCache(Paths.get(options.cache));
+            batch.setCache(cache);
+        }
+        BatchCompressor.Result result = options.archive
+                ? batch.compressToArchive(Paths.get(options.output(".hua")))
+                : batch.compressToDirectory(Paths.get(options.output(BatchCompressor.SUFFIX)));
+        for(Map.Entry<Path, IOException> failure : result.getFailures().entrySet())
+            err.println(failure.getKey() + ": " + failure.getValue().getMessage());
+        out.println(result.getFileCount() + " files, " + result.getInputBytes() + " -> " + result.getOutputBytes() + " bytes");
+        if(cache != null)
+            out.println(cache.getMisses() + " compressed, " + cache.getHits() + " unchanged, " + cache.getLinks() + " reused by content");
+        return result.getFailures().isEmpty() ? OK : FAILED;
+    }
+
+    /**
+     * serves requests until the process ends
+     */
+    private void serve(Options options) throws IOException
+    {
+        CompressionServer server = new CompressionServer(Options.port(options.input.toString()));
+        server.setCodecFactory(options::newCodec);
+        if(options.threads > 0)
+            server.setEventLoops(options.threads);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() ->
+        {
+            try
+            {
+                server.close();
+            }
+            catch(IOException ignored)
+            {
+            }
+            options.printStats(out);
+        }));
+        out.println("Listening on " + server.getLocalAddress());
+        while(true)
+        {
+            try
+            {
+                Thread.sleep(Long.MAX_VALUE);
+            }
+            catch(InterruptedException e)
+            {
+                server.close();
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * prints the accepted commands
+     */
+    private void usage()
+    {
+        err.println("usage: compress <file|directory> [-o output] [--archive] [--cache index] [--threads n] [--memory MB]");
+        err.println("                [--block-size n] [--level fast|default|best] [--rle | --lz77] [--context] [--stats]");
+        err.println("       decompress <file> [-o output] [--stats]");
+        err.println("       list <archive>");
+        err.println("       extract <archive> [-o directory]");
+        err.println("       serve <port> [--threads n] [--block-size n] [--level fast|default|best] [--rle | --lz77] [--context] [--stats]");
+    }
+
+    /**
+     * parsed arguments of a command
+     */
+    private static final class Options
+    {
+        // command name
+        private final String command;
+        // file or directory the command reads
+        private final Path input;
+        // output path given with -o, null for the default
+        private String output;
+        // write a single archive instead of a directory
+        private boolean archive;
+        // index file of the compressed files given with --cache, null for none
+        private String cache;
+        // worker count, 0 for the default
+        private int threads;
+        // in flight memory budget in MB, 0 for the default
+        private long memory;
+        // block size of the codecs, 0 for the default
+        private int blockSize;
+        // preset of the codecs
+        private CompressionLevel level = CompressionLevel.DEFAULT;
+        // stage run before huffman coding, null to keep the one of the level
+        private PreTransform preTransform;
+        // code blocks with order-1 context tables, on top of the level
+        private boolean contextModeling;
+        // receives the stages of every codec, a recorder with --stats
+        private CodecMetrics metrics = CodecMetrics.NONE;
+
+        Options(String[] args)
+        {
+            if(args.length < 2)
+                throw new IllegalArgumentException("Missing command or input");
+            command = args[0];
+            input = Paths.get(args[1]);
+            for(int i = 2; i < args.length; ++i)
+            {
+                switch(args[i])
+                {
+                    case "-o":
+                        output = value(args, ++i);
+                        break;
+                    case "--archive":
+                        archive = true;
+                        break;
+                    case "--cache":
+                        cache = value(args, ++i);
+                        break;
+                    case "--threads":
+                        threads = number(args, ++i);
+                        break;
+                    case "--memory":
+                        memory = number(args, ++i);
+                        break;
+                    case "--block-size":
+                        blockSize = number(args, ++i);
+                        break;
+                    case "--level":
+                        level = level(value(args, ++i));
+                        break;
+                    case "--rle":
+                        preTransform = PreTransform.RLE;
+                        break;
+                    case "--lz77":
+                        preTransform = PreTransform.LZ77;
+                        break;
+                    case "--context":
+                        contextModeling = true;
+                        break;
+                    case "--stats":
+                        metrics = new MetricsRecorder();
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+        }
+
+        /**
+         * @return the output path given with -o, or the input path followed by suffix
+         */
+        String output(String suffix)
+        {
+            if(output != null)
+                return output;
+            String name = input.toString();
+            if(suffix.isEmpty() && name.endsWith(BatchCompressor.SUFFIX))
+                return name.substring(0, name.length() - BatchCompressor.SUFFIX.length());
+            return name + (suffix.isEmpty() ? ".out" : suffix);
+        }
+
+        /**
+         * @return a codec configured by the options
+         */
+        HuffmanCodec newCodec()
+        {
+            HuffmanCodec codec = blockSize > 0 ? new HuffmanCodec(blockSize) : new HuffmanCodec();
+            codec.setLevel(level);
+            if(preTransform != null)
+                codec.setPreTransform(preTransform);
+            if(contextModeling)
+                codec.setContextModeling(true);
+            codec.setMetrics(metrics);
+            return codec;
+        }
+
+        /**
+         * prints what the metrics recorded, if --stats was given
+         */
+        void printStats(PrintStream out)
+        {
+            if(metrics != CodecMetrics.NONE)
+                out.println(metrics);
+        }
+
+        /**
+         * @return the argument at index
+         */
+        private static String value(String[] args, int index)
+        {
+            if(index >= args.length)
+                throw new IllegalArgumentException("Missing value for " + args[index - 1]);
+            return args[index];
+        }
+
+        /**
+         * @return the level named name, in any case
+         */
+        private static CompressionLevel level(String name)
+        {
+            for(CompressionLevel level : CompressionLevel.values())
+                if(level.name().equalsIgnoreCase(name))
+                    return level;
+            throw new IllegalArgumentException("Invalid level: " + name);
+        }
+
+        /**
+         * @return the port number in value
+         */
+        private static int port(String value)
+        {
+            try
+            {
+                int port = Integer.parseInt(value);
+                if(port >= 0 && port <= 0xFFFF)
+                    return port;
+            }
+            catch(NumberFormatException ignored)
+            {
+            }
+            throw new IllegalArgumentException("Invalid port: " + value);
+        }
+
+        /**
+         * @return the positive number at index
+         */
+        private static int number(String[] args, int index)
+        {
+            String value = value(args, index);
+            try
+            {
+                int number = Integer.parseInt(value);
+                if(number > 0)
+                    return number;
+            }
+            catch(NumberFormatException ignored)
+            {
+            }
+            throw new IllegalArgumentException("Invalid value for " + args[index - 1] + ": " + value);
+        }
+    }
+}
@@ -0,0 +1,537 @@
+package pkj;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On disk index of the files compressed by earlier runs, so a batch run over a tree that mostly didn't change
+ * only compresses the files that did, see {@link BatchCompressor#setCache(CompressionCache)}.
+ * Each entry maps an input file (its size, modification time and {@link ContentHash} hash) and the settings
+ * of the codec to the compressed file written for it. A file whose size and modification time match its entry
+ * is skipped without being read, unless the entry is racy: as in git, a file rewritten within the tick of
+ * a coarse file system clock keeps its size and modification time, so an entry whose modification time is less
+ * than {@link #RACY_WINDOW} before the last time the entry was known to match (the modification time of its
+ * compressed file, or of the index of the run that confirmed it) is only trusted once the file is hashed again.
+ * Otherwise, when an entry has the same size and settings, it is hashed:
+ * if its content matches an entry whose compressed file is still intact that file is hard linked
+ * (or copied where links aren't supported) instead of compressing again, which also covers files moved or copied
+ * since the last run. The link is checked to still have the size and modification time of that compressed file,
+ * else the input is compressed. A file that is compressed is hashed from the very bytes the codec reads, and it is only
+ * recorded if its size and modification time are the same after it was read, so an entry never pairs
+ * a hash with a compressed file of another content.
+ * Compressed files are written to a temporary file then moved in place, so a linked file is never
+ * overwritten through one of its links.
+ * The index keeps at most a fixed number of entries: when saved, the ones used the longest ago are dropped.
+ * Lookups may run concurrently, saving may not run during them.
+ * Index layout:
+ * <pre>
+ * header  : magic "HUC", version, run number (long), entry count (int)
+ * entries : input path and compressed path (varint length + UTF-8 each), input size, input modification time,
+ *           content hash, codec settings, compressed size, compressed modification time, time the entry was
+ *           last known to match, last run used (longs)
+ * </pre>
+ */
+public class CompressionCache
+{
+    /**
+     * writes the compressed form of a file
+     */
+    @FunctionalInterface
+    interface Output
+    {
+        /**
+         * @param in content of the file, to read to its end and leave open
+         * @param target file to write, doesn't exist yet
+         */
+        void write(InputStream in, Path target) throws IOException;
+    }
+
+    /**
+     * hashes the bytes read through it
+     */
+    private static final class HashingInputStream extends FilterInputStream
+    {
+        private final ContentHash hash = new ContentHash();
+        // target of read()
+        private final byte[] single = new byte[1];
+
+        HashingInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int n = in.read(b, off, len);
+            if(n > 0)
+                hash.update(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            // read rather than skipped so the bytes are hashed too
+            byte[] skipped = new byte[(int)Math.min(Math.max(n, 0), 1 << 13)];
+            long total = 0;
+            for(int read; total < n; total += read)
+            {
+                read = read(skipped, 0, (int)Math.min(skipped.length, n - total));
+                if(read == -1)
+                    break;
+            }
+            return total;
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+    }
+
+    /**
+     * a compressed file and the input it was written for
+     */
+    private static final class Entry
+    {
+        // absolute normalized paths of the input and of its compressed file
+        final String source;
+        final String artifact;
+        // size and modification time in ns of the input when it was compressed
+        final long size;
+        final long modified;
+        // hash of the input content
+        final long hash;
+        // settings of the codec, see HuffmanCodec.settings()
+        final long settings;
+        // size and modification time in ns of the compressed file, to tell whether it was changed since
+        final long compressedSize;
+        final long compressedModified;
+        // file system time in ns at which the input was last known to match the entry
+        final long checked;
+        // run that last used the entry
+        volatile long lastUsed;
+
+        Entry(String source, String artifact, long size, long modified, long hash, long settings,
+              long compressedSize, long compressedModified, long checked, long lastUsed)
+        {
+            this.source = source;
+            this.artifact = artifact;
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.settings = settings;
+            this.compressedSize = compressedSize;
+            this.compressedModified = compressedModified;
+            this.checked = checked;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    // first bytes of an index
+    static final byte[] MAGIC = {'H', 'U', 'C'};
+    // version of the index layout written by this code
+    static final int VERSION = 2;
+    // time in ns within which a modification time may share its tick with a later write: 2s, the coarsest
+    // clock of the common file systems (FAT)
+    static final long RACY_WINDOW = TimeUnit.SECONDS.toNanos(2);
+
+    // file the index is loaded from and saved to
+    private final Path index;
+    // number of this run, entries used by it are the last evicted
+    private final long run;
+    // modification time in ns of the index when it was loaded, 0 if there was none
+    private final long indexModified;
+    // entry of each input path
+    private final Map<String, Entry> sources = new ConcurrentHashMap<>();
+    // entry of each content and settings, the last one recorded when several inputs have the same content
+    private final Map<Long, Entry> contents = new ConcurrentHashMap<>();
+    // size and settings of every content recorded since the index was loaded, only inputs matching one are hashed
+    // before compressing, a size of a dropped entry costs an extra read at most
+    private final Set<Long> contentSizes = ConcurrentHashMap.newKeySet();
+    // most entries kept when saving
+    private int maxEntries = 1 << 20;
+    // inputs skipped unread, inputs whose compressed file was linked or copied, inputs compressed
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong links = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    // numbers the temporary files
+    private final AtomicLong temporaryFiles = new AtomicLong();
+
+    /**
+     * Loads an index, or starts an empty one if the file doesn't exist
+     * @param index file of the index
+     * @throws IOException if reading fails or the index is corrupted
+     */
+    public CompressionCache(Path index) throws IOException
+    {
+        this.index = index;
+        boolean exists = Files.exists(index);
+        indexModified = exists ? modified(index) : 0;
+        run = exists ? load() + 1 : 1;
+    }
+
+    /**
+     * Caps the number of entries kept when the index is saved, the ones used the longest ago are dropped.
+     * An entry takes about 60 bytes plus its two paths, 1M entries by default
+     * @param maxEntries number of entries, at least 1
+     * @throws IllegalArgumentException if maxEntries is less than 1
+     */
+    public void setMaxEntries(int maxEntries)
+    {
+        if(maxEntries < 1)
+            throw new IllegalArgumentException("Invalid entry count: " + maxEntries);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int size()
+    {
+        return sources.size();
+    }
+
+    /**
+     * @return number of inputs skipped since the index was loaded because their size and modification time didn't change,
+     *         including racy ones whose hash was confirmed
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return number of inputs whose content was found unchanged by its hash, or under another path,
+     *         and whose compressed file was reused
+     */
+    public long getLinks()
+    {
+        return links.get();
+    }
+
+    /**
+     * @return number of inputs that had to be compressed
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Brings the compressed file of an input up to date, reusing the one of an earlier run when possible
+     * @param file input file
+     * @param size size of the input
+     * @param settings settings of the codec, see {@link HuffmanCodec#settings()}
+     * @param target compressed file to bring up to date
+     * @param buffer heap buffer of at least {@link ContentHash#BUFFER_SIZE} bytes the input is hashed through
+     *               when it may match a recorded content
+     * @param output compresses the input, called when nothing can be reused
+     * @return size of the compressed file
+     * @throws IOException if reading the input, or writing, linking or copying the compressed file fails
+     */
+    long refresh(Path file, long size, long settings, Path target, ByteBuffer buffer, Output output) throws IOException
+    {
+        String source = key(file), artifact = key(target);
+        long modified = modified(file);
+        Entry entry = sources.get(source);
+        long hash = 0, length = size;
+        boolean hashed = false;
+        if(entry != null && entry.size == size && entry.modified == modified && entry.settings == settings
+                && entry.artifact.equals(artifact) && intact(entry))
+        {
+            if(entry.checked - entry.modified < RACY_WINDOW)
+            {
+                hash = hash(file, buffer);
+                hashed = true;
+                if(hash == entry.hash && unchanged(file, size, modified))
+                {
+                    // matched after the index was saved, so at least that late
+                    entry = new Entry(source, artifact, size, modified, hash, settings, entry.compressedSize,
+                            entry.compressedModified, Math.max(entry.checked, indexModified), run);
+                    put(entry);
+                }
+                else
+                    entry = null;
+            }
+            if(entry != null)
+            {
+                entry.lastUsed = run;
+                hits.incrementAndGet();
+                return entry.compressedSize;
+            }
+        }
+        Entry same = null;
+        if(contentSizes.contains(contentKey(size, settings)))
+        {
+            if(!hashed)
+                hash = hash(file, buffer);
+            same = contents.get(contentKey(hash, settings));
+            // a content that changed while it was hashed can't be matched
+            if(same != null && !(same.size == size && same.hash == hash && same.settings == settings && intact(same)
+                    && unchanged(file, size, modified)))
+                same = null;
+        }
+        Path temporary = target.resolveSibling(target.getFileName() + "." + temporaryFiles.incrementAndGet() + ".tmp");
+        try
+        {
+            if(same != null && !same.artifact.equals(artifact))
+            {
+                link(Paths.get(same.artifact), temporary);
+                // the compressed file may have been rewritten since it was found intact, then it is compressed again
+                if(Files.size(temporary) == same.compressedSize && modified(temporary) == same.compressedModified)
+                    Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                else
+                {
+                    Files.delete(temporary);
+                    same = null;
+                }
+            }
+            if(same != null)
+                links.incrementAndGet();
+            else
+            {
+                try(HashingInputStream in = new HashingInputStream(Files.newInputStream(file)))
+                {
+                    output.write(in, temporary);
+                    hash = in.hash.finish();
+                    length = in.hash.length();
+                }
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                misses.incrementAndGet();
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(temporary);
+        }
+        long compressedSize = Files.size(target), compressedModified = modified(target);
+        if(length == size && unchanged(file, size, modified))
+            put(new Entry(source, artifact, size, modified, hash, settings, compressedSize,
+                    compressedModified, compressedModified, run));
+        else
+        {
+            // the input changed while it was read: its compressed file is kept but not recorded,
+            // so the next run compresses it again
+            remove(source);
+        }
+        return compressedSize;
+    }
+
+    /**
+     * @return the content hash of file, read through buffer
+     */
+    private static long hash(Path file, ByteBuffer buffer) throws IOException
+    {
+        try(FileChannel in = FileChannel.open(file))
+        {
+            return ContentHash.hash(in, buffer);
+        }
+    }
+
+    /**
+     * @return whether file still has the size and modification time it had before it was read
+     */
+    private static boolean unchanged(Path file, long size, long modified) throws IOException
+    {
+        return Files.size(file) == size && modified(file) == modified;
+    }
+
+    /**
+     * Writes the index, dropping the entries used the longest ago if there are more than the maximum
+     * @throws IOException if writing fails
+     */
+    public void save() throws IOException
+    {
+        List<Entry> entries = new ArrayList<>(sources.values());
+        if(entries.size() > maxEntries)
+        {
+            entries.sort(Comparator.comparingLong((Entry entry) -> entry.lastUsed).reversed());
+            for(Entry evicted : entries.subList(maxEntries, entries.size()))
+            {
+                sources.remove(evicted.source, evicted);
+                contents.remove(contentKey(evicted.hash, evicted.settings), evicted);
+            }
+            entries = entries.subList(0, maxEntries);
+        }
+        Path temporary = index.resolveSibling(index.getFileName() + ".tmp");
+        try(OutputStream file = Files.newOutputStream(temporary);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16)))
+        {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(run);
+            out.writeInt(entries.size());
+            for(Entry entry : entries)
+            {
+                writeString(out, entry.source);
+                writeString(out, entry.artifact);
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                out.writeLong(entry.hash);
+                out.writeLong(entry.settings);
+                out.writeLong(entry.compressedSize);
+                out.writeLong(entry.compressedModified);
+                out.writeLong(entry.checked);
+                out.writeLong(entry.lastUsed);
+            }
+        }
+        Files.move(temporary, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * reads the entries of the index
+     * @return number of the run that saved it
+     */
+    private long load() throws IOException
+    {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(index));
+        try
+        {
+            byte[] magic = new byte[MAGIC.length];
+            in.get(magic);
+            if(!Arrays.equals(magic, MAGIC))
+                throw new IOException("Not a cache index: " + index);
+            if((in.get() & 0xFF) != VERSION)
+                throw new IOException("Unsupported cache index version: " + index);
+            long savedRun = in.getLong();
+            int count = in.getInt();
+            if(count < 0)
+                throw new IOException("Corrupted cache index: " + index);
+            for(int i = 0; i < count; ++i)
+                put(new Entry(readString(in), readString(in), in.getLong(), in.getLong(), in.getLong(), in.getLong(),
+                        in.getLong(), in.getLong(), in.getLong(), in.getLong()));
+            return savedRun;
+        }
+        catch(BufferUnderflowException | IllegalArgumentException e)
+        {
+            throw new IOException("Corrupted cache index: " + index, e);
+        }
+    }
+
+    /**
+     * records an entry, replacing the one of the same input
+     */
+    private void put(Entry entry)
+    {
+        Entry previous = sources.put(entry.source, entry);
+        if(previous != null)
+            contents.remove(contentKey(previous.hash, previous.settings), previous);
+        contents.put(contentKey(entry.hash, entry.settings), entry);
+        contentSizes.add(contentKey(entry.size, entry.settings));
+    }
+
+    /**
+     * drops the entry of an input, if any
+     */
+    private void remove(String source)
+    {
+        Entry previous = sources.remove(source);
+        if(previous != null)
+            contents.remove(contentKey(previous.hash, previous.settings), previous);
+    }
+
+    /**
+     * @return whether the compressed file of entry is still the one written for it
+     */
+    private static boolean intact(Entry entry)
+    {
+        try
+        {
+            Path artifact = Paths.get(entry.artifact);
+            return Files.size(artifact) == entry.compressedSize
+                    && modified(artifact) == entry.compressedModified;
+        }
+        catch(IOException e)
+        {
+            // deleted or unreadable
+            return false;
+        }
+    }
+
+    /**
+     * @return modification time of file in ns, as precise as the file system records it
+     */
+    private static long modified(Path file) throws IOException
+    {
+        return Files.getLastModifiedTime(file).to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * creates target as a hard link to existing, or as a copy where links aren't supported
+     */
+    private static void link(Path existing, Path target) throws IOException
+    {
+        try
+        {
+            Files.createLink(target, existing);
+        }
+        catch(UnsupportedOperationException | FileSystemException e)
+        {
+            Files.copy(existing, target, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
+    /**
+     * @return the key of a content hashed with settings, or of a content size with settings
+     */
+    private static Long contentKey(long hash, long settings)
+    {
+        return hash * 31 + settings;
+    }
+
+    /**
+     * @return the absolute normalized path of file
+     */
+    private static String key(Path file)
+    {
+        return file.toAbsolutePath().normalize().toString();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        CanonicalCode.writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in)
+    {
+        int length = CanonicalCode.readVarInt(in);
+        if(length < 0 || length > in.remaining())
+            throw new IllegalArgumentException("Invalid string length: " + length);
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
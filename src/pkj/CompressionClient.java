@@ -0,0 +1,128 @@
+package pkj;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Blocking client of a {@link CompressionServer}, one connection sending one request at a time.
+ * The headers are read and written through buffers kept by the client, so a request allocates nothing.
+ * A client is not thread safe
+ */
+public class CompressionClient implements Closeable
+{
+    private final SocketChannel channel;
+    // header of the request, then of the response
+    private final ByteBuffer header = ByteBuffer.allocateDirect(CompressionServer.HEADER_SIZE);
+    // header and payload of the request, written together
+    private final ByteBuffer[] request = new ByteBuffer[2];
+
+    /**
+     * Connects to a server
+     * @param address address the server listens on
+     * @throws IOException if the connection fails
+     */
+    public CompressionClient(InetSocketAddress address) throws IOException
+    {
+        channel = SocketChannel.open(address);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        request[0] = header;
+    }
+
+    /**
+     * Compresses the remaining bytes of src on the server
+     * @param src bytes to compress, its position is moved to its limit
+     * @param dst receives the compressed container from its position, which is moved past it
+     * @return number of compressed bytes
+     * @throws IOException if the server answers with an error, dst is too small or the connection fails
+     */
+    public int compress(ByteBuffer src, ByteBuffer dst) throws IOException
+    {
+        return call(CompressionServer.OP_COMPRESS, src, dst);
+    }
+
+    /**
+     * Decompresses a container on the server
+     * @param src the container, from its position to its limit, its position is moved to its limit
+     * @param dst receives the decompressed bytes from its position, which is moved past them
+     * @return number of decompressed bytes
+     * @throws IOException if the server answers with an error, dst is too small or the connection fails
+     */
+    public int decompress(ByteBuffer src, ByteBuffer dst) throws IOException
+    {
+        return call(CompressionServer.OP_DECOMPRESS, src, dst);
+    }
+
+    /**
+     * sends one request and reads its response into dst
+     */
+    private int call(byte op, ByteBuffer src, ByteBuffer dst) throws IOException
+    {
+        header.clear();
+        header.put(op).putInt(src.remaining()).flip();
+        request[1] = src;
+        try
+        {
+            while(header.hasRemaining() || src.hasRemaining())
+                channel.write(request);
+        }
+        finally
+        {
+            request[1] = null;
+        }
+        header.clear();
+        readFully(header);
+        byte status = header.get(0);
+        int length = header.getInt(1);
+        if(status == CompressionServer.STATUS_ERROR)
+        {
+            ByteBuffer message = ByteBuffer.allocate(length);
+            readFully(message);
+            throw new IOException(new String(message.array(), 0, length, StandardCharsets.UTF_8));
+        }
+        if(status != CompressionServer.STATUS_OK || length < 0)
+        {
+            close();
+            throw new IOException("Invalid response from the server");
+        }
+        if(length > dst.remaining())
+        {
+            // the rest of the response can't be skipped without reading it, the connection is dropped instead
+            close();
+            throw new IOException("Destination too small for " + length + " bytes");
+        }
+        int limit = dst.limit();
+        dst.limit(dst.position() + length);
+        try
+        {
+            readFully(dst);
+        }
+        finally
+        {
+            dst.limit(limit);
+        }
+        return length;
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException
+    {
+        while(buffer.hasRemaining())
+            if(channel.read(buffer) == -1)
+                throw new EOFException("Connection closed by the server");
+    }
+
+    /**
+     * Closes the connection
+     * @throws IOException if closing fails
+     */
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
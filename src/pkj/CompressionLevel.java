@@ -0,0 +1,25 @@
+package pkj;
+
+/**
+ * Presets trading compression ratio for throughput, set with {@link Compressor#setLevel(CompressionLevel)}
+ * or {@link HuffmanCodec#setLevel(CompressionLevel)}. A level sets the table mode, the pre-transform stage
+ * and context modeling at once, options set afterwards override it
+ */
+public enum CompressionLevel
+{
+    /**
+     * one table estimated from a sample of the input and stored once in the header:
+     * coding starts right away in a single pass and no table is built nor stored per block,
+     * bytes missing from the sample still get (long) codes and a block the table doesn't shrink is stored
+     */
+    FAST,
+    /**
+     * a table built from the counts of each block, the default
+     */
+    DEFAULT,
+    /**
+     * a table per block compared with order-1 context tables and with LZ77 matches,
+     * each block keeps whichever codes it smallest
+     */
+    BEST
+}
@@ -0,0 +1,545 @@
+package pkj;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Serves compress and decompress requests over TCP, meant to run as a sidecar of local processes.
+ * Connections are spread round robin over a few event loops, each a thread with its own selector, codec and
+ * {@link BufferPool}: a request is read into a pooled direct buffer, coded into another one and written back,
+ * so once the pools are warm a request allocates nothing. The payload buffer grows as the bytes arrive
+ * rather than being reserved for the length a request announces. A connection may send any number of requests,
+ * one after the other, each answered in order.
+ * Protocol, integers big endian:
+ * <pre>
+ * request  : operation (byte, {@link #OP_COMPRESS} or {@link #OP_DECOMPRESS}), payload length (int), payload
+ * response : status (byte, {@link #STATUS_OK} or {@link #STATUS_ERROR}), payload length (int), payload
+ * </pre>
+ * The payload of an error is its UTF-8 message. A request with an unknown operation or a payload larger
+ * than the maximum gets an error and its connection is closed, a payload that fails to decompress
+ * only gets an error
+ */
+public class CompressionServer implements Closeable
+{
+    /**
+     * operation compressing the payload into a container
+     */
+    public static final byte OP_COMPRESS = 1;
+    /**
+     * operation decompressing a container
+     */
+    public static final byte OP_DECOMPRESS = 2;
+    /**
+     * status of a response holding the result
+     */
+    public static final byte STATUS_OK = 0;
+    /**
+     * status of a response holding an error message
+     */
+    public static final byte STATUS_ERROR = 1;
+    // bytes of the operation or status and the payload length
+    static final int HEADER_SIZE = 5;
+    // most free buffers a pool keeps per size class
+    private static final int POOLED_BUFFERS = 64;
+    // capacity of the payload buffer before any of the payload is read, doubled each time it fills
+    private static final int INITIAL_PAYLOAD_CAPACITY = 1 << 16;
+
+    // address the server listens on
+    private final InetSocketAddress address;
+    // number of event loops
+    private int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    // largest payload of a request and of a response
+    private int maxPayloadLength = 16 << 20;
+    // creates the codec of each event loop
+    private Supplier<HuffmanCodec> codecFactory = HuffmanCodec::new;
+    // receives the stages of every codec
+    private CodecMetrics metrics = CodecMetrics.NONE;
+    // listening socket, null until started
+    private ServerSocketChannel server;
+    // the event loops, the first one also accepts connections
+    private EventLoop[] loops;
+    // event loop the next connection goes to
+    private int nextLoop;
+    // set once closed
+    private volatile boolean closed;
+
+    /**
+     * Initializes a server listening on the loopback address
+     * @param port port to listen on, 0 for any free port
+     */
+    public CompressionServer(int port)
+    {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * Initializes a server
+     * @param address address to listen on
+     */
+    public CompressionServer(InetSocketAddress address)
+    {
+        this.address = address;
+    }
+
+    /**
+     * Sets the number of event loop threads, each serving its share of the connections
+     * @param eventLoops number of threads, at least 1
+     */
+    public void setEventLoops(int eventLoops)
+    {
+        if(eventLoops < 1)
+            throw new IllegalArgumentException("Invalid event loop count: " + eventLoops);
+        checkNotStarted();
+        this.eventLoops = eventLoops;
+    }
+
+    /**
+     * Sets the largest payload accepted in a request and sent in a response, 16 MB by default.
+     * Each event loop may pool a few buffers of about that size
+     * @param maxPayloadLength number of bytes, at least 1
+     */
+    public void setMaxPayloadLength(int maxPayloadLength)
+    {
+        if(maxPayloadLength < 1)
+            throw new IllegalArgumentException("Invalid payload length: " + maxPayloadLength);
+        checkNotStarted();
+        this.maxPayloadLength = maxPayloadLength;
+    }
+
+    /**
+     * Sets the factory of the codecs, one per event loop, to compress with other options than the defaults.
+     * The decompressing side reads its options from each container
+     * @param codecFactory creates a new codec on each call
+     */
+    public void setCodecFactory(Supplier<HuffmanCodec> codecFactory)
+    {
+        checkNotStarted();
+        this.codecFactory = codecFactory;
+    }
+
+    /**
+     * Sets the metrics receiving the stages of every request, shared by the event loops
+     * @param metrics metrics to record into, {@link CodecMetrics#NONE} to record nothing
+     */
+    public void setMetrics(CodecMetrics metrics)
+    {
+        if(metrics == null)
+            throw new IllegalArgumentException("Metrics can't be null");
+        checkNotStarted();
+        this.metrics = metrics;
+    }
+
+    /**
+     * Binds the listening socket and starts the event loops
+     * @throws IOException if the socket can't be bound
+     */
+    public synchronized void start() throws IOException
+    {
+        checkNotStarted();
+        if(closed)
+            throw new IllegalStateException("Server is closed");
+        server = ServerSocketChannel.open();
+        try
+        {
+            server.bind(address);
+            server.configureBlocking(false);
+            loops = new EventLoop[eventLoops];
+            for(int i = 0; i < loops.length; ++i)
+                loops[i] = new EventLoop(i);
+            server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        }
+        catch(IOException | RuntimeException e)
+        {
+            closeQuietly(server);
+            if(loops != null)
+                for(EventLoop loop : loops)
+                    if(loop != null)
+                        closeQuietly(loop.selector);
+            server = null;
+            loops = null;
+            throw e;
+        }
+        for(EventLoop loop : loops)
+            loop.thread.start();
+    }
+
+    /**
+     * @return address the server listens on, with the actual port when started on port 0
+     * @throws IOException if the address can't be read
+     */
+    public InetSocketAddress getLocalAddress() throws IOException
+    {
+        if(server == null)
+            throw new IllegalStateException("Server isn't started");
+        return (InetSocketAddress)server.getLocalAddress();
+    }
+
+    /**
+     * Stops the event loops and closes every connection, requests in progress are dropped
+     * @throws IOException if the listening socket can't be closed
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if(closed)
+            return;
+        closed = true;
+        if(loops == null)
+            return;
+        for(EventLoop loop : loops)
+            loop.selector.wakeup();
+        boolean interrupted = false;
+        for(EventLoop loop : loops)
+        {
+            while(true)
+            {
+                try
+                {
+                    loop.thread.join();
+                    break;
+                }
+                catch(InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        server.close();
+    }
+
+    private void checkNotStarted()
+    {
+        if(server != null)
+            throw new IllegalStateException("Server is already started");
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        try
+        {
+            if(closeable != null)
+                closeable.close();
+        }
+        catch(IOException ignored)
+        {
+        }
+    }
+
+    /**
+     * thread serving its connections with a selector
+     */
+    private final class EventLoop implements Runnable
+    {
+        private final Selector selector;
+        private final Thread thread;
+        // connections accepted by the first loop and not registered yet
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        // codes every request of the loop
+        private final HuffmanCodec codec;
+        // payload and result buffers of the requests
+        private final BufferPool pool;
+
+        EventLoop(int index) throws IOException
+        {
+            codec = codecFactory.get();
+            codec.setMetrics(metrics);
+            int maxLength = Math.max(maxPayloadLength, codec.maxCompressedLength(maxPayloadLength));
+            pool = new BufferPool(maxLength, POOLED_BUFFERS);
+            selector = Selector.open();
+            thread = new Thread(this, "huffman-server-" + index);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            // selected keys are handed to a consumer created once instead of iterated, so a select allocates nothing
+            Consumer<SelectionKey> handler = this::handle;
+            try
+            {
+                while(!closed)
+                {
+                    selector.select(handler);
+                    register();
+                }
+            }
+            catch(IOException e)
+            {
+                // the selector failed, its connections can't be served anymore
+            }
+            finally
+            {
+                for(SelectionKey key : selector.keys())
+                {
+                    if(key.attachment() instanceof Connection)
+                        ((Connection)key.attachment()).close(key);
+                }
+                for(SocketChannel channel = accepted.poll(); channel != null; channel = accepted.poll())
+                    closeQuietly(channel);
+                closeQuietly(selector);
+            }
+        }
+
+        /**
+         * serves one selected key
+         */
+        private void handle(SelectionKey key)
+        {
+            if(!key.isValid())
+                return;
+            if(key.isAcceptable())
+                accept();
+            else
+                ((Connection)key.attachment()).handle(key);
+        }
+
+        /**
+         * accepts the pending connections and hands them to the loops round robin,
+         * a failed accept (a connection reset before it was accepted, too many open files) drops that attempt
+         * and the key is selected again while connections are pending
+         */
+        private void accept()
+        {
+            try
+            {
+                for(SocketChannel channel = server.accept(); channel != null; channel = server.accept())
+                {
+                    EventLoop loop = loops[nextLoop];
+                    nextLoop = (nextLoop + 1) % loops.length;
+                    loop.accepted.add(channel);
+                    if(loop != this)
+                        loop.selector.wakeup();
+                }
+            }
+            catch(IOException e)
+            {
+                // only the selector failing ends the loop
+            }
+            register();
+        }
+
+        /**
+         * registers the connections handed to this loop
+         */
+        private void register()
+        {
+            for(SocketChannel channel = accepted.poll(); channel != null; channel = accepted.poll())
+            {
+                try
+                {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    channel.register(selector, SelectionKey.OP_READ, new Connection(this, channel));
+                }
+                catch(IOException e)
+                {
+                    closeQuietly(channel);
+                }
+            }
+        }
+    }
+
+    /**
+     * state of one connection: reading the header of a request, reading its payload, writing its response
+     */
+    private final class Connection
+    {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        // header of the request being read, then of the response being written
+        private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+        // header and result of the response, written together
+        private final ByteBuffer[] response = new ByteBuffer[2];
+        // payload of the request, pooled, null while reading a header
+        private ByteBuffer payload;
+        // length of the payload announced by the header
+        private int payloadLength;
+        // result of the request, pooled, null until the request is coded
+        private ByteBuffer result;
+        // whether the response is being written
+        private boolean writing;
+        // whether the connection closes once the response is written
+        private boolean closeAfterWrite;
+
+        Connection(EventLoop loop, SocketChannel channel)
+        {
+            this.loop = loop;
+            this.channel = channel;
+            response[0] = header;
+        }
+
+        /**
+         * makes as much progress as the socket allows
+         */
+        void handle(SelectionKey key)
+        {
+            try
+            {
+                if(writing ? write(key) : read(key))
+                    return;
+            }
+            catch(IOException e)
+            {
+                // the peer went away
+            }
+            close(key);
+        }
+
+        /**
+         * reads the request, codes it once complete and starts writing the response
+         * @return false if the connection is to be closed
+         */
+        private boolean read(SelectionKey key) throws IOException
+        {
+            if(payload == null)
+            {
+                if(channel.read(header) == -1)
+                    return false;
+                if(header.hasRemaining())
+                    return true;
+                int length = header.getInt(1);
+                byte op = header.get(0);
+                if(op != OP_COMPRESS && op != OP_DECOMPRESS)
+                    return fail(key, "Unknown operation: " + op, true);
+                if(length < 0 || length > maxPayloadLength)
+                    return fail(key, "Invalid payload length: " + length, true);
+                payloadLength = length;
+                payload = loop.pool.acquire(Math.min(length, INITIAL_PAYLOAD_CAPACITY));
+            }
+            while(true)
+            {
+                if(channel.read(payload) == -1)
+                    return false;
+                if(payload.position() == payloadLength)
+                    break;
+                if(payload.hasRemaining())
+                    return true;
+                grow();
+            }
+            payload.flip();
+            try
+            {
+                if(header.get(0) == OP_COMPRESS)
+                    compress();
+                else
+                    decompress();
+            }
+            catch(RuntimeException e)
+            {
+                loop.pool.release(result);
+                result = null;
+                return fail(key, "Invalid request: " + e.getMessage(), false);
+            }
+            finally
+            {
+                loop.pool.release(payload);
+                payload = null;
+            }
+            result.flip();
+            return respond(key, STATUS_OK);
+        }
+
+        /**
+         * moves the payload read so far to a pooled buffer twice as large, at most the announced length,
+         * so a peer only gets as much memory reserved as it actually sends
+         */
+        private void grow()
+        {
+            ByteBuffer grown = loop.pool.acquire((int)Math.min(payloadLength, 2L * payload.capacity()));
+            grown.put(payload.flip());
+            loop.pool.release(payload);
+            payload = grown;
+        }
+
+        private void compress()
+        {
+            result = loop.pool.acquire(loop.codec.maxCompressedLength(payload.remaining()));
+            loop.codec.compress(payload, result);
+        }
+
+        private void decompress()
+        {
+            long length = loop.codec.decompressedLength(payload);
+            if(length > maxPayloadLength)
+                throw new IllegalArgumentException("decompressed length " + length + " is over the maximum");
+            result = loop.pool.acquire((int)length);
+            loop.codec.decompress(payload, result);
+        }
+
+        /**
+         * answers with an error message
+         * @param closeAfter whether to close the connection once it is written,
+         *        when the rest of the request can't be read
+         */
+        private boolean fail(SelectionKey key, String message, boolean closeAfter) throws IOException
+        {
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            result = loop.pool.acquire(bytes.length);
+            result.put(bytes).flip();
+            closeAfterWrite = closeAfter;
+            return respond(key, STATUS_ERROR);
+        }
+
+        /**
+         * writes the header of the response and as much of it as the socket takes
+         */
+        private boolean respond(SelectionKey key, byte status) throws IOException
+        {
+            header.clear();
+            header.put(status).putInt(result.remaining()).flip();
+            response[1] = result;
+            writing = true;
+            // most responses fit the socket buffer, so try before waiting for the socket to be writable
+            return write(key);
+        }
+
+        /**
+         * writes the rest of the response, then waits for the next request
+         * @return false if the connection is to be closed
+         */
+        private boolean write(SelectionKey key) throws IOException
+        {
+            channel.write(response);
+            if(header.hasRemaining() || result.hasRemaining())
+            {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return true;
+            }
+            loop.pool.release(result);
+            result = null;
+            response[1] = null;
+            writing = false;
+            header.clear();
+            key.interestOps(SelectionKey.OP_READ);
+            return !closeAfterWrite;
+        }
+
+        /**
+         * closes the channel and hands its buffers back to the pool
+         */
+        void close(SelectionKey key)
+        {
+            key.cancel();
+            closeQuietly(channel);
+            loop.pool.release(payload);
+            loop.pool.release(result);
+            payload = null;
+            result = null;
+        }
+    }
+}
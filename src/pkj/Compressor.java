@@ -1,51 +1,59 @@
 package pkj;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 
 /**
  * Compresses input file using huffman's tree
+ * the file is treated as raw bytes so any file, text or binary, round trips exactly
  */
 public class Compressor {
 
+    // number of distinct symbols, one per byte value
+    static final int ALPHABET_SIZE = 256;
+    // shortest code length limit that can still give every byte value a code
+    static final int MIN_CODE_LENGTH = 8;
+
     /**
-     * represents a Huffman tree node that
-     * is used through out the project to Compress the file using
-     * Huffman's Algorithm and is a static class for ease of use
+     * represents a Huffman tree node, used by the adaptive mode whose tree changes as symbols arrive
+     * (static tables are computed without nodes by {@link CodeLengthBuilder})
+     * and is a static class for ease of use
      */
     protected static class TreeNode implements Comparable<TreeNode>
     {
-        protected int freq;
+        protected long freq;
         protected char character;
         TreeNode left,right;
 
         /**
          * Initializes the TreeNode as leaf node ( null left and right nodes )
-         * @param character character it represents
+         * @param character byte value (0 to 255) it represents
          * @param freq frequency of that character
          */
-        protected TreeNode(char character, int freq)
+        protected TreeNode(char character, long freq)
         {
             this.character = character;
             this.freq = freq;
         }
-        /**
-         * Initializes the TreeNode as leaf node ( null left and right nodes )
-         * useful for deserialization step
-         * @param data String[] containing node data
-         */
-        protected TreeNode(String[] data)
-        {
-            this(data[0].length() == 0 ? '\u0000' : (char)Integer.parseInt(data[0]), Integer.valueOf(data[1]));
-        }
 
         /**
          * Compares the two huffman nodes based on frequency of characters, used for sorting ascendingly
@@ -56,11 +64,11 @@ public class Compressor {
         @Override
         public int compareTo(TreeNode anotherTreeNode)
         {
-            return Integer.compare(this.freq,anotherTreeNode.freq);
+            return Long.compare(this.freq,anotherTreeNode.freq);
         }
 
         /**
-         * Represents the node in character=freq string form which is useful in serialization of tree
+         * Represents the node in character=freq string form
          * @return String representation of TreeNode
          */
         @Override
@@ -70,13 +78,44 @@ public class Compressor {
         }
     }
 
+    // size in bytes of the buffer the file is read through, the file itself is never held in memory
+    private static final int BUFFER_SIZE = 1 << 16;
+    // size in bytes of each window of the file mapped at once in memory mapped mode
+    private static final long MAP_WINDOW = 1L << 28;
+
     // immutable path of file to be compressed
     private final Path toCompress;
-    // content of file including line separators
-    private StringBuilder content;
-    //have the remainder of last bits in file if they are not 8
-    private int remainder;
-    
+    // direct buffer the file bytes are read into, reused by both passes
+    private final ByteBuffer readBuffer;
+    // byte counts of the chunk being counted, folded into the long totals after each chunk
+    private final int[] chunkCounts = new int[ALPHABET_SIZE];
+    // counts the bytes of each chunk
+    private final ByteHistogram histogram = new ByteHistogram();
+    // read the input and write the output through memory mapped buffers instead of read and write calls
+    private boolean memoryMapped;
+    // number of input bytes encoded independently as one block
+    private int blockSize = BlockFormat.DEFAULT_BLOCK_SIZE;
+    // number of threads encoding blocks at the same time
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    // code every block with one table built from the whole file instead of a table per block
+    private boolean sharedTable;
+    // build the shared table from a sample of the file instead of counting all of it
+    private boolean sampledTable;
+    // code every block with this pre-trained table instead, referenced by id in the header
+    private HuffmanDictionary dictionary;
+    // code every block in one pass with an adaptive model, without any table
+    private boolean adaptive;
+    // stage turning repeated strings into matches before coding
+    private PreTransform preTransform = PreTransform.NONE;
+    // code blocks with order-1 context tables when they are smaller
+    private boolean contextModeling;
+    // split the codes of each block into interleaved sub-streams that decode faster
+    private boolean interleaved;
+    // longest code the tables may hold
+    private int maxCodeLength = CanonicalCode.MAX_LENGTH;
+    // receives the stages and sizes of the blocks
+    private CodecMetrics metrics = CodecMetrics.NONE;
+
     /**
      * String Constructor that takes file path and initializes the File to be compressed
      * @param filePath path of file to be compressed
@@ -100,8 +139,178 @@ public class Compressor {
         if(!isValid(toCompress))
             throw new IllegalArgumentException("Invalid file!");
         this.toCompress = toCompress;
-        this.content = new StringBuilder();
+        this.readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /**
+     * Chooses between reading and writing through memory mapped buffers
+     * or through a direct buffer and plain read / write calls (the default)
+     * @param memoryMapped true to map the input and output files in memory
+     */
+    public void setMemoryMapped(boolean memoryMapped)
+    {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Sets the number of input bytes encoded as one independent block
+     * @param blockSize bytes per block, between {@link BlockFormat#MIN_BLOCK_SIZE} and {@link BlockFormat#MAX_BLOCK_SIZE}
+     * @throws IllegalArgumentException if blockSize is out of range
+     */
+    public void setBlockSize(int blockSize)
+    {
+        if(blockSize < BlockFormat.MIN_BLOCK_SIZE || blockSize > BlockFormat.MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Sets the number of threads that encode blocks at the same time
+     * @param parallelism number of threads, 1 encodes on a single worker
+     * @throws IllegalArgumentException if parallelism is less than 1
+     */
+    public void setParallelism(int parallelism)
+    {
+        if(parallelism < 1)
+            throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Chooses between one code table per block (the default, one pass over the file)
+     * and a single table built from the whole file and stored once in the header (two passes)
+     * @param sharedTable true to share one table between all blocks
+     */
+    public void setSharedTable(boolean sharedTable)
+    {
+        this.sharedTable = sharedTable;
+        this.sampledTable = false;
+    }
+
+    /**
+     * Sets the table mode, the pre-transform stage and context modeling from a preset:
+     * FAST shares one table estimated by {@link TableSampler} from 16 chunks of 64KB spread over the file,
+     * so coding starts without a counting pass over the file and no table is built per block,
+     * DEFAULT builds a table per block, BEST also tries order-1 context tables and LZ77 matches on each block.
+     * Options set afterwards override the preset, CompressionBenchmark measures the ratio and speed of each level
+     * @param level preset to apply
+     * @throws IllegalArgumentException if level is null
+     */
+    public void setLevel(CompressionLevel level)
+    {
+        if(level == null)
+            throw new IllegalArgumentException("Level must not be null");
+        this.sharedTable = level == CompressionLevel.FAST;
+        this.sampledTable = level == CompressionLevel.FAST;
+        this.contextModeling = level == CompressionLevel.BEST;
+        this.preTransform = level == CompressionLevel.BEST ? PreTransform.LZ77 : PreTransform.NONE;
+    }
+
+    /**
+     * Codes every block with a pre-trained dictionary instead of building tables,
+     * only the id and fingerprint of the dictionary are stored so the decompressing side must know the dictionary too.
+     * It takes precedence over a shared table
+     * @param dictionary dictionary to code with, or null to build tables from the file (the default)
+     */
+    public void setDictionary(HuffmanDictionary dictionary)
+    {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Chooses between static huffman blocks (the default, frequencies are counted before coding)
+     * and adaptive ones coded in a single pass while the model learns the frequencies,
+     * adaptive blocks store no table but are slower to code.
+     * It takes precedence over a shared table and a dictionary
+     * @param adaptive true to code adaptive blocks
+     */
+    public void setAdaptive(boolean adaptive)
+    {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Sets the stage run on each block before huffman coding, recorded in the header of the file:
+     * RLE turns runs of a byte into matches, LZ77 turns any string repeated within the last 32KB into matches.
+     * Literals and matches are then coded Deflate style with one table for literals and lengths
+     * and one for distances. A block keeps the matches only if they code it in fewer bits than its bytes
+     * (or its context tables), so incompressible blocks don't grow.
+     * It applies to tables built per block only
+     * @param preTransform stage to run, NONE (the default) codes bytes as they are
+     * @throws IllegalArgumentException if preTransform is null
+     */
+    public void setPreTransform(PreTransform preTransform)
+    {
+        if(preTransform == null)
+            throw new IllegalArgumentException("Pre-transform must not be null, use NONE");
+        this.preTransform = preTransform;
+    }
+
+    /**
+     * Chooses between coding every byte of a block with one table (the default)
+     * and order-1 context modeling: bytes are coded with a table picked by the byte before them,
+     * previous byte values with similar successors share a table so at most {@link ContextModel#MAX_TABLES} are stored.
+     * Each block keeps the context tables only if they code it in fewer bits than a single table,
+     * which pays off on structured text such as logs and CSV. Decoding costs one more lookup per byte,
+     * CompressionBenchmark keeps it within 1.5 times the decode time of single table blocks.
+     * It applies to tables built per block only and takes precedence over interleaving
+     * @param contextModeling true to try context tables on each block
+     */
+    public void setContextModeling(boolean contextModeling)
+    {
+        this.contextModeling = contextModeling;
+    }
+
+    /**
+     * Chooses between packing the codes of a block into a single bit stream (the default)
+     * and splitting each block into {@link BlockFormat#STREAMS} sub-streams whose offsets are stored in the block,
+     * the decoder then follows every sub-stream in one loop so the CPU overlaps their independent table lookups.
+     * It costs a few bytes per block and doesn't apply to adaptive blocks
+     * @param interleaved true to split blocks into interleaved sub-streams
+     */
+    public void setInterleaved(boolean interleaved)
+    {
+        this.interleaved = interleaved;
+    }
+
+    /**
+     * Sets the metrics receiving the time each block spends in each stage and the sizes of the encoded blocks,
+     * the same stages are also reported as JFR events when a flight recording enables them
+     * @param metrics metrics to report to, {@link CodecMetrics#NONE} (the default) for none
+     * @throws IllegalArgumentException if metrics is null
+     */
+    public void setMetrics(CodecMetrics metrics)
+    {
+        if(metrics == null)
+            throw new IllegalArgumentException("Metrics must not be null, use CodecMetrics.NONE");
+        this.metrics = metrics;
+    }
 
+    /**
+     * Caps the length of the codes of the tables built from the file (per block or shared),
+     * a lower cap keeps decode tables small and decoding branch free at some cost in ratio:
+     * at {@link HuffmanDecoder#TABLE_BITS} bits or less every code is decoded by a single table lookup.
+     * When the huffman tree is deeper than the cap the optimal codes within it are built with package-merge
+     * @param maxCodeLength longest code in bits, {@link #MIN_CODE_LENGTH} to {@link CanonicalCode#MAX_LENGTH}
+     * @throws IllegalArgumentException if maxCodeLength is out of range
+     */
+    public void setMaxCodeLength(int maxCodeLength)
+    {
+        this.maxCodeLength = checkMaxCodeLength(maxCodeLength);
+    }
+
+    /**
+     * validates a code length limit
+     * @param maxCodeLength longest code in bits
+     * @return maxCodeLength
+     * @throws IllegalArgumentException if maxCodeLength is out of range
+     */
+    static int checkMaxCodeLength(int maxCodeLength)
+    {
+        if(maxCodeLength < MIN_CODE_LENGTH || maxCodeLength > CanonicalCode.MAX_LENGTH)
+            throw new IllegalArgumentException("Code length limit must be between " + MIN_CODE_LENGTH
+                    + " and " + CanonicalCode.MAX_LENGTH + ": " + maxCodeLength);
+        return maxCodeLength;
     }
 
     /**
@@ -116,267 +325,329 @@ public class Compressor {
     }
 
     /**
-     * Compresses the given file and outputs it in given outputName file
-     * by generating character frequency mapping for characters in input
-     * then building the huffman tree then using the huffman tree
-     * to output mapping of chars and their huffman code
-     * then serializes the huffman tree to be added to header
+     * Compresses the given file and outputs it in given outputName file.
+     * The file is cut into blocks that are encoded independently on a pool of threads:
+     * for each block byte frequencies are generated, the huffman tree is built
+     * and used to get the code length of each byte, the lengths are turned into canonical codes
+     * so only the lengths need to be added to the block header.
+     * With a shared table the frequencies of the whole file are generated first in a separate pass,
+     * or estimated from a sample at level FAST, and its table is stored once in the file header instead.
+     * With a dictionary no table is built nor stored, the header only records the id and fingerprint of the dictionary.
+     * Only a bounded number of blocks are in memory at once so memory use doesn't depend on the size of the file
      * @param outputName name of file to output compressed data in
      */
     public void compress(String outputName) throws IOException
     {
-        Map<Character,Integer> freqMap = generateFreqMap(); // a -> 5
-        TreeNode huffmanTreeRoot = buildHuffmanTree(freqMap); // root
-        Map<Character,String> codeMap = new HashMap<>(); // a -> 0100
-        generateCodeMap(huffmanTreeRoot,codeMap,"");
-        System.out.println(codeMap);
-        String serializedTree = serialize(huffmanTreeRoot); // [5,4,7,3,10]
-        System.out.println(serializedTree);
-        System.out.println(serialize(deserialize(serializedTree))); // deserialize
-        
-        StringBuilder compressedData = substituteOfData(content, codeMap);
-        StringBuilder charcompressedData = substituteOfDataChar(compressedData);
-        System.out.println();
-       // System.out.println(compressedData);
-       // System.out.println(charcompressedData);
-        writeToFile(outputName,serializedTree,charcompressedData);
-    }
-    
-    
-    /**
-     * Generates character frequency map based on file given to CTOR
-     * by reading input line by line and for each line frequency of chars is computed
-     * @return character frequency mapping
-     * @throws IOException
-     */
-    private Map<Character,Integer> generateFreqMap() throws IOException
-    {
-        Map<Character,Integer> freqMap = new HashMap<>();
-        List<String> lines = Files.readAllLines(toCompress);
-        lines.forEach((line) -> fillMap(line,freqMap));
-        int count = lines.size();
-        if(count > 1)
+        int[] sharedLengths = null;
+        if(sharedTable && dictionary == null && !adaptive)
         {
-            freqMap.put('\r',(int)count - 1);
-            freqMap.put('\n',(int)count - 1);
+            sharedLengths = new int[ALPHABET_SIZE];
+            generateCodeLengths(sampledTable ? sampleFreqMap() : generateFreqMap(), sharedLengths, maxCodeLength);
         }
-        return freqMap;
+        writeToFile(outputName, sharedLengths);
     }
 
     /**
-     * Fills character frequency map with freq of characters for given line
-     * @param s Line in the file
-     * @param freqMap map to be filled
+     * handles one chunk of bytes during a pass over the file
      */
-    private void fillMap(String s, Map<Character,Integer> freqMap)
+    @FunctionalInterface
+    private interface ChunkProcessor
     {
-        this.content.append(s+"\r\n");
-        for(int i = 0 , n = s.length() ; i < n ; ++i)
-            freqMap.put(s.charAt(i), freqMap.getOrDefault(s.charAt(i), 0) + 1);
+        void process(ByteBuffer chunk) throws IOException;
     }
 
     /**
-     * Builds huffman's tree using a min binary heap using the character frequency mapping
-     * @param freqMap Character frequency Mapping
-     * @return Root of huffman's Tree
+     * Reads the whole file chunk by chunk and hands each chunk to processor
+     * @param processor pass to run over every chunk
+     * @throws IOException if reading fails
      */
-    private TreeNode buildHuffmanTree(Map<Character,Integer> freqMap)
+    private void readChunks(ChunkProcessor processor) throws IOException
     {
-        Queue<TreeNode> minHeap = new PriorityQueue<>();
-        freqMap.entrySet().forEach(entry -> {
-            TreeNode node = new TreeNode(entry.getKey(),entry.getValue());
-            minHeap.add(node);
-        });
-        TreeNode huffmanTreeRoot = null;
-        TreeNode first = null, second = null, sum = null;
-        while(minHeap.size() != 1)
+        try(FileChannel channel = FileChannel.open(toCompress, StandardOpenOption.READ))
         {
-            first = minHeap.remove();
-            second = minHeap.remove();
-            sum = new TreeNode('\u0000',first.freq + second.freq);
-            sum.left = first; sum.right = second;
-            minHeap.add(sum);
-            huffmanTreeRoot = sum;
+            if(memoryMapped)
+                readMappedChunks(channel, processor);
+            else
+                readBufferedChunks(channel, processor);
         }
-        return huffmanTreeRoot;
     }
 
     /**
-     * Generates and fills Code Mapping of char and its huffman code
-     * using recursive in-order dfs assigning 0 to left along the way till it reaches leaf node
-     * puts char and its code then removes last 0 and pushes right if exists with 1
-     * @param huffmanTreeRoot root of built huffman tree
-     * @param codeMap Mapping of each character to its huffman code
-     * @param huffmanTreeRoot code generated at each stack frame for left and right
+     * Reads the file through the direct read buffer
+     * @param channel channel of the file to read
+     * @param processor pass to run over every chunk
+     * @throws IOException if reading fails
      */
-    private void generateCodeMap(TreeNode huffmanTreeRoot,Map<Character,String> codeMap, String code)
+    private void readBufferedChunks(FileChannel channel, ChunkProcessor processor) throws IOException
     {
-        if(huffmanTreeRoot.left == null && huffmanTreeRoot.right == null && huffmanTreeRoot.character != '\u0000')
+        readBuffer.clear();
+        while(channel.read(readBuffer) != -1)
         {
-            codeMap.put(huffmanTreeRoot.character,code);
-            return;
+            readBuffer.flip();
+            processor.process(readBuffer);
+            readBuffer.clear();
         }
-        if(huffmanTreeRoot.left != null) generateCodeMap(huffmanTreeRoot.left,codeMap,code + "0");
-        if(huffmanTreeRoot.right != null) generateCodeMap(huffmanTreeRoot.right,codeMap,code + "1");
+    }
+
+    /**
+     * Reads the file by handing out memory mapped windows of it,
+     * so the bytes come from the page cache without being copied into a read buffer
+     * @param channel channel of the file to read
+     * @param processor pass to run over every chunk
+     * @throws IOException if reading or mapping fails
+     */
+    private void readMappedChunks(FileChannel channel, ChunkProcessor processor) throws IOException
+    {
+        long size = channel.size();
+        for(long position = 0; position < size; position += MAP_WINDOW)
+            processor.process(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position)));
+    }
 
+    /**
+     * Generates byte frequencies based on file given to CTOR
+     * by streaming over the file and counting the bytes chunk by chunk
+     * @return frequency of each byte value
+     * @throws IOException
+     */
+    private long[] generateFreqMap() throws IOException
+    {
+        long[] freq = new long[ALPHABET_SIZE];
+        readChunks(chunk -> fillMap(chunk,freq));
+        return freq;
     }
 
     /**
-     * Serializes the tree in level order traveral (BFS) in form parent > left > right till max level leaf nodes
-     * delimiter is _,_ so if , or _ exists as a character
-     * @param root root of huffman tree to be serialized
-     * @return serialized tree string
+     * Estimates byte frequencies from chunks spread over the file, without reading all of it
+     * @return smoothed frequency of each byte value, every value has a count
+     * @throws IOException if reading fails
      */
-    private String serialize(TreeNode root)
+    private long[] sampleFreqMap() throws IOException
     {
-        if(root == null)
-            return "null";
-        Queue<TreeNode> q = new LinkedList<>();
-        int size = 0;
-        TreeNode curr = root;
-        boolean allnulls = false;
-        q.add(curr);
-        StringBuilder serialzed = new StringBuilder();
-        while(!q.isEmpty() && !allnulls)
+        try(FileChannel channel = FileChannel.open(toCompress, StandardOpenOption.READ))
         {
-            size = q.size();
-            allnulls = true;
-            for(int i = 0 ; i < size ; ++i)
-            {
-                curr = q.remove();
-                if(curr == null) {
-                    serialzed.append("null_,_");
-                    continue;
-                }
-                serialzed.append(curr+"_,_");
-                if(curr.left != null || curr.right != null)
-                    allnulls = false;
+            return new TableSampler().sample(channel, readBuffer);
+        }
+    }
 
-                q.add(curr.left);
-                q.add(curr.right);
-            }
+    /**
+     * Counts the bytes of given chunk into a primitive int[256] (a chunk is never larger than a mapped window)
+     * with {@link ByteHistogram}, then adds the counts to the long totals of the whole file
+     * @param chunk bytes read from the file
+     * @param freq frequencies of the whole file to be filled
+     */
+    private void fillMap(ByteBuffer chunk, long[] freq)
+    {
+        long start = Instrumentation.start(metrics);
+        histogram.count(chunk, chunkCounts);
+        for(int symbol = 0; symbol < ALPHABET_SIZE; ++symbol)
+            freq[symbol] += chunkCounts[symbol];
+        Instrumentation.end(metrics, CodecMetrics.Stage.COUNT, start, chunk.remaining());
+    }
+
+    /**
+     * Fills the code length of each byte as the huffman tree would,
+     * codes are limited to {@link CanonicalCode#MAX_LENGTH} bits
+     * @param freq frequency of each byte value
+     * @param codeLengths filled with the code length of each byte value, 0 for absent bytes
+     */
+    static void generateCodeLengths(long[] freq, int[] codeLengths)
+    {
+        generateCodeLengths(freq, codeLengths, CanonicalCode.MAX_LENGTH);
+    }
+
+    /**
+     * Fills the code length of each byte with {@link CodeLengthBuilder} (huffman lengths computed in place
+     * over the sorted frequencies, without tree nodes), if the codes are longer than maxLength
+     * the optimal lengths within maxLength are built by package-merge instead
+     * @param freq frequency of each byte value
+     * @param codeLengths filled with the code length of each byte value, 0 for absent bytes
+     * @param maxLength longest allowed code, {@link #MIN_CODE_LENGTH} to {@link CanonicalCode#MAX_LENGTH}
+     */
+    static void generateCodeLengths(long[] freq, int[] codeLengths, int maxLength)
+    {
+        new CodeLengthBuilder().build(freq, codeLengths, maxLength);
+    }
+
+    /**
+     * a block handed to the pool together with the future of its encoded bytes
+     */
+    private static class PendingBlock
+    {
+        final ByteBuffer source;
+        final Future<byte[]> encoded;
+
+        PendingBlock(ByteBuffer source, Future<byte[]> encoded)
+        {
+            this.source = source;
+            this.encoded = encoded;
         }
-        for(int i = 0 ; i < 3 ; ++i)
-            serialzed.deleteCharAt(serialzed.length()-1);
-        return serialzed.toString();
     }
 
     /**
-     * Deserializes the huffman tree and returns its root
-     * @param serialized serialized huffman tree
-     * @return root of deserialized huffman tree
+     * Hands out the input file one block at a time,
+     * either as slices of memory mapped windows or read into recycled heap buffers
      */
-    private TreeNode deserialize(String serialized)
+    private class BlockSource
     {
-        if(serialized == null || serialized.equals("null"))
-            return null;
-        String[] treeData = serialized.split("_,_");
-        TreeNode root = new TreeNode(treeData[0].split("="));
-        TreeNode curr = root;
-        Deque<TreeNode> q = new ArrayDeque<>();
-        int index = 1, size = 0;
-        q.add(curr);
-        String left = null, right = null;
-        while(!q.isEmpty() && index < treeData.length)
+        private final FileChannel channel;
+        private final long size;
+        // file position of the next block
+        private long position;
+        // mapped window the next blocks are sliced from, memory mapped mode only
+        private ByteBuffer window;
+        // file position of the first byte of window
+        private long windowStart;
+        // heap buffers of blocks that were written out, ready to be filled again
+        private final Deque<ByteBuffer> free = new ArrayDeque<>();
+
+        BlockSource(FileChannel channel) throws IOException
+        {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        /**
+         * @return the next block, or null at the end of the file
+         * @throws IOException if reading or mapping fails
+         */
+        ByteBuffer next() throws IOException
         {
-            size = q.size();
-            for(int i = 0 ; i < size ; ++i)
+            if(position >= size)
+                return null;
+            int length = (int)Math.min(blockSize, size - position);
+            long start = Instrumentation.start(metrics);
+            ByteBuffer block;
+            if(memoryMapped)
             {
-                curr = q.remove();
-                left = index < treeData.length ? treeData[index++] : "null";
-                right = index < treeData.length ? treeData[index++] : "null";
-                if(!left.equals("null"))
-                {
-                    curr.left = new TreeNode(left.split("="));
-                    q.add(curr.left);
-                }
-                if(!right.equals("null"))
+                if(window == null || position + length > windowStart + window.capacity())
                 {
-                    curr.right = new TreeNode(right.split("="));
-                    q.add(curr.right);
+                    windowStart = position;
+                    long windowLength = Math.min(size - position, Math.max(MAP_WINDOW / blockSize, 1) * blockSize);
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
                 }
+                block = window.slice((int)(position - windowStart), length);
             }
+            else
+            {
+                block = free.isEmpty() ? ByteBuffer.allocate(blockSize) : free.remove();
+                block.clear().limit(length);
+                while(block.hasRemaining())
+                    if(channel.read(block, position + block.position()) == -1)
+                        throw new IOException("File shrank while compressing: " + toCompress);
+                block.flip();
+            }
+            position += length;
+            Instrumentation.end(metrics, CodecMetrics.Stage.READ, start, length);
+            return block;
+        }
+
+        /**
+         * gives back the buffer of a block that was written out
+         * @param block block returned by {@link #next()}
+         */
+        void recycle(ByteBuffer block)
+        {
+            if(!memoryMapped)
+                free.add(block);
         }
-        return root;
     }
 
     /**
-     *substitute the data in the string content with its code 
-     *substitution by done char by char and get the code from hashmap 
-     * @param content string builder have all contents of file in it
-     * @param codeMap map have the character and it code
-     * @return string builder have the content of the file with huffman code
+     * writing to the compressed file the header: magic, version, file name, flags, block size
+     * and the shared code length table if any, then the encoded blocks in order,
+     * then the index (seek table) of the blocks and the footer pointing at it.
+     * Blocks are encoded on a pool of parallelism threads each reusing its own encoder,
+     * at most twice that many blocks are in flight at once
+     * @param outputName is the name of the output file
+     * @param sharedLengths code lengths shared by every block, or null for a table per block
+     * @throws IOException
      */
-    public StringBuilder substituteOfData(StringBuilder content,Map<Character, String> codeMap) {
-    	StringBuilder substituted = new StringBuilder();
-    	for(int i =0;i<content.length();++i) {
-    		if(!codeMap.containsKey(content.charAt(i))) {
-    			continue;
-    		}
-    		substituted.append(codeMap.get(content.charAt(i)));
-    	}
-    	return substituted;
+    private void writeToFile(String outputName, int[] sharedLengths) throws IOException
+    {
+        OutputStream file = memoryMapped ? new MappedOutputStream(Paths.get(outputName))
+                : new BufferedOutputStream(new FileOutputStream(outputName));
+        ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        HuffmanDictionary dictionary = adaptive ? null : this.dictionary;
+        boolean adaptive = this.adaptive;
+        boolean interleaved = this.interleaved;
+        boolean contextModeling = this.contextModeling;
+        PreTransform preTransform = this.preTransform;
+        int maxCodeLength = this.maxCodeLength;
+        CodecMetrics metrics = this.metrics;
+        ThreadLocal<BlockEncoder> encoders = ThreadLocal.withInitial(() -> {
+            BlockEncoder encoder = new BlockEncoder(sharedLengths);
+            if(dictionary != null)
+                encoder.setSharedTable(dictionary.lengths(), dictionary.codes());
+            encoder.setAdaptive(adaptive);
+            encoder.setInterleaved(interleaved);
+            encoder.setContextModeling(contextModeling);
+            encoder.setPreTransform(preTransform);
+            encoder.setMaxCodeLength(maxCodeLength);
+            encoder.setMetrics(metrics);
+            return encoder;
+        });
+        try(OutputStream out = file;
+            FileChannel channel = FileChannel.open(toCompress, StandardOpenOption.READ))
+        {
+            BlockWriter writer = new BlockWriter(out);
+            byte[] name = this.toCompress.toString().getBytes(StandardCharsets.UTF_8);
+            // the stage only runs on blocks that build their own table
+            int flags = sharedLengths == null && dictionary == null && !adaptive ? preTransform.flag() : 0;
+            writer.writeHeader(name, flags, blockSize, sharedLengths, dictionary);
+
+            BlockSource source = new BlockSource(channel);
+            Deque<PendingBlock> pending = new ArrayDeque<>();
+            for(ByteBuffer block = source.next(); block != null; block = source.next())
+            {
+                ByteBuffer src = block;
+                pending.add(new PendingBlock(src, submit(pool, () -> {
+                    BlockEncoder encoder = encoders.get();
+                    encoder.encode(src);
+                    return encoder.toByteArray();
+                })));
+                if(pending.size() >= 2 * parallelism)
+                    writeBlock(pending.remove(), source, writer);
+            }
+            while(!pending.isEmpty())
+                writeBlock(pending.remove(), source, writer);
+            writer.finish();
+        }
+        finally
+        {
+            if(pool != null)
+                pool.shutdownNow();
+        }
     }
-    
+
     /**
-     * writing to the compressed file the tree and the hashmap in the header
-     * and  the data with its code 
-     * @param outputName is the name of the output file
-     * @param serializedTree is the string of the array in bfs
-     * @param compressedData is the string builder have the data of the file in huffman code
-     * @throws IOException
+     * waits for a block to be encoded and writes it
+     * @param block block to write
+     * @param source source of the block, its buffer is recycled once written
+     * @param writer writer of the compressed file, it records the index entry of the block
+     * @throws IOException if encoding or writing fails
      */
-    public void writeToFile(String outputName, String serializedTree,StringBuilder compressedData) throws IOException{
-    	BufferedWriter writer = new BufferedWriter(new FileWriter(outputName));
-    	writer.write(this.toCompress.toString());
-    	writer.append("\r\n");
-    	writer.append(serializedTree);
-    	writer.append("\r\n");
-    	writer.append(Integer.toString(remainder));
-    	writer.append("\r\n");
-    	writer.append(compressedData);
-    	writer.close();
-    }
-    
-    /**
-     * take every 7 bits in the binary string and change them to character to compress the file
-     * @param compressedData
-     * @return
-     */
-    private StringBuilder substituteOfDataChar(StringBuilder compressedData) {
-    	StringBuilder  ascii = new StringBuilder();  
-    	String comps = compressedData.toString();
-    	StringBuilder sb = new StringBuilder();
- 		int count = 1;
- 		
-    	for(int i = 0;i<comps.length();i++) {
-    		if(count <= 7) {
-    			sb.append(comps.charAt(i));
-    		}
-    		else {
-    			--i;
-    			short decimal = Short.parseShort(sb.toString(),2); 		//to convert 10101111 to decimal for to get the ascii
-        		char subchar = (char)(decimal);
-        		if(subchar == 0 || subchar == 8 || subchar == 9 || subchar == 10 || subchar == 13 ) {
-        			subchar = (char) (decimal + 128);
-        		}
-        		ascii.append(subchar);
-    			sb.setLength(0);
-    			count = 0;
-    		}
-    		if(i + 1 == comps.length()) {
-    			remainder = count % 7;
-    			short decimal = Short.parseShort(sb.toString(),2); 		//to convert 10101111 to decimal for to get the ascii
-        		char subchar = (char)(decimal);
-        		if(subchar == 0 || subchar == 8 || subchar == 9 || subchar == 10 || subchar == 13 ) {
-        			subchar = (char) (decimal + 128);
-        		}
-        		ascii.append(subchar);
-    			sb.setLength(0);
-    		}
-    		count++;
-    	}
-    	return ascii;
+    private void writeBlock(PendingBlock block, BlockSource source, BlockWriter writer) throws IOException
+    {
+        byte[] encoded;
+        try
+        {
+            encoded = block.encoded.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing " + toCompress);
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof UncheckedIOException)
+                throw ((UncheckedIOException)e.getCause()).getCause();
+            throw new IllegalStateException("Failed to encode a block of " + toCompress, e.getCause());
+        }
+        long start = Instrumentation.start(metrics);
+        writer.writeBlock(encoded, block.source.remaining());
+        Instrumentation.end(metrics, CodecMetrics.Stage.WRITE, start, encoded.length);
+        source.recycle(block.source);
     }
 
     public double compressionRatio(String normal, String compressed){
@@ -389,4 +660,20 @@ public class Compressor {
         return  (compressedSize/normalSize)*100;
 
     }
+
+    /**
+     * runs task on pool, or right away on the calling thread when there is no pool
+     * (parallelism of 1) so single threaded work doesn't pay for a pool
+     * @param pool pool to run on, or null
+     * @param task task to run
+     * @return future of the result of task
+     */
+    private static <T> Future<T> submit(ForkJoinPool pool, Callable<T> task)
+    {
+        if(pool != null)
+            return pool.submit(task);
+        FutureTask<T> inline = new FutureTask<>(task);
+        inline.run();
+        return inline;
+    }
 }
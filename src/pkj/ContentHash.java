@@ -0,0 +1,154 @@
+package pkj;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * 64 bit XXH64 hash of a content, read 8 bytes at a time: a file is hashed at over a GB/s,
+ * far faster than it is compressed. It tells whether a file changed, it is not meant to resist crafted collisions.
+ * The content is hashed from a channel at once, or added piece by piece as it is read for another use
+ */
+final class ContentHash
+{
+    private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME_3 = 0x165667B19E3779F9L;
+    private static final long PRIME_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME_5 = 0x27D4EB2F165667C5L;
+    // bytes of the 4 lanes hashed in each round
+    private static final int STRIPE = 32;
+    // bytes read from a channel at a time
+    static final int BUFFER_SIZE = 1 << 16;
+    // reads the little endian words of a byte array
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    // lane accumulators
+    private long v1 = PRIME_1 + PRIME_2, v2 = PRIME_2, v3 = 0, v4 = -PRIME_1;
+    // number of bytes hashed
+    private long length;
+    // bytes of the last partial stripe, hashed once the stripe is complete or by finish
+    private final byte[] pending = new byte[STRIPE];
+    private int pendingLength;
+
+    /**
+     * Initializes the hash of an empty content, the content is added by {@link #update(byte[], int, int)}
+     */
+    ContentHash()
+    {
+    }
+
+    /**
+     * Hashes everything left in a channel
+     * @param in channel read until its end
+     * @param buffer heap buffer of at least {@link #BUFFER_SIZE} bytes the content is read through
+     * @return the hash of the content
+     * @throws IOException if reading fails
+     */
+    static long hash(ReadableByteChannel in, ByteBuffer buffer) throws IOException
+    {
+        ContentHash hash = new ContentHash();
+        while(true)
+        {
+            // the buffer is filled whole so the stripes are hashed straight from it
+            buffer.clear().limit(BUFFER_SIZE);
+            while(buffer.hasRemaining())
+                if(in.read(buffer) == -1)
+                    break;
+            hash.update(buffer.array(), buffer.arrayOffset(), buffer.position());
+            if(buffer.hasRemaining())
+                return hash.finish();
+        }
+    }
+
+    /**
+     * Adds bytes to the content
+     * @param bytes array holding the bytes
+     * @param offset index of the first byte
+     * @param count number of bytes
+     */
+    void update(byte[] bytes, int offset, int count)
+    {
+        length += count;
+        if(pendingLength > 0)
+        {
+            int n = Math.min(STRIPE - pendingLength, count);
+            System.arraycopy(bytes, offset, pending, pendingLength, n);
+            pendingLength += n;
+            offset += n;
+            count -= n;
+            if(pendingLength < STRIPE)
+                return;
+            stripe(pending, 0);
+            pendingLength = 0;
+        }
+        for(; count >= STRIPE; offset += STRIPE, count -= STRIPE)
+            stripe(bytes, offset);
+        System.arraycopy(bytes, offset, pending, 0, count);
+        pendingLength = count;
+    }
+
+    /**
+     * @return number of bytes hashed
+     */
+    long length()
+    {
+        return length;
+    }
+
+    /**
+     * @return the hash of the bytes added so far
+     */
+    long finish()
+    {
+        long hash;
+        if(length >= STRIPE)
+        {
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = merge(merge(merge(merge(hash, v1), v2), v3), v4);
+        }
+        else
+            hash = PRIME_5;
+        hash += length;
+        int i = 0, end = pendingLength;
+        for(; i + 8 <= end; i += 8)
+            hash = Long.rotateLeft(hash ^ round(0, (long)LONGS.get(pending, i)), 27) * PRIME_1 + PRIME_4;
+        if(i + 4 <= end)
+        {
+            hash = Long.rotateLeft(hash ^ ((int)INTS.get(pending, i) & 0xFFFFFFFFL) * PRIME_1, 23) * PRIME_2 + PRIME_3;
+            i += 4;
+        }
+        for(; i < end; ++i)
+            hash = Long.rotateLeft(hash ^ (pending[i] & 0xFFL) * PRIME_5, 11) * PRIME_1;
+        hash ^= hash >>> 33;
+        hash *= PRIME_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME_3;
+        return hash ^ hash >>> 32;
+    }
+
+    /**
+     * hashes the 4 lanes of the stripe at offset
+     */
+    private void stripe(byte[] bytes, int offset)
+    {
+        v1 = round(v1, (long)LONGS.get(bytes, offset));
+        v2 = round(v2, (long)LONGS.get(bytes, offset + 8));
+        v3 = round(v3, (long)LONGS.get(bytes, offset + 16));
+        v4 = round(v4, (long)LONGS.get(bytes, offset + 24));
+    }
+
+    private static long round(long acc, long input)
+    {
+        return Long.rotateLeft(acc + input * PRIME_2, 31) * PRIME_1;
+    }
+
+    private static long merge(long hash, long lane)
+    {
+        return (hash ^ round(0, lane)) * PRIME_1 + PRIME_4;
+    }
+}
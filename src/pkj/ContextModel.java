@@ -0,0 +1,269 @@
+package pkj;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Order-1 context model of a block: the code of a byte depends on the byte before it (its context).
+ * A table per previous byte value would cost more to store than it saves on most blocks,
+ * so contexts whose next bytes are alike are clustered into at most MAX_TABLES groups sharing one canonical table.
+ * Clustering runs a few rounds of k-means seeded with the heaviest contexts: every context moves to the table
+ * that codes its bytes in the fewest bits, then the tables are rebuilt from the bytes of their contexts.
+ * The first byte of a block is coded in the context of byte 0.
+ * Stored form, at the start of the payload of a BLOCK_CONTEXT block: number of tables (byte),
+ * if there are several the table of each context packed two per byte, then the code length table of each table.
+ * A model keeps its arrays between blocks, it is not thread safe
+ */
+class ContextModel
+{
+    // most tables a block may have, so a table number fits in 4 bits
+    static final int MAX_TABLES = 16;
+    // number of byte values, which is also the number of contexts
+    private static final int ALPHABET = Compressor.ALPHABET_SIZE;
+    // bytes of input per table, smaller blocks get fewer tables as each table costs its stored lengths
+    private static final int BYTES_PER_TABLE = 1 << 12;
+    // blocks shorter than this get at most one table, they are not worth modeling
+    static final int MIN_LENGTH = 2 * BYTES_PER_TABLE;
+    // most rounds of moving contexts between tables
+    private static final int ROUNDS = 6;
+
+    // occurrences of each byte in each context, at context << 8 | symbol
+    private final int[] counts = new int[ALPHABET * ALPHABET];
+    // symbols that occur in each context, the ones of context c are at symbols[symbolStart[c]] to symbols[symbolStart[c + 1]]
+    private final int[] symbols = new int[ALPHABET * ALPHABET];
+    private final int[] symbolStart = new int[ALPHABET + 1];
+    // contexts that occur, heaviest first, they hold sort keys built from their weights while sorting
+    private final long[] contexts = new long[ALPHABET];
+    // table of each context, -1 while a context is not assigned yet
+    private final int[] tableOf = new int[ALPHABET];
+    // number of tables of the block
+    private int tables;
+    // occurrences of each byte in the contexts of each table, at table << 8 | symbol
+    private final long[] tableCounts = new long[MAX_TABLES * ALPHABET];
+    // bits a byte costs with the histogram of each table, at table << 8 | symbol
+    private final double[] cost = new double[MAX_TABLES * ALPHABET];
+    // new number of each table while empty tables are dropped
+    private final int[] renumber = new int[MAX_TABLES];
+    // code lengths and canonical codes of each table
+    private final int[][] lengths = new int[MAX_TABLES][ALPHABET];
+    private final int[][] codes = new int[MAX_TABLES][ALPHABET];
+    // byte counts of one table, widened for the length builder
+    private final long[] freq = new long[ALPHABET];
+    // computes the code lengths of each table
+    private final CodeLengthBuilder lengthBuilder = new CodeLengthBuilder();
+    // scratch space of the canonical code assignment
+    private final int[] nextCode = new int[CanonicalCode.MAX_LENGTH + 2];
+
+    /**
+     * Clusters the contexts of a block and builds the table of each cluster
+     * @param src bytes of the block from its position to its limit, its position is not moved
+     * @param maxLength longest allowed code
+     * @return size in bits of the block coded with the model, stored tables included
+     */
+    long build(ByteBuffer src, int maxLength)
+    {
+        Arrays.fill(counts, 0);
+        int previous = 0;
+        for(int i = src.position(), n = src.limit(); i < n; ++i)
+        {
+            int symbol = src.get(i) & 0xFF;
+            ++counts[previous << 8 | symbol];
+            previous = symbol;
+        }
+        int used = 0;
+        for(int context = 0, next = 0; context < ALPHABET; ++context)
+        {
+            symbolStart[context] = next;
+            long total = 0;
+            for(int symbol = 0; symbol < ALPHABET; ++symbol)
+            {
+                int count = counts[context << 8 | symbol];
+                if(count == 0)
+                    continue;
+                symbols[next++] = symbol;
+                total += count;
+            }
+            symbolStart[context + 1] = next;
+            if(total != 0)
+                contexts[used++] = ~(total << 8 | (ALPHABET - 1 - context));
+        }
+        // sorting the complements orders the contexts by decreasing weight, then increasing context
+        Arrays.sort(contexts, 0, used);
+        for(int i = 0; i < used; ++i)
+            contexts[i] = ALPHABET - 1 - (~contexts[i] & 0xFF);
+
+        tables = Math.max(1, Math.min(Math.min(MAX_TABLES, used), src.remaining() / BYTES_PER_TABLE));
+        Arrays.fill(tableOf, -1);
+        for(int table = 0; table < tables && table < used; ++table)
+            tableOf[(int)contexts[table]] = table;
+        for(int round = 0; round < ROUNDS; ++round)
+        {
+            countTables(used);
+            boolean moved = false;
+            for(int i = 0; i < used; ++i)
+            {
+                int context = (int)contexts[i];
+                int best = cheapestTable(context);
+                moved |= best != tableOf[context];
+                tableOf[context] = best;
+            }
+            if(!moved)
+                break;
+        }
+        countTables(used);
+        dropEmptyTables();
+
+        long bits = 8L * (1 + (tables > 1 ? ALPHABET / 2 : 0));
+        for(int table = 0; table < tables; ++table)
+        {
+            for(int symbol = 0; symbol < ALPHABET; ++symbol)
+                freq[symbol] = tableCounts[table << 8 | symbol];
+            lengthBuilder.build(freq, lengths[table], maxLength);
+            CanonicalCode.assignCodes(lengths[table], codes[table], nextCode);
+            bits += 8L * CanonicalCode.tableSize(lengths[table]);
+            for(int symbol = 0; symbol < ALPHABET; ++symbol)
+                bits += freq[symbol] * lengths[table][symbol];
+        }
+        return bits;
+    }
+
+    /**
+     * Writes the number of tables, the table of each context and the code lengths of each table
+     * @param out stream receiving the tables
+     * @throws IOException if writing fails
+     */
+    void writeTables(DataOutputStream out) throws IOException
+    {
+        out.writeByte(tables);
+        if(tables > 1)
+            for(int context = 0; context < ALPHABET; context += 2)
+                out.writeByte(tableOf[context] << 4 | tableOf[context + 1]);
+        for(int table = 0; table < tables; ++table)
+            CanonicalCode.writeLengths(lengths[table], out);
+    }
+
+    /**
+     * Substitutes every byte of src with its code in the table of its context
+     * @param src bytes of the block the model was built from
+     * @param bits bit stream receiving the codes
+     * @throws IOException if writing fails
+     */
+    void writeCodes(ByteBuffer src, BitWriter bits) throws IOException
+    {
+        int previous = 0;
+        for(int i = src.position(), n = src.limit(); i < n; ++i)
+        {
+            int symbol = src.get(i) & 0xFF;
+            int table = tableOf[previous];
+            bits.write(codes[table][symbol], lengths[table][symbol]);
+            previous = symbol;
+        }
+        bits.flush();
+    }
+
+    /**
+     * Reads the tables written by {@link #writeTables(DataOutputStream)} into decoders
+     * @param in buffer positioned at the start of the tables, moved past them
+     * @param decoders decoder of each table, missing ones are allocated, at least MAX_TABLES long
+     * @param byContext filled with the decoder of each context
+     * @param codeLengths scratch table of ALPHABET lengths
+     * @throws IllegalArgumentException if the tables are corrupted
+     */
+    static void readTables(ByteBuffer in, HuffmanDecoder[] decoders, HuffmanDecoder[] byContext, int[] codeLengths)
+    {
+        int tables = in.get() & 0xFF;
+        if(tables < 1 || tables > MAX_TABLES)
+            throw new IllegalArgumentException("Corrupted context tables");
+        int position = in.position();
+        if(tables > 1)
+            in.position(position + ALPHABET / 2);
+        for(int table = 0; table < tables; ++table)
+        {
+            CanonicalCode.readLengths(in, codeLengths);
+            if(decoders[table] == null)
+                decoders[table] = new HuffmanDecoder();
+            decoders[table].init(codeLengths);
+        }
+        for(int context = 0; context < ALPHABET; ++context)
+        {
+            int table = tables == 1 ? 0 : (in.get(position + context / 2) >>> (context % 2 == 0 ? 4 : 0)) & 0x0F;
+            if(table >= tables)
+                throw new IllegalArgumentException("Corrupted context tables");
+            byContext[context] = decoders[table];
+        }
+    }
+
+    /**
+     * sums the counts of the contexts assigned to each table and derives the cost of each byte in each table
+     */
+    private void countTables(int used)
+    {
+        Arrays.fill(tableCounts, 0, tables * ALPHABET, 0);
+        for(int i = 0; i < used; ++i)
+        {
+            int context = (int)contexts[i];
+            int table = tableOf[context];
+            if(table < 0)
+                continue;
+            for(int j = symbolStart[context]; j < symbolStart[context + 1]; ++j)
+                tableCounts[table << 8 | symbols[j]] += counts[context << 8 | symbols[j]];
+        }
+        for(int table = 0; table < tables; ++table)
+        {
+            long total = 0;
+            for(int symbol = 0; symbol < ALPHABET; ++symbol)
+                total += tableCounts[table << 8 | symbol];
+            // half an occurrence per byte value keeps bytes a table hasn't seen yet from costing infinite bits
+            double log2Total = Math.log(total + ALPHABET / 2.0) / Math.log(2);
+            for(int symbol = 0; symbol < ALPHABET; ++symbol)
+                cost[table << 8 | symbol] = log2Total - Math.log(tableCounts[table << 8 | symbol] + 0.5) / Math.log(2);
+        }
+    }
+
+    /**
+     * @return the table that codes the bytes of context in the fewest bits
+     */
+    private int cheapestTable(int context)
+    {
+        int best = 0;
+        double bestBits = Double.MAX_VALUE;
+        for(int table = 0; table < tables; ++table)
+        {
+            double bits = 0;
+            for(int j = symbolStart[context]; j < symbolStart[context + 1]; ++j)
+                bits += counts[context << 8 | symbols[j]] * cost[table << 8 | symbols[j]];
+            if(bits < bestBits)
+            {
+                bestBits = bits;
+                best = table;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * renumbers the tables that have contexts so they are consecutive, contexts that don't occur get table 0
+     */
+    private void dropEmptyTables()
+    {
+        int kept = 0;
+        for(int table = 0; table < tables; ++table)
+        {
+            boolean empty = true;
+            for(int symbol = 0; symbol < ALPHABET && empty; ++symbol)
+                empty = tableCounts[table << 8 | symbol] == 0;
+            renumber[table] = empty ? -1 : kept;
+            if(!empty)
+            {
+                if(kept != table)
+                    System.arraycopy(tableCounts, table << 8, tableCounts, kept << 8, ALPHABET);
+                ++kept;
+            }
+        }
+        for(int context = 0; context < ALPHABET; ++context)
+            tableOf[context] = tableOf[context] < 0 ? 0 : renumber[tableOf[context]];
+        tables = Math.max(kept, 1);
+    }
+}
@@ -1,222 +1,499 @@
-package pkj;
-
-import pkj.Compressor.TreeNode;
-
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.nio.file.InvalidPathException;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.Scanner;
-
-public class Decompressor {
-    
-	
-	// immutable path of file to be compressed
-    private final Path toDecompress;
-    // content of file including line separators
-    private StringBuilder content;
-    // name of compressed File
-    private String FileName;
-    // serialized tree of compressed File
-    private String serializedTree;
-    //code that inside the compressed file
-    private StringBuilder compressedCode;
-    //decompressed Text
-    private StringBuilder originText;
-    //remainder bits of last character
-    private int remainder;
-    
-    /**
-     * String Constructor that takes file path and initializes the File to be Decompressed
-     * @param filePath path of file to be compressed
-     * @throws IOException throws a checked Exception so user remembers to handle IOExceptions
-     * @throws InvalidPathException if path is invalid or doesn't exist
-     * @throws NullPointerException if passed String is null
-     */
-    public Decompressor(String filePath) throws IOException
-    {
-        this(Paths.get(filePath));
-    }
-
-    /**
-     * Path Constructor that takes the file object that points to the file to be Decompressed
-     * @param toDecompress file to be compressed
-     * @throws IOException throws a checked Exception so user remembers to handle IOExceptions
-     * @throws InvalidPathException if path is invalid or doesn't exist
-     */
-
-    public Decompressor(Path toDecompress) throws IOException
-    {
-        if(!isValid(toDecompress))
-            throw new IllegalArgumentException("Invalid file!");
-        this.toDecompress = toDecompress;
-        this.content = new StringBuilder();
-        this.compressedCode = new StringBuilder();
-        this.originText = new StringBuilder();
-    }
-
-    /**
-     * validates the path to be of a valid file
-     * @param toDecompress path that points to file
-     * @return boolean to check if file is valid or not
-     */
-    private boolean isValid(Path toDecompress)
-    {
-        File f = toDecompress.toFile();
-        return f.exists() && f.isFile();
-    }
-    
-	/**
-	 * read the decompressed file and put it in stringbuilder content 
-	 * @throws IOException
-	 */
-    private void readFile() throws IOException {
-    	File f = new File(this.toDecompress.toString());
-		Scanner sc = new Scanner(f);
-		int index = 0;
-		while(sc.hasNext()) {
-			String s = sc.nextLine();
-			if(index == 0)
-				this.FileName = s;
-			else if(index  == 1){
-				this.serializedTree = s;
-			}
-			else if(index == 2) {
-				this.remainder = Integer.parseInt(s);
-			}
-			else if (index > 2){
-			    this.compressedCode.append(s);
-			}
-			s = s + "\r\n";
-			this.content.append(s);
-			index++;
-		}
-			this.content.delete(this.content.length()-2, this.content.length()-1);
-		sc.close();
-    }
-    /**
-     * start decompress the file by reading the compressed file name and serialized tree
-     * and deserialized it and return the node of tree
-     * @throws IOException
-     */
-    public void decompress() throws IOException {
-    	readFile();
-    	System.out.println("FileName of compressed file: " + this.FileName);
-    	System.out.println("Serialized Tree : " + this.serializedTree);
-    	TreeNode root = deserialize(serializedTree);
-       // System.out.println(compressedCode);
-        StringBuilder compressedcodebin = substituteOfBin(compressedCode);
-       // System.out.println(compressedcodebin);
-        originText=OriginData(root,compressedcodebin);
-        //System.out.println(originText);
-        writeToFile(originText);
-    }
-    
-    private StringBuilder substituteOfBin(StringBuilder compressedCode) {
-		StringBuilder compreesedcodbin = new StringBuilder();
-    	for(int i = 0;i<compressedCode.length();i++) {
-    		short ascii = (short) (compressedCode.charAt(i));
-    		if(ascii > 127) {
-    			ascii = (short) (ascii - 128);
-    		}
-    		String bin  = Integer.toBinaryString(ascii);
-    		if(remainder != 0 && i + 1 == compressedCode.length()) {
-        		while(bin.length() < remainder)
-        		    bin = 0 + bin;
-    		    compreesedcodbin.append(bin);
-        		System.out.println(bin);
-    			break;
-    		}
-    		while(bin.length()<7) {
-    			bin = 0 + bin;
-    		}
-    		compreesedcodbin.append(bin);
-    	}
-		
-    	return compreesedcodbin;
-    }
-    
-    /**
-     * Deserializes the huffman tree and returns its root
-     * @param serialized serialized huffman tree
-     * @return root of deserialized huffman tree
-     */
-    private TreeNode deserialize(String serialized)
-    {
-        if(serialized == null || serialized.equals("null"))
-            return null;
-        String[] treeData = serialized.split("_,_");
-        TreeNode root = new TreeNode(treeData[0].split("="));
-        TreeNode curr = root;
-        Deque<TreeNode> q = new ArrayDeque<>();
-        int index = 1, size = 0;
-        q.add(curr);
-        String left = null, right = null;
-        while(!q.isEmpty() && index < treeData.length)
-        {
-            size = q.size();
-            for(int i = 0 ; i < size ; ++i)
-            {
-                curr = q.remove();
-                left = index < treeData.length ? treeData[index++] : "null";
-                right = index < treeData.length ? treeData[index++] : "null";
-                if(!left.equals("null"))
-                {
-                    curr.left = new TreeNode(left.split("="));
-                    q.add(curr.left);
-                }
-                if(!right.equals("null"))
-                {
-                    curr.right = new TreeNode(right.split("="));
-                    q.add(curr.right);
-                }
-            }
-        }
-        return root;
-    }
-
-    /**
-     * Traverse over the tree to get the origin text
-     * @param root TreeNode containing root of the Huffmantree
-     * @param input StringBuilder containing the string of compressed file
-     * return the origin Text
-     */
-    private StringBuilder OriginData (TreeNode root,StringBuilder input ){
-        TreeNode traceNode= root;
-        StringBuilder output= new StringBuilder();
-        for(int i= 0 ;i< input.length();i++){
-            if(input.charAt(i) == '0'){
-                traceNode=traceNode.left;
-                if(traceNode.left== null && traceNode.right==null){
-                    output.append(traceNode.character);
-                    traceNode=root;
-                }
-            }else{
-                traceNode=traceNode.right;
-                if(traceNode.left== null && traceNode.right==null){
-                    output.append(traceNode.character);
-                    traceNode=root;
-                }
-            }
-        }
-        return output;
-    }
-
-    /**
-     * writing to the decompressed  file
-     * @param originData is the string builder have the data of the file in huffman code
-     * @throws IOException
-     */
-    public void writeToFile(StringBuilder originData) throws IOException{
-        BufferedWriter writer = new BufferedWriter(new FileWriter("decompressed.txt"));
-        writer.append(originData);
-        writer.close();
-    }
-
-
-}
+package pkj;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+public class Decompressor {
+
+    // name of the file the decompressed data is written to
+    private static final String OUTPUT_NAME = "decompressed.txt";
+
+	// immutable path of file to be compressed
+    private final Path toDecompress;
+    // name of compressed File
+    private String FileName;
+    // code length table of the header shared by every block, null if blocks have their own
+    private int[] sharedLengths;
+    // dictionary every block is coded with, null if the file doesn't use one
+    private HuffmanDictionary dictionary;
+    // pre-transform stage of the header flags
+    private PreTransform preTransform;
+    // resolves the dictionary id of the header
+    private DictionaryCache dictionaries;
+    // largest number of bytes a block decodes to
+    private int blockSize;
+    // file offset of each block, null until the index is read
+    private long[] blockOffsets;
+    // offset in the original file of the first byte of each block
+    private long[] blockRawOffsets;
+    // number of bytes each block decodes to
+    private int[] blockLengths;
+    // file offset of the index, which is also where the last block ends
+    private long indexOffset;
+    // size of the original file
+    private long uncompressedSize;
+    // read the input and write the output through memory mapped buffers instead of read and write calls
+    private boolean memoryMapped;
+    // number of threads decoding blocks at the same time
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    // receives the stages of the blocks
+    private CodecMetrics metrics = CodecMetrics.NONE;
+    
+    /**
+     * String Constructor that takes file path and initializes the File to be Decompressed
+     * @param filePath path of file to be compressed
+     * @throws IOException throws a checked Exception so user remembers to handle IOExceptions
+     * @throws InvalidPathException if path is invalid or doesn't exist
+     * @throws NullPointerException if passed String is null
+     */
+    public Decompressor(String filePath) throws IOException
+    {
+        this(Paths.get(filePath));
+    }
+
+    /**
+     * Path Constructor that takes the file object that points to the file to be Decompressed
+     * @param toDecompress file to be compressed
+     * @throws IOException throws a checked Exception so user remembers to handle IOExceptions
+     * @throws InvalidPathException if path is invalid or doesn't exist
+     */
+
+    public Decompressor(Path toDecompress) throws IOException
+    {
+        if(!isValid(toDecompress))
+            throw new IllegalArgumentException("Invalid file!");
+        this.toDecompress = toDecompress;
+    }
+
+    /**
+     * Chooses between reading and writing through memory mapped buffers
+     * or through plain read / write calls (the default)
+     * @param memoryMapped true to map the input and output files in memory
+     */
+    public void setMemoryMapped(boolean memoryMapped)
+    {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Sets the number of threads that decode blocks at the same time
+     * @param parallelism number of threads, 1 decodes on a single worker
+     * @throws IllegalArgumentException if parallelism is less than 1
+     */
+    public void setParallelism(int parallelism)
+    {
+        if(parallelism < 1)
+            throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets the dictionaries files compressed with a dictionary are decoded with
+     * @param dictionaries cache resolving the dictionary id stored in the header
+     */
+    public void setDictionaryCache(DictionaryCache dictionaries)
+    {
+        this.dictionaries = dictionaries;
+    }
+
+    /**
+     * Sets the metrics receiving the time each block spends in each stage,
+     * the same stages are also reported as JFR events when a flight recording enables them
+     * @param metrics metrics to report to, {@link CodecMetrics#NONE} (the default) for none
+     * @throws IllegalArgumentException if metrics is null
+     */
+    public void setMetrics(CodecMetrics metrics)
+    {
+        if(metrics == null)
+            throw new IllegalArgumentException("Metrics must not be null, use CodecMetrics.NONE");
+        this.metrics = metrics;
+    }
+
+    /**
+     * validates the path to be of a valid file
+     * @param toDecompress path that points to file
+     * @return boolean to check if file is valid or not
+     */
+    private boolean isValid(Path toDecompress)
+    {
+        File f = toDecompress.toFile();
+        return f.exists() && f.isFile();
+    }
+    
+    /**
+     * reads the footer and the block index it points at
+     * @param channel channel of the compressed file
+     * @throws IOException if reading fails or the index is corrupted
+     */
+    private void readIndex(FileChannel channel) throws IOException
+    {
+        long size = channel.size();
+        if(size < BlockFormat.FOOTER_SIZE + 4)
+            throw new IOException("Not a compressed file: " + this.toDecompress);
+        indexOffset = read(channel, size - BlockFormat.FOOTER_SIZE, BlockFormat.FOOTER_SIZE).getLong();
+        long indexLength = size - BlockFormat.FOOTER_SIZE - indexOffset;
+        if(indexOffset < 0 || indexLength < 4 || indexLength > Integer.MAX_VALUE)
+            throw new IOException("Corrupted index in " + this.toDecompress);
+        ByteBuffer index = read(channel, indexOffset, (int)indexLength);
+        int blockCount = index.getInt();
+        if(blockCount < 0 || (long)blockCount * BlockFormat.INDEX_ENTRY_SIZE != index.remaining())
+            throw new IOException("Corrupted index in " + this.toDecompress);
+        long[] offsets = new long[blockCount];
+        long[] rawOffsets = new long[blockCount];
+        int[] lengths = new int[blockCount];
+        long rawSize = 0;
+        for(int i = 0; i < blockCount; ++i)
+        {
+            offsets[i] = index.getLong();
+            rawOffsets[i] = index.getLong();
+            lengths[i] = index.getInt();
+            if(offsets[i] < 0 || offsets[i] > indexOffset || (i > 0 && offsets[i] < offsets[i - 1])
+                    || rawOffsets[i] != rawSize || lengths[i] < 0)
+                throw new IOException("Corrupted index in " + this.toDecompress);
+            rawSize += lengths[i];
+        }
+        blockOffsets = offsets;
+        blockRawOffsets = rawOffsets;
+        blockLengths = lengths;
+        uncompressedSize = rawSize;
+    }
+
+    /**
+     * reads the header that precedes the first block: magic, version, file name, flags,
+     * block size and the shared code length table or the dictionary id if there is one
+     * @param channel channel of the compressed file
+     * @throws IOException if reading fails or the header is corrupted
+     */
+    private void readHeader(FileChannel channel) throws IOException
+    {
+        long headerEnd = blockOffsets.length > 0 ? blockOffsets[0] : indexOffset;
+        if(headerEnd > Integer.MAX_VALUE)
+            throw new IOException("Corrupted header in " + this.toDecompress);
+        BlockReader header = new BlockReader(read(channel, 0, (int)headerEnd));
+        try
+        {
+            header.readHeader();
+            this.dictionary = header.dictionary(dictionaries);
+        }
+        catch(IOException e)
+        {
+            throw new IOException(e.getMessage() + ": " + this.toDecompress, e);
+        }
+        this.FileName = header.fileName();
+        this.blockSize = header.blockSize();
+        this.sharedLengths = header.sharedLengths();
+        this.preTransform = PreTransform.fromFlags(header.flags());
+    }
+
+    /**
+     * reads a region of the compressed file, memory mapping it in memory mapped mode
+     * @param channel channel of the compressed file
+     * @param position file offset of the region
+     * @param length size of the region in bytes
+     * @return buffer over the region
+     * @throws IOException if reading fails
+     */
+    private ByteBuffer read(FileChannel channel, long position, int length) throws IOException
+    {
+        if(memoryMapped)
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        return readInto(channel, position, ByteBuffer.allocate(length));
+    }
+
+    /**
+     * fills buffer from its position to its limit with the bytes of the file at position
+     * @param channel channel of the compressed file
+     * @param position file offset of the first byte
+     * @param buffer buffer to fill
+     * @return buffer flipped for reading
+     * @throws IOException if reading fails or the file ends early
+     */
+    private ByteBuffer readInto(FileChannel channel, long position, ByteBuffer buffer) throws IOException
+    {
+        int start = buffer.position();
+        while(buffer.hasRemaining())
+            if(channel.read(buffer, position + buffer.position() - start) == -1)
+                throw new IOException("Unexpected end of " + this.toDecompress);
+        buffer.flip();
+        buffer.position(start);
+        return buffer;
+    }
+
+    /**
+     * reads the index and the header of the compressed file the first time they are needed,
+     * later ranged reads reuse them
+     * @param channel channel of the compressed file
+     * @throws IOException if reading fails or the file is corrupted
+     */
+    private void ensureIndex(FileChannel channel) throws IOException
+    {
+        if(blockOffsets != null)
+            return;
+        readIndex(channel);
+        try
+        {
+            readHeader(channel);
+        }
+        catch(IOException e)
+        {
+            blockOffsets = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the name the original file was compressed from, read from the header
+     * @return name of the original file, empty for in memory data
+     * @throws IOException if reading fails or the file is corrupted
+     */
+    public String getFileName() throws IOException
+    {
+        try(FileChannel channel = FileChannel.open(this.toDecompress, StandardOpenOption.READ))
+        {
+            ensureIndex(channel);
+        }
+        return this.FileName;
+    }
+
+    /**
+     * Returns the size of the original file, read from the seek table
+     * @return number of bytes the compressed file decodes to
+     * @throws IOException if reading fails or the file is corrupted
+     */
+    public long getUncompressedSize() throws IOException
+    {
+        try(FileChannel channel = FileChannel.open(this.toDecompress, StandardOpenOption.READ))
+        {
+            ensureIndex(channel);
+        }
+        return uncompressedSize;
+    }
+
+    /**
+     * start decompress the file by reading the block index and the header of compressed file
+     * then decoding every block, each block rebuilds its canonical codes
+     * from its code lengths (or uses the shared ones of the header)
+     * the output goes to decompressed.txt
+     * @throws IOException
+     */
+    public void decompress() throws IOException
+    {
+        decompress(OUTPUT_NAME);
+    }
+
+    /**
+     * Decompresses the whole file into outputName
+     * @param outputName name of file to output decompressed data in
+     * @throws IOException if reading or writing fails or the file is corrupted
+     */
+    public void decompress(String outputName) throws IOException
+    {
+        OutputStream file = memoryMapped ? new MappedOutputStream(Paths.get(outputName))
+                : new BufferedOutputStream(new FileOutputStream(outputName));
+        try(OutputStream out = file)
+        {
+            decompress(0, Long.MAX_VALUE, out);
+        }
+    }
+
+    /**
+     * a block handed to the pool together with the future of its decoded bytes
+     */
+    private static class PendingBlock
+    {
+        final int block;
+        final Future<byte[]> decoded;
+
+        PendingBlock(int block, Future<byte[]> decoded)
+        {
+            this.block = block;
+            this.decoded = decoded;
+        }
+    }
+
+    /**
+     * per thread state of the pool: a block decoder and the buffer blocks are read into
+     */
+    private static class Worker
+    {
+        final BlockDecoder decoder;
+        ByteBuffer input;
+
+        Worker(int[] sharedLengths, HuffmanDictionary dictionary, PreTransform preTransform, CodecMetrics metrics)
+        {
+            this.decoder = new BlockDecoder(sharedLengths);
+            decoder.setPreTransform(preTransform);
+            decoder.setMetrics(metrics);
+            if(dictionary != null)
+                decoder.setSharedDecoder(dictionary.decoder());
+        }
+    }
+
+    /**
+     * Decompresses the bytes [start, end) of the original file,
+     * the seek table is searched for the first block covering start and only the blocks
+     * overlapping the range are read and decoded, on a pool of parallelism threads
+     * with at most twice that many decoded blocks waiting to be written
+     * @param start offset in the original file of the first byte wanted
+     * @param end offset in the original file following the last byte wanted, clamped to the size of the file
+     * @param out receives the decompressed bytes of the range
+     * @throws IOException if reading or writing fails or the file is corrupted
+     * @throws IllegalArgumentException if start is negative or greater than end
+     */
+    public void decompress(long start, long end, OutputStream out) throws IOException
+    {
+        if(start < 0 || end < start)
+            throw new IllegalArgumentException("Invalid range: " + start + ".." + end);
+        try(FileChannel channel = FileChannel.open(this.toDecompress, StandardOpenOption.READ))
+        {
+            ensureIndex(channel);
+            end = Math.min(end, uncompressedSize);
+            if(start >= end)
+                return;
+            int first = Arrays.binarySearch(blockRawOffsets, start);
+            if(first < 0)
+                first = -first - 2;
+            // blocks of an empty length share their raw offset with the next one
+            while(blockLengths[first] == 0)
+                ++first;
+
+            ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+            int[] shared = sharedLengths;
+            HuffmanDictionary dictionary = this.dictionary;
+            PreTransform preTransform = this.preTransform;
+            CodecMetrics metrics = this.metrics;
+            ThreadLocal<Worker> workers = ThreadLocal.withInitial(
+                    () -> new Worker(shared, dictionary, preTransform, metrics));
+            Deque<byte[]> free = new ConcurrentLinkedDeque<>();
+            Deque<PendingBlock> pending = new ArrayDeque<>();
+            try
+            {
+                for(int i = first; i < blockOffsets.length && blockRawOffsets[i] < end; ++i)
+                {
+                    int block = i;
+                    pending.add(new PendingBlock(block, submit(pool, () -> decodeBlock(channel, block, workers.get(), free))));
+                    if(pending.size() >= 2 * parallelism)
+                        writeBlock(pending.remove(), start, end, out, free);
+                }
+                while(!pending.isEmpty())
+                    writeBlock(pending.remove(), start, end, out, free);
+            }
+            finally
+            {
+                if(pool != null)
+                    pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * reads and decodes one block, runs on the pool
+     * @param channel channel of the compressed file
+     * @param block index of the block
+     * @param worker state of the running thread
+     * @param free decoded buffers that were written out and can be filled again
+     * @return buffer holding the decoded bytes of the block from index 0
+     */
+    private byte[] decodeBlock(FileChannel channel, int block, Worker worker, Deque<byte[]> free)
+    {
+        try
+        {
+            long end = block + 1 < blockOffsets.length ? blockOffsets[block + 1] : indexOffset;
+            int length = (int)(end - blockOffsets[block]);
+            long start = Instrumentation.start(metrics);
+            ByteBuffer data;
+            if(memoryMapped)
+                data = channel.map(FileChannel.MapMode.READ_ONLY, blockOffsets[block], length);
+            else
+            {
+                if(worker.input == null || worker.input.capacity() < length)
+                    worker.input = ByteBuffer.allocate(length);
+                worker.input.clear().limit(length);
+                data = readInto(channel, blockOffsets[block], worker.input);
+            }
+            Instrumentation.end(metrics, CodecMetrics.Stage.READ, start, length);
+            byte[] output = free.poll();
+            if(output == null)
+                output = new byte[blockSize];
+            if(worker.decoder.decode(data, output, 0) != blockLengths[block])
+                throw new IllegalArgumentException("Corrupted block");
+            return output;
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * waits for a block to be decoded and writes the part of it that falls in [start, end)
+     * @param pending block to write
+     * @param start offset in the original file of the first byte wanted
+     * @param end offset in the original file following the last byte wanted
+     * @param out receives the decompressed bytes
+     * @param free receives the decoded buffer once written so it can be filled again
+     * @throws IOException if decoding or writing fails
+     */
+    private void writeBlock(PendingBlock pending, long start, long end, OutputStream out, Deque<byte[]> free) throws IOException
+    {
+        byte[] decoded;
+        try
+        {
+            decoded = pending.decoded.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decompressing " + this.toDecompress);
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof UncheckedIOException)
+                throw ((UncheckedIOException)e.getCause()).getCause();
+            throw new IOException("Corrupted block " + pending.block + " in " + this.toDecompress, e.getCause());
+        }
+        long rawOffset = blockRawOffsets[pending.block];
+        int from = (int)Math.max(start - rawOffset, 0);
+        int to = (int)Math.min(end - rawOffset, blockLengths[pending.block]);
+        long started = Instrumentation.start(metrics);
+        out.write(decoded, from, to - from);
+        Instrumentation.end(metrics, CodecMetrics.Stage.WRITE, started, to - from);
+        free.add(decoded);
+    }
+
+    /**
+     * runs task on pool, or right away on the calling thread when there is no pool
+     * (parallelism of 1) so single threaded work doesn't pay for a pool
+     * @param pool pool to run on, or null
+     * @param task task to run
+     * @return future of the result of task
+     */
+    private static <T> Future<T> submit(ForkJoinPool pool, Callable<T> task)
+    {
+        if(pool != null)
+            return pool.submit(task);
+        FutureTask<T> inline = new FutureTask<>(task);
+        inline.run();
+        return inline;
+    }
+}
@@ -0,0 +1,141 @@
+package pkj;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Bounded least recently used cache of dictionaries keyed by id,
+ * dictionaries that are not cached (or were evicted) are loaded again through a loader.
+ * Compressed data only records the id and the fingerprint of its dictionary, decompression looks it up here.
+ * The cache is thread safe
+ */
+public class DictionaryCache
+{
+    // number of dictionaries kept in memory
+    private final int capacity;
+    // loads a dictionary missing from the cache, returns null for an unknown id
+    private final IntFunction<HuffmanDictionary> loader;
+    // cached dictionaries in access order, the eldest is evicted past capacity
+    private final Map<Integer, HuffmanDictionary> cache;
+
+    /**
+     * Initializes a cache of dictionaries that are only added through {@link #put(HuffmanDictionary)}
+     * @param capacity number of dictionaries kept in memory
+     */
+    public DictionaryCache(int capacity)
+    {
+        this(capacity, id -> null);
+    }
+
+    /**
+     * Initializes a cache
+     * @param capacity number of dictionaries kept in memory
+     * @param loader loads a dictionary missing from the cache, returns null for an unknown id
+     * @throws IllegalArgumentException if capacity is less than 1
+     */
+    public DictionaryCache(int capacity, IntFunction<HuffmanDictionary> loader)
+    {
+        if(capacity < 1)
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        this.capacity = capacity;
+        this.loader = loader;
+        this.cache = new LinkedHashMap<Integer, HuffmanDictionary>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, HuffmanDictionary> eldest)
+            {
+                return size() > DictionaryCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Initializes a cache that loads dictionary id from the file "id.dict" of a directory
+     * @param directory directory holding the stored dictionaries
+     * @param capacity number of dictionaries kept in memory
+     * @return the cache
+     */
+    public static DictionaryCache fromDirectory(Path directory, int capacity)
+    {
+        return new DictionaryCache(capacity, id -> {
+            try(InputStream in = Files.newInputStream(directory.resolve(id + ".dict")))
+            {
+                return HuffmanDictionary.read(in);
+            }
+            catch(NoSuchFileException e)
+            {
+                return null;
+            }
+            catch(IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Adds a dictionary, replacing a cached one with the same id
+     * @param dictionary dictionary to add
+     */
+    public synchronized void put(HuffmanDictionary dictionary)
+    {
+        cache.put(dictionary.getId(), dictionary);
+    }
+
+    /**
+     * Returns the dictionary of an id, loading it if it isn't cached
+     * @param id id of the dictionary
+     * @return the dictionary
+     * @throws IllegalArgumentException if the dictionary is unknown
+     */
+    public HuffmanDictionary get(int id)
+    {
+        synchronized(this)
+        {
+            HuffmanDictionary dictionary = cache.get(id);
+            if(dictionary != null)
+                return dictionary;
+        }
+        // loaded outside the lock so a slow load doesn't block lookups of cached dictionaries
+        HuffmanDictionary dictionary = loader.apply(id);
+        if(dictionary == null || dictionary.getId() != id)
+            throw new IllegalArgumentException("Unknown dictionary: " + id);
+        put(dictionary);
+        return dictionary;
+    }
+
+    /**
+     * Returns the dictionary of an id whose table has the given fingerprint, a cached dictionary with another
+     * fingerprint is loaded again in case the stored dictionary was replaced since
+     * @param id id of the dictionary
+     * @param fingerprint fingerprint recorded with the id, see {@link HuffmanDictionary#getFingerprint()}
+     * @return the dictionary
+     * @throws IllegalArgumentException if the dictionary is unknown or its fingerprint differs
+     */
+    public HuffmanDictionary get(int id, int fingerprint)
+    {
+        HuffmanDictionary dictionary = get(id);
+        if(dictionary.getFingerprint() == fingerprint)
+            return dictionary;
+        dictionary = loader.apply(id);
+        if(dictionary == null || dictionary.getId() != id || dictionary.getFingerprint() != fingerprint)
+            throw new IllegalArgumentException("Dictionary " + id + " doesn't match the one the data was compressed with");
+        put(dictionary);
+        return dictionary;
+    }
+
+    /**
+     * @return number of dictionaries in memory
+     */
+    public synchronized int size()
+    {
+        return cache.size();
+    }
+}
@@ -0,0 +1,100 @@
+package pkj;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * LZ77 stage: finds the longest earlier occurrence of the bytes at each position within the last
+ * {@link MatchCoder#WINDOW} bytes, following hash chains of the positions sharing the hash of their first 3 bytes.
+ * Matching is greedy: the longest match found is taken and the bytes it covers are skipped.
+ * Chains are cut after MAX_CHAIN candidates and a match of NICE_LENGTH bytes is taken at once,
+ * which bounds the time spent per byte on repetitive input
+ */
+class HashChainMatchFinder implements MatchFinder
+{
+    // bits of the hash of 3 bytes
+    private static final int HASH_BITS = 15;
+    // most candidates compared per position
+    private static final int MAX_CHAIN = 64;
+    // match length good enough to stop looking for a longer one
+    private static final int NICE_LENGTH = 128;
+
+    // last position of each hash, -1 if none
+    private final int[] head = new int[1 << HASH_BITS];
+    // previous position with the same hash of each position, indexed by position modulo WINDOW
+    private final int[] chain = new int[MatchCoder.WINDOW];
+    // distance of the match last found by longestMatch
+    private int matchDistance;
+
+    @Override
+    public int findMatches(ByteBuffer src, int[] tokens)
+    {
+        Arrays.fill(head, -1);
+        int start = src.position(), n = src.remaining(), count = 0;
+        for(int i = 0; i < n; )
+        {
+            int length = longestMatch(src, start, i, n);
+            if(length < MatchCoder.MIN_MATCH)
+            {
+                tokens[count++] = src.get(start + i) & 0xFF;
+                insert(src, start, i++, n);
+                continue;
+            }
+            tokens[count++] = MatchCoder.match(length, matchDistance);
+            for(int end = i + length; i < end; ++i)
+                insert(src, start, i, n);
+        }
+        return count;
+    }
+
+    /**
+     * finds the longest match of the bytes at position i among the chained earlier positions
+     * @return length of the match, its distance is left in matchDistance, 0 if there is none
+     */
+    private int longestMatch(ByteBuffer src, int start, int i, int n)
+    {
+        if(n - i < MatchCoder.MIN_MATCH)
+            return 0;
+        int best = 0, maxLength = Math.min(MatchCoder.MAX_MATCH, n - i), candidates = MAX_CHAIN;
+        for(int candidate = head[hash(src, start + i)];
+            candidate >= 0 && i - candidate <= MatchCoder.WINDOW && candidates-- > 0;
+            candidate = chain[candidate & (MatchCoder.WINDOW - 1)])
+        {
+            // a candidate can only be longer if it also matches the byte after the best match so far
+            if(src.get(start + candidate + best) != src.get(start + i + best))
+                continue;
+            int length = 0;
+            while(length < maxLength && src.get(start + candidate + length) == src.get(start + i + length))
+                ++length;
+            if(length > best)
+            {
+                best = length;
+                matchDistance = i - candidate;
+                if(length >= NICE_LENGTH || length == maxLength)
+                    break;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * chains position i to the earlier positions sharing the hash of its first 3 bytes
+     */
+    private void insert(ByteBuffer src, int start, int i, int n)
+    {
+        if(n - i < MatchCoder.MIN_MATCH)
+            return;
+        int hash = hash(src, start + i);
+        chain[i & (MatchCoder.WINDOW - 1)] = head[hash];
+        head[hash] = i;
+    }
+
+    /**
+     * @return hash of the 3 bytes at index
+     */
+    private static int hash(ByteBuffer src, int index)
+    {
+        int bytes = (src.get(index) & 0xFF) << 16 | (src.get(index + 1) & 0xFF) << 8 | (src.get(index + 2) & 0xFF);
+        return (bytes * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+}
@@ -0,0 +1,434 @@
+package pkj;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses and decompresses in memory data and streams, without going through files.
+ * The output is the same container {@link Compressor} writes (see {@link BlockFormat}) with an empty file name,
+ * so a file compressed by {@link Compressor} can be decompressed here and the other way around.
+ * A codec keeps its tables and buffers between calls so compressing and decompressing between buffers
+ * doesn't allocate any buffer once warmed up, it is not thread safe: use one codec per thread
+ */
+public class HuffmanCodec
+{
+    // file name stored in the header of in memory data
+    private static final byte[] NO_NAME = {};
+
+    // number of input bytes encoded as one block
+    private final int blockSize;
+    // encodes the blocks, with a table per block or the table of the dictionary
+    private final BlockEncoder encoder = new BlockEncoder();
+    // dictionary compressed data is coded with, null to build a table per block
+    private HuffmanDictionary dictionary;
+    // resolves the dictionary id of compressed data
+    private DictionaryCache dictionaries;
+    // code adaptive blocks, which don't use the dictionary
+    private boolean adaptive;
+    // stage run on each block before coding, recorded in the header
+    private PreTransform preTransform = PreTransform.NONE;
+    // code each input with one table sampled from it, stored in the header
+    private boolean sampledTable;
+    // estimates the sampled table
+    private TableSampler sampler;
+    // sampled table of the input being compressed and its codes
+    private final int[] sharedLengths = new int[Compressor.ALPHABET_SIZE];
+    private final int[] sharedCodes = new int[Compressor.ALPHABET_SIZE];
+    // longest code of the tables built from the input
+    private int maxCodeLength = CanonicalCode.MAX_LENGTH;
+    // decodes the blocks
+    private final BlockDecoder decoder = new BlockDecoder(null);
+    // writes the container to a stream or, through bufferOut, to a buffer
+    private final BlockWriter writer = new BlockWriter();
+    private final ByteBufferOutputStream bufferOut = new ByteBufferOutputStream();
+    // reads the container from a buffer or a stream
+    private BlockReader reader;
+    // input block read from a stream, or output block decoded before being copied out
+    private byte[] scratch;
+    private ByteBuffer scratchBuffer;
+
+    /**
+     * Initializes a codec with the default block size
+     */
+    public HuffmanCodec()
+    {
+        this(BlockFormat.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Initializes a codec
+     * @param blockSize number of input bytes encoded as one independent block
+     * @throws IllegalArgumentException if blockSize is out of the supported range
+     */
+    public HuffmanCodec(int blockSize)
+    {
+        if(blockSize < BlockFormat.MIN_BLOCK_SIZE || blockSize > BlockFormat.MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("Block size must be between " + BlockFormat.MIN_BLOCK_SIZE
+                    + " and " + BlockFormat.MAX_BLOCK_SIZE + ": " + blockSize);
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Codes the compressed data with a pre-trained dictionary instead of a table per block,
+     * the dictionary is also added to the dictionary cache so this codec can decompress what it compresses
+     * @param dictionary dictionary to code with, or null to build a table per block (the default)
+     */
+    public void setDictionary(HuffmanDictionary dictionary)
+    {
+        this.dictionary = dictionary;
+        if(dictionary == null)
+            encoder.setSharedTable(null, null);
+        else
+        {
+            encoder.setSharedTable(dictionary.lengths(), dictionary.codes());
+            if(dictionaries == null)
+                dictionaries = new DictionaryCache(16);
+            dictionaries.put(dictionary);
+        }
+    }
+
+    /**
+     * Chooses between static huffman blocks (the default) and adaptive ones coded in a single pass,
+     * see {@link Compressor#setAdaptive(boolean)}
+     * @param adaptive true to code adaptive blocks
+     */
+    public void setAdaptive(boolean adaptive)
+    {
+        this.adaptive = adaptive;
+        encoder.setAdaptive(adaptive);
+    }
+
+    /**
+     * Sets the stage run on each block before huffman coding, see {@link Compressor#setPreTransform(PreTransform)}
+     * @param preTransform stage to run, NONE (the default) codes bytes as they are
+     * @throws IllegalArgumentException if preTransform is null
+     */
+    public void setPreTransform(PreTransform preTransform)
+    {
+        if(preTransform == null)
+            throw new IllegalArgumentException("Pre-transform must not be null, use NONE");
+        this.preTransform = preTransform;
+        encoder.setPreTransform(preTransform);
+    }
+
+    /**
+     * Chooses between one table per block (the default) and order-1 context tables where they are smaller,
+     * see {@link Compressor#setContextModeling(boolean)}
+     * @param contextModeling true to try context tables on each block
+     */
+    public void setContextModeling(boolean contextModeling)
+    {
+        encoder.setContextModeling(contextModeling);
+    }
+
+    /**
+     * Chooses between single stream blocks (the default) and blocks split into interleaved sub-streams,
+     * see {@link Compressor#setInterleaved(boolean)}
+     * @param interleaved true to split blocks into sub-streams
+     */
+    public void setInterleaved(boolean interleaved)
+    {
+        encoder.setInterleaved(interleaved);
+    }
+
+    /**
+     * Caps the length of the codes of the tables built per block, see {@link Compressor#setMaxCodeLength(int)}
+     * @param maxCodeLength longest code in bits
+     * @throws IllegalArgumentException if maxCodeLength is out of range
+     */
+    public void setMaxCodeLength(int maxCodeLength)
+    {
+        this.maxCodeLength = Compressor.checkMaxCodeLength(maxCodeLength);
+        encoder.setMaxCodeLength(maxCodeLength);
+    }
+
+    /**
+     * Sets the table mode, the pre-transform stage and context modeling from a preset,
+     * see {@link Compressor#setLevel(CompressionLevel)}: at FAST the table is sampled from the buffer compressed,
+     * or from the first block of a stream. A dictionary takes precedence over the sampled table
+     * @param level preset to apply
+     * @throws IllegalArgumentException if level is null
+     */
+    public void setLevel(CompressionLevel level)
+    {
+        if(level == null)
+            throw new IllegalArgumentException("Level must not be null");
+        sampledTable = level == CompressionLevel.FAST;
+        if(!sampledTable && dictionary == null)
+            encoder.setSharedTable(null, null);
+        encoder.setContextModeling(level == CompressionLevel.BEST);
+        setPreTransform(level == CompressionLevel.BEST ? PreTransform.LZ77 : PreTransform.NONE);
+    }
+
+    /**
+     * Sets the metrics receiving the time each block spends in each stage and the sizes of the encoded blocks,
+     * see {@link Compressor#setMetrics(CodecMetrics)}
+     * @param metrics metrics to report to, {@link CodecMetrics#NONE} (the default) for none
+     * @throws IllegalArgumentException if metrics is null
+     */
+    public void setMetrics(CodecMetrics metrics)
+    {
+        if(metrics == null)
+            throw new IllegalArgumentException("Metrics must not be null, use CodecMetrics.NONE");
+        encoder.setMetrics(metrics);
+        decoder.setMetrics(metrics);
+    }
+
+    /**
+     * Sets the dictionaries compressed data referencing a dictionary is decoded with
+     * @param dictionaries cache resolving dictionary ids
+     */
+    public void setDictionaryCache(DictionaryCache dictionaries)
+    {
+        this.dictionaries = dictionaries;
+        if(dictionary != null)
+            dictionaries.put(dictionary);
+    }
+
+    /**
+     * Fingerprints the options that change the compressed output, so output kept from an earlier run
+     * is reused only by a codec that would write the same bytes, see {@link CompressionCache}
+     * @return the same value for codecs with the same format version, block size and coding options
+     */
+    long settings()
+    {
+        long settings = BlockFormat.VERSION;
+        settings = settings * 31 + blockSize;
+        settings = settings * 31 + maxCodeLength;
+        settings = settings * 31 + preTransform.ordinal();
+        settings = settings * 31 + (adaptive ? 1 : 0) + (sampledTable ? 2 : 0)
+                + (encoder.isContextModeling() ? 4 : 0) + (encoder.isInterleaved() ? 8 : 0);
+        settings = settings * 31 + (dictionary == null ? -1 : dictionary.getId());
+        return settings * 31 + (dictionary == null ? 0 : dictionary.getFingerprint());
+    }
+
+    /**
+     * @return header flags recording the pre-transform stage when the blocks build their own tables
+     */
+    private int headerFlags()
+    {
+        return adaptive || dictionary != null || sampledTable ? 0 : preTransform.flag();
+    }
+
+    /**
+     * Prepares the encoder for the next input, at level FAST it codes with a table sampled from sample
+     * @param sample bytes the table is estimated from, its position is left unchanged
+     * @param partial whether sample is only the start of the input
+     * @return the sampled code lengths to store in the header, or null if the blocks don't share them
+     */
+    private int[] shareTable(ByteBuffer sample, boolean partial)
+    {
+        if(!sampledTable || adaptive || dictionary != null)
+            return null;
+        if(sampler == null)
+            sampler = new TableSampler();
+        Compressor.generateCodeLengths(sampler.sample(sample, partial), sharedLengths, maxCodeLength);
+        CanonicalCode.assignCodes(sharedLengths, sharedCodes);
+        encoder.setSharedTable(sharedLengths, sharedCodes);
+        return sharedLengths;
+    }
+
+    /**
+     * Returns an upper bound of the compressed size of length bytes,
+     * a destination buffer of that size always fits the output of {@link #compress(ByteBuffer, ByteBuffer)}
+     * @param length number of bytes to compress
+     * @return largest possible compressed size
+     */
+    public int maxCompressedLength(int length)
+    {
+        long blocks = (length + (long)blockSize - 1) / blockSize;
+        // blocks that coding wouldn't shrink are stored, so a block takes at most its length,
+        // plus a block header of at most 11 bytes and an index entry of 20 bytes
+        long bound = 64 + length + blocks * (11 + BlockFormat.INDEX_ENTRY_SIZE);
+        // a sampled table has one run of a length per byte value: 5 bytes of run header and 256 lengths
+        if(sampledTable)
+            bound += 5 + Compressor.ALPHABET_SIZE;
+        return (int)Math.min(bound, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Compresses the remaining bytes of src into dst
+     * @param src bytes to compress, its position is moved to its limit
+     * @param dst receives the compressed bytes from its position, which is moved past them
+     * @return number of compressed bytes
+     * @throws BufferOverflowException if dst is too small, see {@link #maxCompressedLength(int)}
+     */
+    public int compress(ByteBuffer src, ByteBuffer dst)
+    {
+        int start = dst.position();
+        int limit = src.limit();
+        bufferOut.reset(dst);
+        writer.reset(bufferOut);
+        try
+        {
+            int[] shared = shareTable(src, false);
+            writer.writeHeader(NO_NAME, headerFlags(), blockSize, shared, adaptive ? null : dictionary);
+            while(src.hasRemaining())
+            {
+                // the block is delimited by the limit of src instead of a slice so nothing is allocated
+                int end = (int)Math.min(limit, (long)src.position() + blockSize);
+                src.limit(end);
+                encoder.encode(src);
+                writer.writeBlock(encoder, end - src.position());
+                src.position(end).limit(limit);
+            }
+            writer.finish();
+        }
+        catch(IOException e)
+        {
+            // only a buffer is written
+            throw new UncheckedIOException(e);
+        }
+        finally
+        {
+            src.limit(limit);
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * Returns the number of bytes a container decompresses to, read from its index without decoding it
+     * @param src buffer holding exactly one container from its position to its limit, left unchanged
+     * @return number of decompressed bytes
+     * @throws IllegalArgumentException if the index or the footer of the container is corrupted
+     */
+    public long decompressedLength(ByteBuffer src)
+    {
+        int start = src.position(), size = src.remaining();
+        if(size < 4 + BlockFormat.FOOTER_SIZE)
+            throw new IllegalArgumentException("Corrupted compressed data");
+        long indexOffset = src.getLong(src.limit() - BlockFormat.FOOTER_SIZE);
+        if(indexOffset < 0 || indexOffset > size - 4 - BlockFormat.FOOTER_SIZE)
+            throw new IllegalArgumentException("Corrupted compressed data");
+        int index = start + (int)indexOffset;
+        int blocks = src.getInt(index);
+        if(blocks < 0 || (long)blocks * BlockFormat.INDEX_ENTRY_SIZE != size - indexOffset - 4 - BlockFormat.FOOTER_SIZE)
+            throw new IllegalArgumentException("Corrupted compressed data");
+        if(blocks == 0)
+            return 0;
+        // raw offset and raw length of the last block
+        int last = index + 4 + (blocks - 1) * BlockFormat.INDEX_ENTRY_SIZE;
+        long length = src.getLong(last + 8) + src.getInt(last + 16);
+        if(length < 0)
+            throw new IllegalArgumentException("Corrupted compressed data");
+        return length;
+    }
+
+    /**
+     * Decompresses a compressed container from src into dst
+     * @param src compressed bytes from its position, its position is moved past the container
+     * @param dst receives the decompressed bytes from its position, which is moved past them
+     * @return number of decompressed bytes
+     * @throws BufferOverflowException if dst is too small
+     * @throws IllegalArgumentException if src doesn't hold a valid container or its dictionary is unknown
+     */
+    public int decompress(ByteBuffer src, ByteBuffer dst)
+    {
+        int start = dst.position();
+        BlockReader reader = reader();
+        reader.reset(src);
+        try
+        {
+            reader.readHeader();
+            reader.configure(decoder, dictionaries);
+            for(ByteBuffer block = reader.nextBlock(); block != null; block = reader.nextBlock())
+            {
+                int rawLength = BlockDecoder.rawLength(block);
+                if(rawLength > dst.remaining())
+                    throw new BufferOverflowException();
+                if(dst.hasArray())
+                {
+                    decoder.decode(block, dst.array(), dst.arrayOffset() + dst.position());
+                    dst.position(dst.position() + rawLength);
+                }
+                else
+                {
+                    // sized by dst rather than the block size of the header, which the data itself claims
+                    decoder.decode(block, scratch(Math.min(reader.blockSize(), dst.remaining())), 0);
+                    dst.put(scratch, 0, rawLength);
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * Compresses everything in from in into out, the streams are left open
+     * @param in stream to compress until its end
+     * @param out receives the compressed container
+     * @throws IOException if reading or writing fails
+     */
+    public void compress(InputStream in, OutputStream out) throws IOException
+    {
+        byte[] block = scratch(blockSize);
+        writer.reset(out);
+        // the first block is read before the header so it can be sampled, it is the whole input if it is short
+        int length = in.readNBytes(block, 0, blockSize);
+        scratchBuffer.clear().limit(length);
+        int[] shared = shareTable(scratchBuffer, length == blockSize);
+        writer.writeHeader(NO_NAME, headerFlags(), blockSize, shared, adaptive ? null : dictionary);
+        for(; length > 0; length = in.readNBytes(block, 0, blockSize))
+        {
+            scratchBuffer.clear().limit(length);
+            encoder.encode(scratchBuffer);
+            writer.writeBlock(encoder, length);
+        }
+        writer.finish();
+    }
+
+    /**
+     * Decompresses a compressed container from in into out, the streams are left open
+     * @param in stream holding the container
+     * @param out receives the decompressed bytes
+     * @throws IOException if reading or writing fails or the data is corrupted
+     */
+    public void decompress(InputStream in, OutputStream out) throws IOException
+    {
+        BlockReader reader = reader();
+        reader.reset(in);
+        reader.readHeader();
+        reader.configure(decoder, dictionaries);
+        byte[] block = scratch(reader.blockSize());
+        try
+        {
+            for(ByteBuffer encoded = reader.nextBlock(); encoded != null; encoded = reader.nextBlock())
+                out.write(block, 0, decoder.decode(encoded, block, 0));
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new IOException("Corrupted compressed data", e);
+        }
+        out.flush();
+    }
+
+    /**
+     * @return the reader, allocated on first use
+     */
+    private BlockReader reader()
+    {
+        if(reader == null)
+            reader = new BlockReader(ByteBuffer.allocate(0));
+        return reader;
+    }
+
+    /**
+     * @return the scratch array, grown to at least size bytes
+     */
+    private byte[] scratch(int size)
+    {
+        if(scratch == null || scratch.length < size)
+        {
+            scratch = new byte[size];
+            scratchBuffer = ByteBuffer.wrap(scratch);
+        }
+        return scratch;
+    }
+}
@@ -0,0 +1,133 @@
+package pkj;
+
+import java.util.Arrays;
+
+/**
+ * Decodes canonical huffman codes several bits at a time using a lookup table
+ * indexed by the next TABLE_BITS bits of the stream, each entry holds the decoded
+ * symbol and the length of its code so one peek and one skip decode a whole symbol.
+ * Codes longer than TABLE_BITS fall back to the canonical first code / count per length arrays.
+ * A decoder can be re initialized with new lengths without allocating
+ */
+class HuffmanDecoder
+{
+    // number of bits used to index the primary table
+    static final int TABLE_BITS = 11;
+    // marks table entries whose code is longer than TABLE_BITS
+    private static final int LONG_CODE = -1;
+
+    // symbol << 8 | code length, or LONG_CODE
+    private final int[] table = new int[1 << TABLE_BITS];
+    // first canonical code of each length
+    private final int[] firstCode = new int[CanonicalCode.MAX_LENGTH + 2];
+    // number of codes of each length
+    private final int[] lengthCount = new int[CanonicalCode.MAX_LENGTH + 2];
+    // index in sortedSymbols of the first symbol of each length
+    private final int[] firstIndex = new int[CanonicalCode.MAX_LENGTH + 2];
+    // next free slot in sortedSymbols of each length while sorting
+    private final int[] nextIndex = new int[CanonicalCode.MAX_LENGTH + 2];
+    // symbols sorted by (code length, symbol), grown on demand
+    private int[] sortedSymbols = new int[256];
+    // length of the longest code
+    private int maxLength;
+
+    /**
+     * Initializes an empty decoder, {@link #init(int[])} must be called before decoding
+     */
+    HuffmanDecoder()
+    {
+    }
+
+    /**
+     * Builds a decoder for the given code lengths
+     * @param lengths code length of each symbol, 0 if the symbol doesn't occur
+     */
+    HuffmanDecoder(int[] lengths)
+    {
+        init(lengths);
+    }
+
+    /**
+     * Rebuilds the lookup table and the canonical arrays for the given code lengths
+     * @param lengths code length of each symbol, 0 if the symbol doesn't occur
+     * @throws IllegalStateException if the lengths can't be given prefix free codes,
+     *         a longer length or an over-subscribed table would index past the lookup table
+     */
+    void init(int[] lengths)
+    {
+        Arrays.fill(lengthCount, 0);
+        maxLength = 0;
+        int symbols = 0;
+        // Kraft sum scaled by 2^MAX_LENGTH
+        long kraft = 0;
+        for(int length : lengths)
+        {
+            if(length == 0)
+                continue;
+            if(length < 0 || length > CanonicalCode.MAX_LENGTH)
+                throw new IllegalStateException("Invalid code length " + length);
+            ++lengthCount[length];
+            ++symbols;
+            maxLength = Math.max(maxLength, length);
+            kraft += 1L << (CanonicalCode.MAX_LENGTH - length);
+        }
+        if(kraft > 1L << CanonicalCode.MAX_LENGTH)
+            throw new IllegalStateException("Over-subscribed code lengths");
+        if(sortedSymbols.length < symbols)
+            sortedSymbols = new int[symbols];
+
+        int code = 0, index = 0;
+        for(int length = 1; length <= maxLength; ++length)
+        {
+            firstCode[length] = code;
+            firstIndex[length] = index;
+            code = (code + lengthCount[length]) << 1;
+            index += lengthCount[length];
+        }
+        System.arraycopy(firstIndex, 0, nextIndex, 0, nextIndex.length);
+        for(int symbol = 0; symbol < lengths.length; ++symbol)
+        {
+            int length = lengths[symbol];
+            if(length != 0)
+                sortedSymbols[nextIndex[length]++] = symbol;
+        }
+
+        Arrays.fill(table, LONG_CODE);
+        for(int length = 1; length <= Math.min(maxLength, TABLE_BITS); ++length)
+        {
+            int shift = TABLE_BITS - length;
+            for(int i = 0; i < lengthCount[length]; ++i)
+            {
+                int entry = (sortedSymbols[firstIndex[length] + i] << 8) | length;
+                int start = (firstCode[length] + i) << shift;
+                Arrays.fill(table, start, start + (1 << shift), entry);
+            }
+        }
+    }
+
+    /**
+     * Decodes the next symbol from the bit stream
+     * @param input stream positioned at the start of a code
+     * @return decoded symbol
+     * @throws IllegalStateException if the bits don't form a valid code
+     */
+    int decode(BitReader input)
+    {
+        int entry = table[input.peek(TABLE_BITS)];
+        if(entry != LONG_CODE)
+        {
+            input.skip(entry & 0xFF);
+            return entry >>> 8;
+        }
+        for(int length = TABLE_BITS + 1; length <= maxLength; ++length)
+        {
+            int offset = input.peek(length) - firstCode[length];
+            if(offset >= 0 && offset < lengthCount[length])
+            {
+                input.skip(length);
+                return sortedSymbols[firstIndex[length] + offset];
+            }
+        }
+        throw new IllegalStateException("Invalid huffman code");
+    }
+}
@@ -0,0 +1,182 @@
+package pkj;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A code table trained once from sample data and referenced by its id in the header of compressed data,
+ * so small similar inputs don't pay for building a tree nor for storing a table.
+ * The header also records a fingerprint of the table so data isn't decoded with another dictionary
+ * that was given the same id.
+ * Every byte value has a code, values missing from the samples get the longest ones.
+ * A dictionary is immutable and holds its codes and its decoder ready to use, it can be shared between threads.
+ * Stored form: magic "HUD", id (varint), code length table
+ */
+public final class HuffmanDictionary
+{
+    // first bytes of a stored dictionary
+    private static final byte[] MAGIC = {'H', 'U', 'D'};
+
+    // id written in the header of the data compressed with this dictionary
+    private final int id;
+    // code length of each byte value
+    private final int[] lengths;
+    // canonical code of each byte value
+    private final int[] codes = new int[Compressor.ALPHABET_SIZE];
+    // decoder of the codes, only read once built so it is shared by every decompression
+    private final HuffmanDecoder decoder;
+    // CRC-32 of the code lengths, written next to the id
+    private final int fingerprint;
+
+    /**
+     * builds the codes and the decoder of a complete code length table
+     * @throws IllegalArgumentException if a byte value has no code or the lengths don't form a prefix code
+     */
+    private HuffmanDictionary(int id, int[] lengths)
+    {
+        if(id < 0)
+            throw new IllegalArgumentException("Invalid dictionary id: " + id);
+        long kraft = 0;
+        for(int length : lengths)
+        {
+            if(length < 1 || length > CanonicalCode.MAX_LENGTH)
+                throw new IllegalArgumentException("Dictionary must have a code for every byte value");
+            kraft += 1L << (CanonicalCode.MAX_LENGTH - length);
+        }
+        if(kraft > 1L << CanonicalCode.MAX_LENGTH)
+            throw new IllegalArgumentException("Corrupted dictionary");
+        this.id = id;
+        this.lengths = lengths;
+        CanonicalCode.assignCodes(lengths, codes);
+        this.decoder = new HuffmanDecoder(lengths);
+        CRC32 crc = new CRC32();
+        for(int length : lengths)
+            crc.update(length);
+        this.fingerprint = (int)crc.getValue();
+    }
+
+    /**
+     * Trains a dictionary over sample inputs similar to the data that will be compressed with it
+     * @param id id of the dictionary, recorded in compressed data
+     * @param samples sample inputs
+     * @return the trained dictionary
+     * @throws IllegalArgumentException if id is negative
+     */
+    public static HuffmanDictionary train(int id, Iterable<byte[]> samples)
+    {
+        return train(id, samples, CanonicalCode.MAX_LENGTH);
+    }
+
+    /**
+     * Trains a dictionary whose codes are at most maxCodeLength bits
+     * @param id id of the dictionary, recorded in compressed data
+     * @param samples sample inputs
+     * @param maxCodeLength longest code in bits, see {@link Compressor#setMaxCodeLength(int)}
+     * @return the trained dictionary
+     * @throws IllegalArgumentException if id is negative or maxCodeLength is out of range
+     */
+    public static HuffmanDictionary train(int id, Iterable<byte[]> samples, int maxCodeLength)
+    {
+        Compressor.checkMaxCodeLength(maxCodeLength);
+        long[] freq = new long[Compressor.ALPHABET_SIZE];
+        for(byte[] sample : samples)
+            for(byte b : sample)
+                ++freq[b & 0xFF];
+        // every byte value needs a code, unseen ones count once
+        for(int symbol = 0; symbol < freq.length; ++symbol)
+            ++freq[symbol];
+        int[] lengths = new int[Compressor.ALPHABET_SIZE];
+        Compressor.generateCodeLengths(freq, lengths, maxCodeLength);
+        return new HuffmanDictionary(id, lengths);
+    }
+
+    /**
+     * Reads a dictionary stored by {@link #write(OutputStream)}
+     * @param in stream holding the dictionary, read to its end
+     * @return the dictionary
+     * @throws IOException if reading fails or the dictionary is corrupted
+     */
+    public static HuffmanDictionary read(InputStream in) throws IOException
+    {
+        ByteBuffer data = ByteBuffer.wrap(in.readAllBytes());
+        try
+        {
+            byte[] magic = new byte[MAGIC.length];
+            data.get(magic);
+            if(!Arrays.equals(magic, MAGIC))
+                throw new IOException("Not a dictionary");
+            int id = CanonicalCode.readVarInt(data);
+            int[] lengths = new int[Compressor.ALPHABET_SIZE];
+            CanonicalCode.readLengths(data, lengths);
+            return new HuffmanDictionary(id, lengths);
+        }
+        catch(BufferUnderflowException | IllegalArgumentException e)
+        {
+            throw new IOException("Corrupted dictionary", e);
+        }
+    }
+
+    /**
+     * Stores the dictionary
+     * @param out stream receiving the dictionary, left open
+     * @throws IOException if writing fails
+     */
+    public void write(OutputStream out) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.write(MAGIC);
+        CanonicalCode.writeVarInt(data, id);
+        CanonicalCode.writeLengths(lengths, data);
+        bytes.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * @return id recorded in compressed data
+     */
+    public int getId()
+    {
+        return id;
+    }
+
+    /**
+     * @return fingerprint of the code table recorded in compressed data next to the id,
+     *         dictionaries with the same codes have the same fingerprint
+     */
+    public int getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    /**
+     * @return code length of each byte value, must not be modified
+     */
+    int[] lengths()
+    {
+        return lengths;
+    }
+
+    /**
+     * @return canonical code of each byte value, must not be modified
+     */
+    int[] codes()
+    {
+        return codes;
+    }
+
+    /**
+     * @return decoder of the codes
+     */
+    HuffmanDecoder decoder()
+    {
+        return decoder;
+    }
+}
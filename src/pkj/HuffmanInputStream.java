@@ -0,0 +1,173 @@
+package pkj;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream that decompresses a container read from the underlying stream,
+ * one block at a time as soon as the block has arrived, so the bytes of the first blocks
+ * can be consumed while the next ones are still being received.
+ * Memory use is bounded by the block size of the container.
+ * The stream ends after the last block, it reads the container written by {@link HuffmanOutputStream},
+ * {@link HuffmanCodec} or {@link Compressor}
+ */
+public class HuffmanInputStream extends FilterInputStream
+{
+    // parses the container from the underlying stream
+    private final BlockReader reader;
+    // decodes the blocks
+    private final BlockDecoder decoder = new BlockDecoder(null);
+    // resolves the dictionary id of the container, null if dictionaries are not expected
+    private final DictionaryCache dictionaries;
+    // bytes of the last decoded block, null until the header is read
+    private byte[] block;
+    // index in block of the next byte to return
+    private int position;
+    // number of decoded bytes in block
+    private int count;
+    // whether the last block was read
+    private boolean finished;
+    // whether the stream was closed
+    private boolean closed;
+
+    /**
+     * Initializes the stream, nothing is read until the first read call
+     * @param in stream holding a compressed container
+     */
+    public HuffmanInputStream(InputStream in)
+    {
+        this(in, null);
+    }
+
+    /**
+     * Initializes the stream, nothing is read until the first read call
+     * @param in stream holding a compressed container
+     * @param dictionaries cache resolving the dictionary id of the container, or null
+     */
+    public HuffmanInputStream(InputStream in, DictionaryCache dictionaries)
+    {
+        super(in);
+        this.reader = new BlockReader(in);
+        this.dictionaries = dictionaries;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if(!fill())
+            return -1;
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if((off | len | (b.length - off - len)) < 0)
+            throw new IndexOutOfBoundsException();
+        if(len == 0)
+            return 0;
+        if(!fill())
+            return -1;
+        int n = Math.min(len, count - position);
+        System.arraycopy(block, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        long skipped = 0;
+        while(skipped < n && fill())
+        {
+            int step = (int)Math.min(n - skipped, count - position);
+            position += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    /**
+     * @return number of decoded bytes that can be read without blocking
+     */
+    @Override
+    public int available() throws IOException
+    {
+        ensureOpen();
+        return count - position;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if(closed)
+            return;
+        closed = true;
+        in.close();
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public void mark(int readLimit)
+    {
+    }
+
+    @Override
+    public void reset() throws IOException
+    {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * decodes the next block when every decoded byte was consumed
+     * @return false at the end of the container
+     * @throws IOException if reading fails or the data is corrupted
+     */
+    private boolean fill() throws IOException
+    {
+        ensureOpen();
+        while(position == count)
+        {
+            if(finished)
+                return false;
+            if(block == null)
+            {
+                reader.readHeader();
+                reader.configure(decoder, dictionaries);
+                block = new byte[reader.blockSize()];
+            }
+            ByteBuffer encoded = reader.nextBlock();
+            if(encoded == null)
+            {
+                finished = true;
+                return false;
+            }
+            try
+            {
+                count = decoder.decode(encoded, block, 0);
+            }
+            catch(IllegalArgumentException e)
+            {
+                throw new IOException("Corrupted compressed data", e);
+            }
+            position = 0;
+        }
+        return true;
+    }
+
+    /**
+     * @throws IOException if the stream was closed
+     */
+    private void ensureOpen() throws IOException
+    {
+        if(closed)
+            throw new IOException("Stream closed");
+    }
+}
@@ -0,0 +1,205 @@
+package pkj;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Output stream that compresses the bytes written to it into the underlying stream,
+ * one block at a time as soon as a block is full, so the output doesn't wait for the end of the input
+ * and memory use is bounded by the block size.
+ * {@link #flush()} encodes the bytes buffered so far as a shorter block and flushes the underlying stream,
+ * so a reader on the other end ({@link HuffmanInputStream}) can decode everything written up to that point.
+ * Every flushed block carries its own code table, flushing very often costs compression ratio.
+ * In adaptive mode bytes are coded as they are written instead of when the block is full,
+ * and blocks carry no table.
+ * {@link #close()} writes the end of the container and closes the underlying stream
+ */
+public class HuffmanOutputStream extends FilterOutputStream
+{
+    // bytes of the block being filled
+    private final byte[] block;
+    private final ByteBuffer blockBuffer;
+    // number of bytes in block
+    private int count;
+    // encodes full and flushed blocks
+    private final BlockEncoder encoder = new BlockEncoder();
+    // writes the container to the underlying stream
+    private final BlockWriter writer;
+    // dictionary the blocks are coded with, or null for a table per block
+    private final HuffmanDictionary dictionary;
+    // code bytes as they are written with an adaptive model instead of buffering the block
+    private boolean adaptive;
+    // whether the header has been written
+    private boolean started;
+    // whether the stream was closed
+    private boolean closed;
+
+    /**
+     * Initializes the stream with the default block size
+     * @param out stream receiving the compressed container
+     */
+    public HuffmanOutputStream(OutputStream out)
+    {
+        this(out, BlockFormat.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Initializes the stream
+     * @param out stream receiving the compressed container
+     * @param blockSize number of bytes buffered before a block is encoded
+     * @throws IllegalArgumentException if blockSize is out of the supported range
+     */
+    public HuffmanOutputStream(OutputStream out, int blockSize)
+    {
+        this(out, blockSize, null);
+    }
+
+    /**
+     * Initializes the stream coding every block with a pre-trained dictionary,
+     * which also avoids the cost of a table per flushed block
+     * @param out stream receiving the compressed container
+     * @param blockSize number of bytes buffered before a block is encoded
+     * @param dictionary dictionary to code with, or null for a table per block
+     * @throws IllegalArgumentException if blockSize is out of the supported range
+     */
+    public HuffmanOutputStream(OutputStream out, int blockSize, HuffmanDictionary dictionary)
+    {
+        super(out);
+        if(blockSize < BlockFormat.MIN_BLOCK_SIZE || blockSize > BlockFormat.MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("Block size must be between " + BlockFormat.MIN_BLOCK_SIZE
+                    + " and " + BlockFormat.MAX_BLOCK_SIZE + ": " + blockSize);
+        this.block = new byte[blockSize];
+        this.blockBuffer = ByteBuffer.wrap(block);
+        this.writer = new BlockWriter(out);
+        this.dictionary = dictionary;
+        if(dictionary != null)
+            encoder.setSharedTable(dictionary.lengths(), dictionary.codes());
+    }
+
+    /**
+     * Chooses between buffering every block and coding it with its own table (the default)
+     * and coding bytes as they are written with an adaptive model, the block being filled is ended first
+     * @param adaptive true to code adaptive blocks
+     * @throws IOException if ending the current block fails
+     */
+    public void setAdaptive(boolean adaptive) throws IOException
+    {
+        ensureOpen();
+        if(adaptive == this.adaptive)
+            return;
+        writeBlock();
+        this.adaptive = adaptive;
+        encoder.setAdaptive(adaptive);
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        ensureOpen();
+        if(count == block.length)
+            writeBlock();
+        block[count] = (byte)b;
+        if(adaptive)
+            append(block, count, 1);
+        else
+            ++count;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        ensureOpen();
+        if((off | len | (b.length - off - len)) < 0)
+            throw new IndexOutOfBoundsException();
+        while(len > 0)
+        {
+            if(count == block.length)
+                writeBlock();
+            int n = Math.min(len, block.length - count);
+            System.arraycopy(b, off, block, count, n);
+            if(adaptive)
+                append(block, count, n);
+            else
+                count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Encodes the buffered bytes as a block and flushes the underlying stream
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        ensureOpen();
+        writeBlock();
+        out.flush();
+    }
+
+    /**
+     * Encodes the buffered bytes, writes the end of the container and closes the underlying stream
+     * @throws IOException if writing or closing fails
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if(closed)
+            return;
+        try
+        {
+            writeBlock();
+            writer.finish();
+        }
+        finally
+        {
+            closed = true;
+            out.close();
+        }
+    }
+
+    /**
+     * writes the header the first time, then the buffered bytes as a block if there are any
+     */
+    private void writeBlock() throws IOException
+    {
+        if(!started)
+        {
+            writer.writeHeader(new byte[0], 0, block.length, null, dictionary);
+            started = true;
+        }
+        if(count == 0)
+            return;
+        blockBuffer.clear().limit(count);
+        if(adaptive)
+            encoder.endAdaptive(blockBuffer);
+        else
+            encoder.encode(blockBuffer);
+        writer.writeBlock(encoder, count);
+        count = 0;
+    }
+
+    /**
+     * codes bytes into the adaptive block, starting it if it is empty,
+     * the raw bytes are kept in the block too in case it has to be stored
+     */
+    private void append(byte[] b, int off, int len)
+    {
+        if(count == 0)
+            encoder.beginAdaptive();
+        encoder.appendAdaptive(b, off, len);
+        count += len;
+    }
+
+    /**
+     * @throws IOException if the stream was closed
+     */
+    private void ensureOpen() throws IOException
+    {
+        if(closed)
+            throw new IOException("Stream closed");
+    }
+}
@@ -0,0 +1,139 @@
+package pkj;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Reports the stages of each block to the {@link CodecMetrics} of its owner and as JFR events,
+ * so a flight recording shows where time goes without attaching a profiler.
+ * Nothing is timed unless metrics are set or a recording enables the events,
+ * and everything is measured once per block, never per byte
+ */
+final class Instrumentation
+{
+    /**
+     * time one block spent in a stage
+     */
+    @Name("pkj.Stage")
+    @Label("Huffman Stage")
+    @Category("Huffman")
+    @Description("Time one block spent in a stage of compression or decompression")
+    @StackTrace(false)
+    static final class StageEvent extends Event
+    {
+        @Label("Stage")
+        String stage;
+
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    /**
+     * one block that was encoded
+     */
+    @Name("pkj.Block")
+    @Label("Huffman Block")
+    @Category("Huffman")
+    @Description("Block encoded by a compressor or codec")
+    @StackTrace(false)
+    static final class BlockEvent extends Event
+    {
+        @Label("Raw Length")
+        @DataAmount
+        int rawLength;
+
+        @Label("Encoded Length")
+        @DataAmount
+        int encodedLength;
+
+        @Label("Header Length")
+        @Description("Bytes of the block header and code tables")
+        @DataAmount
+        int headerLength;
+
+        @Label("Average Code Length")
+        @Description("Bits per coded symbol, header left out")
+        double averageCodeLength;
+    }
+
+    // value of a start time when the stage isn't timed
+    static final long OFF = Long.MIN_VALUE;
+
+    // event types, checked before timing
+    private static final EventType STAGE_TYPE = EventType.getEventType(StageEvent.class);
+    private static final EventType BLOCK_TYPE = EventType.getEventType(BlockEvent.class);
+
+    private Instrumentation()
+    {
+    }
+
+    /**
+     * Starts timing a stage
+     * @param metrics metrics of the owner of the stage
+     * @return start time to hand to {@link #end(CodecMetrics, CodecMetrics.Stage, long, long)},
+     *         OFF if nothing records the stage
+     */
+    static long start(CodecMetrics metrics)
+    {
+        return metrics != CodecMetrics.NONE || STAGE_TYPE.isEnabled() ? System.nanoTime() : OFF;
+    }
+
+    /**
+     * Ends timing a stage and reports it
+     * @param metrics metrics of the owner of the stage
+     * @param stage stage that ended
+     * @param start value returned by {@link #start(CodecMetrics)}
+     * @param bytes number of bytes the stage went through
+     */
+    static void end(CodecMetrics metrics, CodecMetrics.Stage stage, long start, long bytes)
+    {
+        if(start == OFF)
+            return;
+        long elapsed = System.nanoTime() - start;
+        metrics.recordStage(stage, elapsed, bytes);
+        StageEvent event = new StageEvent();
+        if(event.shouldCommit())
+        {
+            event.stage = stage.name();
+            event.elapsed = elapsed;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * Reports an encoded block
+     * @param metrics metrics of the encoder
+     * @param rawLength number of bytes of the block
+     * @param encodedLength number of bytes of the encoded block, header included
+     * @param headerLength number of bytes of its header and code tables
+     * @param symbols number of coded symbols
+     */
+    static void block(CodecMetrics metrics, int rawLength, int encodedLength, int headerLength, int symbols)
+    {
+        metrics.recordBlock(rawLength, encodedLength, headerLength, symbols);
+        if(!BLOCK_TYPE.isEnabled())
+            return;
+        BlockEvent event = new BlockEvent();
+        if(event.shouldCommit())
+        {
+            event.rawLength = rawLength;
+            event.encodedLength = encodedLength;
+            event.headerLength = headerLength;
+            event.averageCodeLength = symbols == 0 ? 0 : 8.0 * (encodedLength - headerLength) / symbols;
+            event.commit();
+        }
+    }
+}
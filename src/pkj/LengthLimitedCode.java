@@ -0,0 +1,114 @@
+package pkj;
+
+import java.util.Arrays;
+
+/**
+ * Builds optimal prefix code lengths that don't exceed a maximum length with the package-merge algorithm.
+ * The symbols sorted by weight form the list of the deepest level; going up one level,
+ * adjacent items of the level below are paired into packages that are merged with the symbols by weight.
+ * The 2n - 2 lightest items of the top level are selected, every package selected selects its two items
+ * on the level below, and the code length of a symbol is the number of levels it is selected on.
+ * Runs in O(n * maxLength) time for n used symbols
+ */
+final class LengthLimitedCode
+{
+    private LengthLimitedCode()
+    {
+    }
+
+    /**
+     * Fills the length limited code lengths of the given weights
+     * @param freq weight of each symbol, 0 for absent symbols
+     * @param maxLength longest allowed code length
+     * @param codeLengths filled with the code length of each symbol, 0 for absent symbols
+     * @throws IllegalArgumentException if more symbols are used than maxLength bits can code
+     */
+    static void packageMerge(long[] freq, int maxLength, int[] codeLengths)
+    {
+        int n = 0;
+        for(long weight : freq)
+            if(weight != 0)
+                ++n;
+        Arrays.fill(codeLengths, 0);
+        if(n == 0)
+            return;
+        if(maxLength < 31 && n > 1 << maxLength)
+            throw new IllegalArgumentException(n + " symbols don't fit codes of " + maxLength + " bits");
+
+        // used symbols sorted by weight, insertion sort keeps it allocation light for a 256 symbol alphabet
+        int[] symbols = new int[n];
+        long[] weights = new long[n];
+        for(int symbol = 0, count = 0; symbol < freq.length; ++symbol)
+        {
+            if(freq[symbol] == 0)
+                continue;
+            int i = count++;
+            while(i > 0 && weights[i - 1] > freq[symbol])
+            {
+                weights[i] = weights[i - 1];
+                symbols[i] = symbols[i - 1];
+                --i;
+            }
+            weights[i] = freq[symbol];
+            symbols[i] = symbol;
+        }
+        if(n == 1)
+        {
+            codeLengths[symbols[0]] = 1;
+            return;
+        }
+
+        // kinds[level][i]: index in symbols of the i-th item of the level, or -1 for a package
+        int[][] kinds = new int[maxLength][];
+        int[] sizes = new int[maxLength];
+        long[] previous = weights.clone();
+        int previousSize = n;
+        kinds[maxLength - 1] = new int[n];
+        for(int i = 0; i < n; ++i)
+            kinds[maxLength - 1][i] = i;
+        sizes[maxLength - 1] = n;
+        long[] current = new long[2 * n];
+        for(int level = maxLength - 2; level >= 0; --level)
+        {
+            int packages = previousSize / 2;
+            int[] kind = new int[n + packages];
+            int size = 0, leaf = 0, pack = 0;
+            while(leaf < n || pack < packages)
+            {
+                long packageWeight = pack < packages ? previous[2 * pack] + previous[2 * pack + 1] : Long.MAX_VALUE;
+                if(leaf < n && weights[leaf] <= packageWeight)
+                {
+                    current[size] = weights[leaf];
+                    kind[size++] = leaf++;
+                }
+                else
+                {
+                    current[size] = packageWeight;
+                    kind[size++] = -1;
+                    ++pack;
+                }
+            }
+            kinds[level] = kind;
+            sizes[level] = size;
+            long[] swap = previous;
+            previous = current;
+            current = swap.length >= 2 * n ? swap : new long[2 * n];
+            previousSize = size;
+        }
+
+        int selected = 2 * n - 2;
+        for(int level = 0; level < maxLength && selected > 0; ++level)
+        {
+            int packages = 0;
+            int[] kind = kinds[level];
+            for(int i = 0; i < selected && i < sizes[level]; ++i)
+            {
+                if(kind[i] < 0)
+                    ++packages;
+                else
+                    ++codeLengths[symbols[kind[i]]];
+            }
+            selected = 2 * packages;
+        }
+    }
+}
@@ -8,6 +8,9 @@ public class Main {
 
     public static void main(String[] args) throws IOException {
 
+        if(args.length > 0)
+            System.exit(CommandLine.run(args));
+
         Scanner sc=new Scanner(System.in);
         System.out.println("1 - Compression");
         System.out.println("2 - deCompression");
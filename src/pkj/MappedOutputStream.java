@@ -0,0 +1,89 @@
+package pkj;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a file through memory mapped windows instead of write calls,
+ * windows are mapped one after another as they fill up (growing the file)
+ * and the file is truncated to the bytes actually written on close
+ */
+class MappedOutputStream extends OutputStream
+{
+    // size in bytes of each mapped window
+    static final long WINDOW_SIZE = 64L << 20;
+
+    // channel of the output file, opened for read and write as mapping requires
+    private final FileChannel channel;
+    // window being filled
+    private MappedByteBuffer window;
+    // file position of the first byte of window
+    private long windowStart;
+
+    /**
+     * Creates or truncates the file and maps its first window
+     * @param path file to write
+     * @throws IOException if the file can't be opened or mapped
+     */
+    MappedOutputStream(Path path) throws IOException
+    {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.window = channel.map(FileChannel.MapMode.READ_WRITE, 0, WINDOW_SIZE);
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        if(!window.hasRemaining())
+            nextWindow();
+        window.put((byte)b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        while(len > 0)
+        {
+            if(!window.hasRemaining())
+                nextWindow();
+            int n = Math.min(len, window.remaining());
+            window.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Cuts the file at the last byte written and closes it
+     * @throws IOException if truncating or closing fails
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if(!channel.isOpen())
+            return;
+        try
+        {
+            channel.truncate(windowStart + window.position());
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * maps the window that follows the current one
+     * @throws IOException if mapping fails
+     */
+    private void nextWindow() throws IOException
+    {
+        windowStart += window.capacity();
+        window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, WINDOW_SIZE);
+    }
+}
@@ -0,0 +1,227 @@
+package pkj;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Huffman codes the output of a {@link MatchFinder} the way Deflate does:
+ * literals and match lengths share one alphabet (0-255 literals, 257-285 length codes, 256 is unused
+ * since the raw length of a block is known), distances have their own alphabet of 30 codes,
+ * and the low bits of lengths and distances follow their codes as raw extra bits.
+ * Stored form, the payload of a BLOCK_MATCHES block: literal/length code lengths, distance code lengths,
+ * then the packed codes and extra bits.
+ * A coder keeps its tables between blocks, it is not thread safe
+ */
+class MatchCoder
+{
+    // shortest and longest match, and farthest distance a match may reach back
+    static final int MIN_MATCH = 3;
+    static final int MAX_MATCH = 258;
+    static final int WINDOW = 1 << 15;
+
+    // size of the literal/length alphabet and of the distance alphabet
+    private static final int LITERAL_LENGTH_SYMBOLS = 286;
+    private static final int DISTANCE_SYMBOLS = 30;
+    // first symbol of the length codes
+    private static final int FIRST_LENGTH_SYMBOL = 257;
+    // smallest length and number of extra bits of each length code
+    private static final int[] LENGTH_BASE = {3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+            35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+    private static final int[] LENGTH_EXTRA = {0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+            3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+    // smallest distance and number of extra bits of each distance code
+    private static final int[] DISTANCE_BASE = {1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+            257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577};
+    private static final int[] DISTANCE_EXTRA = {0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+            7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+
+    // symbol counts of the tokens being coded
+    private final long[] literalFreq = new long[LITERAL_LENGTH_SYMBOLS];
+    private final long[] distanceFreq = new long[DISTANCE_SYMBOLS];
+    // code lengths and canonical codes of both alphabets
+    private final int[] literalLengths = new int[LITERAL_LENGTH_SYMBOLS];
+    private final int[] literalCodes = new int[LITERAL_LENGTH_SYMBOLS];
+    private final int[] distanceLengths = new int[DISTANCE_SYMBOLS];
+    private final int[] distanceCodes = new int[DISTANCE_SYMBOLS];
+    // computes the code lengths of both alphabets
+    private final CodeLengthBuilder lengthBuilder = new CodeLengthBuilder();
+    // scratch space of the canonical code assignment
+    private final int[] nextCode = new int[CanonicalCode.MAX_LENGTH + 2];
+    // decoders of both alphabets, allocated for the first block decoded
+    private HuffmanDecoder literalDecoder;
+    private HuffmanDecoder distanceDecoder;
+
+    /**
+     * @return token of a match, see {@link MatchFinder}
+     */
+    static int match(int length, int distance)
+    {
+        return length << 16 | distance;
+    }
+
+    /**
+     * Builds the tables of a block from its tokens
+     * @param tokens literals and matches found in the block
+     * @param count number of tokens
+     * @param maxLength longest allowed code
+     * @return size in bits of the block coded with the tables, stored tables included
+     */
+    long build(int[] tokens, int count, int maxLength)
+    {
+        Arrays.fill(literalFreq, 0);
+        Arrays.fill(distanceFreq, 0);
+        long extraBits = 0;
+        for(int i = 0; i < count; ++i)
+        {
+            int token = tokens[i];
+            if(token <= 0xFF)
+            {
+                ++literalFreq[token];
+                continue;
+            }
+            int lengthCode = lengthCode(token >>> 16);
+            int distanceCode = distanceCode(token & 0xFFFF);
+            ++literalFreq[FIRST_LENGTH_SYMBOL + lengthCode];
+            ++distanceFreq[distanceCode];
+            extraBits += LENGTH_EXTRA[lengthCode] + DISTANCE_EXTRA[distanceCode];
+        }
+        lengthBuilder.build(literalFreq, literalLengths, maxLength);
+        lengthBuilder.build(distanceFreq, distanceLengths, maxLength);
+        CanonicalCode.assignCodes(literalLengths, literalCodes, nextCode);
+        CanonicalCode.assignCodes(distanceLengths, distanceCodes, nextCode);
+
+        long bits = extraBits + 8L * (CanonicalCode.tableSize(literalLengths) + CanonicalCode.tableSize(distanceLengths));
+        for(int symbol = 0; symbol < LITERAL_LENGTH_SYMBOLS; ++symbol)
+            bits += literalFreq[symbol] * literalLengths[symbol];
+        for(int symbol = 0; symbol < DISTANCE_SYMBOLS; ++symbol)
+            bits += distanceFreq[symbol] * distanceLengths[symbol];
+        return bits;
+    }
+
+    /**
+     * Writes the tables built by {@link #build(int[], int, int)} then the codes of the tokens
+     * @param tokens literals and matches found in the block
+     * @param count number of tokens
+     * @param out stream receiving the tables
+     * @param bits bit stream over the same stream receiving the codes
+     * @throws IOException if writing fails
+     */
+    void write(int[] tokens, int count, DataOutputStream out, BitWriter bits) throws IOException
+    {
+        CanonicalCode.writeLengths(literalLengths, out);
+        CanonicalCode.writeLengths(distanceLengths, out);
+        for(int i = 0; i < count; ++i)
+        {
+            int token = tokens[i];
+            if(token <= 0xFF)
+            {
+                bits.write(literalCodes[token], literalLengths[token]);
+                continue;
+            }
+            int length = token >>> 16, distance = token & 0xFFFF;
+            int lengthCode = lengthCode(length), distanceCode = distanceCode(distance);
+            int symbol = FIRST_LENGTH_SYMBOL + lengthCode;
+            bits.write(literalCodes[symbol], literalLengths[symbol]);
+            bits.write(length - LENGTH_BASE[lengthCode], LENGTH_EXTRA[lengthCode]);
+            bits.write(distanceCodes[distanceCode], distanceLengths[distanceCode]);
+            bits.write(distance - DISTANCE_BASE[distanceCode], DISTANCE_EXTRA[distanceCode]);
+        }
+        bits.flush();
+    }
+
+    /**
+     * @return number of bytes the tables of the last built code take in the payload
+     */
+    int tableSize()
+    {
+        return CanonicalCode.tableSize(literalLengths) + CanonicalCode.tableSize(distanceLengths);
+    }
+
+    /**
+     * Decodes the payload of a BLOCK_MATCHES block
+     * @param payload buffer from the start of the tables to the end of the payload
+     * @param input reader used for the codes
+     * @param output receives the decoded bytes
+     * @param offset index in output of the first decoded byte
+     * @param rawLength number of bytes to decode
+     * @throws IllegalArgumentException if the block is corrupted
+     */
+    void decode(ByteBuffer payload, BitReader input, byte[] output, int offset, int rawLength)
+    {
+        if(literalDecoder == null)
+        {
+            literalDecoder = new HuffmanDecoder();
+            distanceDecoder = new HuffmanDecoder();
+        }
+        CanonicalCode.readLengths(payload, literalLengths);
+        literalDecoder.init(literalLengths);
+        CanonicalCode.readLengths(payload, distanceLengths);
+        distanceDecoder.init(distanceLengths);
+        input.reset(payload, (long)payload.remaining() * 8);
+
+        int i = offset, end = offset + rawLength;
+        while(i < end)
+        {
+            int symbol = literalDecoder.decode(input);
+            if(symbol <= 0xFF)
+            {
+                output[i++] = (byte)symbol;
+                continue;
+            }
+            int lengthCode = symbol - FIRST_LENGTH_SYMBOL;
+            if(lengthCode < 0)
+                throw new IllegalArgumentException("Corrupted block");
+            int length = LENGTH_BASE[lengthCode] + readExtra(input, LENGTH_EXTRA[lengthCode]);
+            int distanceCode = distanceDecoder.decode(input);
+            int distance = DISTANCE_BASE[distanceCode] + readExtra(input, DISTANCE_EXTRA[distanceCode]);
+            if(distance > i - offset || length > end - i)
+                throw new IllegalArgumentException("Corrupted block");
+            // copied a byte at a time since a match may overlap the bytes it produces
+            for(int from = i - distance, stop = i + length; i < stop; )
+                output[i++] = output[from++];
+        }
+        BlockDecoder.checkComplete(input);
+    }
+
+    /**
+     * reads count raw bits, 0 if count is 0
+     */
+    private static int readExtra(BitReader input, int count)
+    {
+        if(count == 0)
+            return 0;
+        int value = input.peek(count);
+        input.skip(count);
+        return value;
+    }
+
+    /**
+     * @return index of the length code of a match length, 3 to 258
+     */
+    private static int lengthCode(int length)
+    {
+        if(length == MAX_MATCH)
+            return LENGTH_BASE.length - 1;
+        int value = length - MIN_MATCH;
+        if(value < 8)
+            return value;
+        // from there every 4 codes the extra bits grow by one
+        int bits = 31 - Integer.numberOfLeadingZeros(value);
+        return 4 * (bits - 1) + ((value >>> (bits - 2)) & 3);
+    }
+
+    /**
+     * @return index of the distance code of a match distance, 1 to WINDOW
+     */
+    private static int distanceCode(int distance)
+    {
+        int value = distance - 1;
+        if(value < 4)
+            return value;
+        // from there every 2 codes the extra bits grow by one
+        int bits = 31 - Integer.numberOfLeadingZeros(value);
+        return 2 * bits + ((value >>> (bits - 1)) & 1);
+    }
+}
@@ -0,0 +1,23 @@
+package pkj;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pre-transform stage that replaces repeated byte strings of a block with references to earlier bytes,
+ * its output is then huffman coded by {@link MatchCoder}.
+ * The stage works within a block so blocks stay independent.
+ * A token is either a literal byte (0 to 255) or a match built by {@link MatchCoder#match(int, int)}:
+ * length ({@link MatchCoder#MIN_MATCH} to {@link MatchCoder#MAX_MATCH}) in the high 16 bits
+ * and distance back (1 to {@link MatchCoder#WINDOW}) in the low 16 bits.
+ * Implementations keep their state between blocks, they are not thread safe
+ */
+interface MatchFinder
+{
+    /**
+     * Turns the bytes of a block into tokens
+     * @param src bytes of the block from its position to its limit, its position is not moved
+     * @param tokens receives the tokens, at least src.remaining() long
+     * @return number of tokens
+     */
+    int findMatches(ByteBuffer src, int[] tokens);
+}
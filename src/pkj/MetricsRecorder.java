@@ -0,0 +1,233 @@
+package pkj;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link CodecMetrics} aggregating every measurement in memory: counters of bytes, blocks and symbols,
+ * and per stage the total time and a histogram of the time per block.
+ * The histograms have one bucket per power of two nanoseconds so percentiles are exact to a factor of 2.
+ * A recorder is thread safe and can be shared by every compressor, decompressor and codec of a process
+ */
+public class MetricsRecorder implements CodecMetrics
+{
+    // one bucket per bit of a nanosecond count
+    private static final int BUCKETS = 64;
+    // stages of the pipeline, cached so recording doesn't copy the values array
+    private static final Stage[] STAGES = Stage.values();
+
+    // time spent in each stage
+    private final LongAdder[] stageNanos = new LongAdder[STAGES.length];
+    // number of measurements of each stage
+    private final LongAdder[] stageCounts = new LongAdder[STAGES.length];
+    // bytes gone through each stage
+    private final LongAdder[] stageBytes = new LongAdder[STAGES.length];
+    // measurements of each stage by the bit length of their nanoseconds
+    private final AtomicLongArray[] histograms = new AtomicLongArray[STAGES.length];
+    // encoded blocks
+    private final LongAdder blocks = new LongAdder();
+    // bytes of the encoded blocks before and after coding
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    // bytes of the headers and code tables of the encoded blocks
+    private final LongAdder headerBytes = new LongAdder();
+    // symbols coded in the encoded blocks
+    private final LongAdder symbols = new LongAdder();
+
+    /**
+     * Initializes a recorder with every counter at 0
+     */
+    public MetricsRecorder()
+    {
+        for(int stage = 0; stage < STAGES.length; ++stage)
+        {
+            stageNanos[stage] = new LongAdder();
+            stageCounts[stage] = new LongAdder();
+            stageBytes[stage] = new LongAdder();
+            histograms[stage] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    @Override
+    public void recordStage(Stage stage, long nanos, long bytes)
+    {
+        int index = stage.ordinal();
+        nanos = Math.max(nanos, 0);
+        stageNanos[index].add(nanos);
+        stageCounts[index].increment();
+        stageBytes[index].add(bytes);
+        histograms[index].incrementAndGet(Math.max(BUCKETS - 1 - Long.numberOfLeadingZeros(nanos), 0));
+    }
+
+    @Override
+    public void recordBlock(int rawLength, int encodedLength, int headerLength, int symbols)
+    {
+        blocks.increment();
+        bytesIn.add(rawLength);
+        bytesOut.add(encodedLength);
+        headerBytes.add(headerLength);
+        this.symbols.add(symbols);
+    }
+
+    /**
+     * @return number of encoded blocks
+     */
+    public long getBlockCount()
+    {
+        return blocks.sum();
+    }
+
+    /**
+     * @return number of bytes compressed
+     */
+    public long getBytesIn()
+    {
+        return bytesIn.sum();
+    }
+
+    /**
+     * @return number of bytes the compressed blocks take, without the container header and index
+     */
+    public long getBytesOut()
+    {
+        return bytesOut.sum();
+    }
+
+    /**
+     * @return number of bytes of the block headers and code tables among {@link #getBytesOut()}
+     */
+    public long getHeaderBytes()
+    {
+        return headerBytes.sum();
+    }
+
+    /**
+     * @return number of symbols coded by the compressed blocks
+     */
+    public long getSymbols()
+    {
+        return symbols.sum();
+    }
+
+    /**
+     * @return average number of bits a coded symbol takes, headers and tables left out, 0 before any block
+     */
+    public double getAverageCodeLength()
+    {
+        long symbols = getSymbols();
+        return symbols == 0 ? 0 : 8.0 * (getBytesOut() - getHeaderBytes()) / symbols;
+    }
+
+    /**
+     * @return symbols coded per second spent coding them, 0 before any block
+     */
+    public double getSymbolsPerSecond()
+    {
+        long nanos = getStageNanos(Stage.ENCODE);
+        return nanos == 0 ? 0 : getSymbols() * 1e9 / nanos;
+    }
+
+    /**
+     * @param stage stage of the pipeline
+     * @return time spent in stage in nanoseconds
+     */
+    public long getStageNanos(Stage stage)
+    {
+        return stageNanos[stage.ordinal()].sum();
+    }
+
+    /**
+     * @param stage stage of the pipeline
+     * @return number of times stage was measured, once per block
+     */
+    public long getStageCount(Stage stage)
+    {
+        return stageCounts[stage.ordinal()].sum();
+    }
+
+    /**
+     * @param stage stage of the pipeline
+     * @return number of bytes gone through stage
+     */
+    public long getStageBytes(Stage stage)
+    {
+        return stageBytes[stage.ordinal()].sum();
+    }
+
+    /**
+     * @param stage stage of the pipeline
+     * @return bytes gone through stage per second spent in it, 0 if it wasn't measured
+     */
+    public double getThroughput(Stage stage)
+    {
+        long nanos = getStageNanos(stage);
+        return nanos == 0 ? 0 : getStageBytes(stage) * 1e9 / nanos;
+    }
+
+    /**
+     * Returns a percentile of the time per block of a stage, rounded up to a power of two
+     * @param stage stage of the pipeline
+     * @param percentile percentile between 0 and 100
+     * @return upper bound in nanoseconds of the percentile, 0 if the stage wasn't measured
+     * @throws IllegalArgumentException if percentile is out of range
+     */
+    public long getStagePercentile(Stage stage, double percentile)
+    {
+        if(!(percentile >= 0 && percentile <= 100))
+            throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percentile);
+        AtomicLongArray histogram = histograms[stage.ordinal()];
+        long total = 0;
+        for(int bucket = 0; bucket < BUCKETS; ++bucket)
+            total += histogram.get(bucket);
+        long rank = (long)Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for(int bucket = 0; bucket < BUCKETS; ++bucket)
+        {
+            seen += histogram.get(bucket);
+            if(seen > 0 && seen >= rank)
+                return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << (bucket + 1)) - 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Sets every counter and histogram back to 0, measurements made meanwhile may be partly kept
+     */
+    public void reset()
+    {
+        for(int stage = 0; stage < STAGES.length; ++stage)
+        {
+            stageNanos[stage].reset();
+            stageCounts[stage].reset();
+            stageBytes[stage].reset();
+            for(int bucket = 0; bucket < BUCKETS; ++bucket)
+                histograms[stage].set(bucket, 0);
+        }
+        blocks.reset();
+        bytesIn.reset();
+        bytesOut.reset();
+        headerBytes.reset();
+        symbols.reset();
+    }
+
+    /**
+     * @return a summary of the counters and of every measured stage, one per line
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder summary = new StringBuilder();
+        if(getBlockCount() > 0)
+            summary.append(String.format(Locale.ROOT,
+                    "blocks %d, bytes %d -> %d, headers %d bytes, %.3f bits/symbol, %.0f symbols/s%n",
+                    getBlockCount(), getBytesIn(), getBytesOut(), getHeaderBytes(),
+                    getAverageCodeLength(), getSymbolsPerSecond()));
+        for(Stage stage : STAGES)
+            if(getStageCount(stage) > 0)
+                summary.append(String.format(Locale.ROOT, "%-6s %8.3f ms %9.1f MB/s  p50 %d us  p99 %d us%n",
+                        stage, getStageNanos(stage) / 1e6, getThroughput(stage) / 1e6,
+                        getStagePercentile(stage, 50) / 1000, getStagePercentile(stage, 99) / 1000));
+        return summary.toString().trim();
+    }
+}
@@ -0,0 +1,66 @@
+package pkj;
+
+/**
+ * Stage run on each block before huffman coding, chosen per file and recorded in the header flags.
+ * With a stage each block is turned into literals and (length, distance) matches coded Deflate style,
+ * a block keeps the matches only if they code it in fewer bits than its bytes alone
+ */
+public enum PreTransform
+{
+    /**
+     * bytes are huffman coded as they are
+     */
+    NONE(0),
+    /**
+     * runs of a repeated byte become matches at distance 1, cheap but finds nothing else
+     */
+    RLE(BlockFormat.FLAG_RLE),
+    /**
+     * repeated strings within the last 32KB become matches, found with hash chains
+     */
+    LZ77(BlockFormat.FLAG_LZ77);
+
+    // header flag recording the stage
+    private final int flag;
+
+    PreTransform(int flag)
+    {
+        this.flag = flag;
+    }
+
+    /**
+     * @return header flag recording the stage, 0 for NONE
+     */
+    int flag()
+    {
+        return flag;
+    }
+
+    /**
+     * @return a new match finder running the stage, null for NONE
+     */
+    MatchFinder newMatchFinder()
+    {
+        switch(this)
+        {
+            case RLE:
+                return new RunLengthMatchFinder();
+            case LZ77:
+                return new HashChainMatchFinder();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the stage recorded in header flags
+     * @param flags header flags
+     * @return the stage, NONE if none is recorded
+     */
+    static PreTransform fromFlags(int flags)
+    {
+        if((flags & BlockFormat.FLAG_LZ77) != 0)
+            return LZ77;
+        return (flags & BlockFormat.FLAG_RLE) != 0 ? RLE : NONE;
+    }
+}
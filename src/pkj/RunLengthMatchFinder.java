@@ -0,0 +1,32 @@
+package pkj;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Run length stage: a run of a repeated byte is coded as the byte followed by matches at distance 1,
+ * so it costs a single comparison per input byte and finds nothing but runs
+ */
+class RunLengthMatchFinder implements MatchFinder
+{
+    @Override
+    public int findMatches(ByteBuffer src, int[] tokens)
+    {
+        int start = src.position(), n = src.remaining(), count = 0;
+        for(int i = 0; i < n; )
+        {
+            byte value = src.get(start + i++);
+            tokens[count++] = value & 0xFF;
+            while(true)
+            {
+                int run = 0;
+                while(run < MatchCoder.MAX_MATCH && i + run < n && src.get(start + i + run) == value)
+                    ++run;
+                if(run < MatchCoder.MIN_MATCH)
+                    break;
+                tokens[count++] = MatchCoder.match(run, 1);
+                i += run;
+            }
+        }
+        return count;
+    }
+}
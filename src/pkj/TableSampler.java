@@ -0,0 +1,106 @@
+package pkj;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Estimates the byte frequencies of an input from {@link #CHUNKS} chunks spread evenly over it,
+ * so a table can be built without reading the whole input first.
+ * Unless the sample is the whole input every byte value is counted once more than it was seen,
+ * so values missing from the sample still get a code: the smoothing acts as the escape of the sampled table
+ */
+class TableSampler
+{
+    // number of chunks sampled from an input
+    static final int CHUNKS = 16;
+    // bytes per sampled chunk, inputs up to CHUNKS times as large are counted whole
+    static final int CHUNK_SIZE = 1 << 16;
+
+    // counts each chunk
+    private final ByteHistogram histogram = new ByteHistogram();
+    // counts of the last chunk
+    private final int[] counts = new int[Compressor.ALPHABET_SIZE];
+
+    /**
+     * Samples the remaining bytes of src, its position is left unchanged
+     * @param src input to sample
+     * @param partial whether src is only the start of the input, its counts are then always smoothed
+     * @return frequency of each byte value, smoothed unless every byte of the input was counted
+     */
+    long[] sample(ByteBuffer src, boolean partial)
+    {
+        long[] freq = new long[Compressor.ALPHABET_SIZE];
+        int start = src.position(), length = src.remaining(), limit = src.limit();
+        try
+        {
+            for(int chunk = 0; chunk < CHUNKS; ++chunk)
+            {
+                long from = chunkStart(length, chunk);
+                int to = (int)Math.min(from + CHUNK_SIZE, chunkStart(length, chunk + 1));
+                src.limit(start + to).position(start + (int)from);
+                add(src, freq);
+            }
+        }
+        finally
+        {
+            src.limit(limit).position(start);
+        }
+        return partial || length > (long)CHUNKS * CHUNK_SIZE ? smooth(freq) : freq;
+    }
+
+    /**
+     * Samples a file through positional reads, the position of channel isn't used.
+     * The counts are always smoothed since the file may change before it is coded
+     * @param channel channel of the file
+     * @param buffer buffer the chunks are read into, at least {@link #CHUNK_SIZE} bytes
+     * @return smoothed frequency of each byte value
+     * @throws IOException if reading fails
+     */
+    long[] sample(FileChannel channel, ByteBuffer buffer) throws IOException
+    {
+        long[] freq = new long[Compressor.ALPHABET_SIZE];
+        long length = channel.size();
+        for(int chunk = 0; chunk < CHUNKS; ++chunk)
+        {
+            long from = chunkStart(length, chunk);
+            long to = Math.min(from + CHUNK_SIZE, chunkStart(length, chunk + 1));
+            buffer.clear().limit((int)(to - from));
+            // a file that shrank is sampled up to its new end
+            while(buffer.hasRemaining())
+                if(channel.read(buffer, from + buffer.position()) == -1)
+                    break;
+            buffer.flip();
+            add(buffer, freq);
+        }
+        return smooth(freq);
+    }
+
+    /**
+     * @return offset of the start of a chunk, chunks start at even intervals over the input
+     */
+    private static long chunkStart(long length, int chunk)
+    {
+        return length * chunk / CHUNKS;
+    }
+
+    /**
+     * adds the counts of the remaining bytes of chunk to freq
+     */
+    private void add(ByteBuffer chunk, long[] freq)
+    {
+        histogram.count(chunk, counts);
+        for(int symbol = 0; symbol < Compressor.ALPHABET_SIZE; ++symbol)
+            freq[symbol] += counts[symbol];
+    }
+
+    /**
+     * counts every byte value once more so that each gets a code
+     */
+    private static long[] smooth(long[] freq)
+    {
+        for(int symbol = 0; symbol < freq.length; ++symbol)
+            ++freq[symbol];
+        return freq;
+    }
+}
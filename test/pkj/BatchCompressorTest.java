@@ -0,0 +1,78 @@
+package pkj;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests that a file failing part way through doesn't leave bytes in an archive
+ */
+class BatchCompressorTest
+{
+    /**
+     * codec that writes part of a container then fails for files starting with 'x'
+     */
+    private static final class FailingCodec extends HuffmanCodec
+    {
+        @Override
+        public void compress(InputStream in, OutputStream out) throws IOException
+        {
+            byte[] data = in.readAllBytes();
+            if(data.length > 0 && data[0] == 'x')
+            {
+                out.write(new byte[1 << 17]);
+                out.flush();
+                throw new IOException("Failed part way");
+            }
+            super.compress(new ByteArrayInputStream(data), out);
+        }
+    }
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void failedStreamedFileLeavesNoBytes() throws IOException
+    {
+        Path tree = Files.createDirectories(directory.resolve("tree"));
+        byte[] large = new byte[4096];
+        Arrays.fill(large, (byte)'x');
+        byte[] small = "small file".getBytes(StandardCharsets.US_ASCII);
+        Files.write(tree.resolve("large"), large);
+        Files.write(tree.resolve("small"), small);
+
+        BatchCompressor batch = new BatchCompressor(tree);
+        batch.setParallelism(1);
+        batch.setMaxInFlightBytes(1024);
+        batch.setCodecFactory(FailingCodec::new);
+        Path archive = directory.resolve("batch.hua");
+        BatchCompressor.Result result = batch.compressToArchive(archive);
+        assertEquals(1, result.getFileCount());
+        assertTrue(result.getFailures().containsKey(tree.resolve("large")));
+
+        ArchiveReader reader = new ArchiveReader(archive);
+        List<ArchiveReader.Entry> entries = reader.getEntries();
+        assertEquals(1, entries.size());
+        ArchiveReader.Entry entry = entries.get(0);
+        // header, then the small entry right after it and the directory right after the entry
+        assertEquals(BatchCompressor.ARCHIVE_MAGIC.length + 1, entry.getOffset());
+        long directoryLength = 4 + 1 + "small".length() + 3 * 8 + 8;
+        assertEquals(entry.getOffset() + entry.getCompressedSize() + directoryLength, Files.size(archive));
+        ByteArrayOutputStream extracted = new ByteArrayOutputStream();
+        reader.extract(entry, extracted);
+        assertArrayEquals(small, extracted.toByteArray());
+    }
+}
@@ -0,0 +1,86 @@
+package pkj;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that blocks coded against a shared table decode to their bytes,
+ * and that blocks coding would expand are stored
+ */
+class BlockEncoderTest
+{
+    @Test
+    void byteMissingFromSharedTableGetsBlockTable()
+    {
+        byte[] data = "abababababababababababababababab!".getBytes(StandardCharsets.US_ASCII);
+        // counted before the file changed: '!' has no code
+        int[] sharedLengths = new int[Compressor.ALPHABET_SIZE];
+        sharedLengths['a'] = 1;
+        sharedLengths['b'] = 1;
+        BlockEncoder encoder = new BlockEncoder(sharedLengths);
+        encoder.encode(ByteBuffer.wrap(data));
+        byte[] block = encoder.toByteArray();
+        assertNotEquals(BlockFormat.BLOCK_HUFFMAN_SHARED, block[0]);
+
+        byte[] output = new byte[data.length];
+        assertEquals(data.length, new BlockDecoder(sharedLengths).decode(ByteBuffer.wrap(block), output, 0));
+        assertArrayEquals(data, output);
+    }
+
+    @Test
+    void coveredBlockUsesSharedTable()
+    {
+        byte[] data = "abababababababababababababababab".getBytes(StandardCharsets.US_ASCII);
+        int[] sharedLengths = new int[Compressor.ALPHABET_SIZE];
+        sharedLengths['a'] = 1;
+        sharedLengths['b'] = 1;
+        BlockEncoder encoder = new BlockEncoder(sharedLengths);
+        encoder.encode(ByteBuffer.wrap(data));
+        byte[] block = encoder.toByteArray();
+        assertEquals(BlockFormat.BLOCK_HUFFMAN_SHARED, block[0]);
+
+        byte[] output = new byte[data.length];
+        new BlockDecoder(sharedLengths).decode(ByteBuffer.wrap(block), output, 0);
+        assertArrayEquals(data, output);
+    }
+
+    /**
+     * @return the data written to a stream of 1KB blocks
+     */
+    private static byte[] compress(byte[] data, boolean adaptive) throws IOException
+    {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try(HuffmanOutputStream out = new HuffmanOutputStream(compressed, 1024))
+        {
+            out.setAdaptive(adaptive);
+            out.write(data, 0, 1500);
+            for(int i = 1500; i < data.length; ++i)
+                out.write(data[i]);
+        }
+        return compressed.toByteArray();
+    }
+
+    @Test
+    void incompressibleAdaptiveStreamIsStored() throws IOException
+    {
+        byte[] data = new byte[4000];
+        new Random(3).nextBytes(data);
+        byte[] adaptive = compress(data, true);
+        // the static path stores every block, the adaptive one must not be any larger
+        assertEquals(compress(data, false).length, adaptive.length);
+        try(InputStream in = new HuffmanInputStream(new ByteArrayInputStream(adaptive)))
+        {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package pkj;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests that the cache reuses compressed files only for the content they were written from
+ */
+class CompressionCacheTest
+{
+    private static final byte[] CONTENT = "the same content in two files".getBytes(StandardCharsets.US_ASCII);
+
+    @TempDir
+    Path directory;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(ContentHash.BUFFER_SIZE);
+    private final HuffmanCodec codec = new HuffmanCodec();
+
+    /**
+     * compresses with the codec, appending to the input first if change is set
+     */
+    private CompressionCache.Output output(Path input, boolean change)
+    {
+        return (in, target) -> {
+            if(change)
+                Files.write(input, new byte[]{'!'}, StandardOpenOption.APPEND);
+            try(OutputStream out = Files.newOutputStream(target))
+            {
+                codec.compress(in, out);
+            }
+        };
+    }
+
+    private long refresh(CompressionCache cache, Path input, boolean change) throws IOException
+    {
+        return cache.refresh(input, Files.size(input), codec.settings(), directory.resolve(input.getFileName() + ".huf"),
+                buffer, output(input, change));
+    }
+
+    private byte[] decompress(Path compressed) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try(InputStream in = Files.newInputStream(compressed))
+        {
+            codec.decompress(in, out);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void unchangedFileIsSkippedAndCopyIsLinked() throws IOException
+    {
+        Path first = Files.write(directory.resolve("first"), CONTENT);
+        Path second = Files.write(directory.resolve("second"), CONTENT);
+        CompressionCache cache = new CompressionCache(directory.resolve("index"));
+        refresh(cache, first, false);
+        refresh(cache, first, false);
+        refresh(cache, second, false);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getLinks());
+        assertArrayEquals(CONTENT, decompress(directory.resolve("second.huf")));
+    }
+
+    @Test
+    void fileChangedWhileCompressedIsNotRecorded() throws IOException
+    {
+        Path first = Files.write(directory.resolve("first"), CONTENT);
+        // an earlier time so the append below is seen whatever the precision of the file system
+        Files.setLastModifiedTime(first, FileTime.fromMillis(0));
+        CompressionCache cache = new CompressionCache(directory.resolve("index"));
+        refresh(cache, first, true);
+        assertEquals(0, cache.size());
+
+        // a file with the content the first one had before it changed isn't linked to its compressed file
+        Path second = Files.write(directory.resolve("second"), CONTENT);
+        refresh(cache, second, false);
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.getLinks());
+        assertArrayEquals(CONTENT, decompress(directory.resolve("second.huf")));
+    }
+
+    @Test
+    void rewriteWithinTheClockTickIsCompressedAgain() throws IOException
+    {
+        Path first = Files.write(directory.resolve("first"), CONTENT);
+        FileTime modified = Files.getLastModifiedTime(first);
+        CompressionCache cache = new CompressionCache(directory.resolve("index"));
+        refresh(cache, first, false);
+
+        // same size and, on a coarse clock, the same modification time
+        byte[] rewritten = CONTENT.clone();
+        rewritten[0] = 'T';
+        Files.write(first, rewritten);
+        Files.setLastModifiedTime(first, modified);
+        refresh(cache, first, false);
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.getHits());
+        assertArrayEquals(rewritten, decompress(directory.resolve("first.huf")));
+
+        refresh(cache, first, false);
+        assertEquals(1, cache.getHits());
+    }
+}
@@ -0,0 +1,42 @@
+package pkj;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests requests whose payload arrives over several reads, so its buffer grows while it is read
+ */
+class CompressionServerTest
+{
+    @Test
+    void largePayloadsRoundTrip() throws IOException
+    {
+        Random random = new Random(42);
+        try(CompressionServer server = new CompressionServer(0))
+        {
+            server.setEventLoops(1);
+            server.setMaxPayloadLength(1 << 20);
+            server.start();
+            try(CompressionClient client = new CompressionClient(server.getLocalAddress()))
+            {
+                for(int length : new int[]{0, 100, 70000, 1 << 20})
+                {
+                    byte[] data = new byte[length];
+                    for(int i = 0; i < length; ++i)
+                        data[i] = (byte)('a' + random.nextInt(8));
+                    ByteBuffer compressed = ByteBuffer.allocate(length + 1024);
+                    client.compress(ByteBuffer.wrap(data), compressed);
+                    compressed.flip();
+                    ByteBuffer decompressed = ByteBuffer.allocate(length);
+                    assertEquals(length, client.decompress(compressed, decompressed));
+                    assertArrayEquals(data, decompressed.array());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package pkj;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that decompressing into a buffer is bounded by the buffer, not by what the container claims
+ */
+class HuffmanCodecTest
+{
+    @Test
+    void directDecompressionIsSizedByTheOutput()
+    {
+        byte[] data = "a short request, coded with the largest block size".getBytes(StandardCharsets.US_ASCII);
+        HuffmanCodec compressing = new HuffmanCodec(BlockFormat.MAX_BLOCK_SIZE);
+        ByteBuffer compressed = ByteBuffer.allocate(compressing.maxCompressedLength(data.length));
+        compressing.compress(ByteBuffer.wrap(data), compressed);
+        compressed.flip();
+
+        HuffmanCodec codec = new HuffmanCodec();
+        ByteBuffer dst = ByteBuffer.allocateDirect(data.length);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        assertEquals(data.length, codec.decompress(compressed, dst));
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        // the header claims 64MB blocks
+        assertTrue(allocated < 1 << 20, "allocated " + allocated + " bytes");
+
+        byte[] decompressed = new byte[data.length];
+        dst.flip().get(decompressed);
+        assertEquals(new String(data, StandardCharsets.US_ASCII), new String(decompressed, StandardCharsets.US_ASCII));
+    }
+}
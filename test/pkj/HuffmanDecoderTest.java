@@ -0,0 +1,212 @@
+package pkj;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that corrupt code length tables are rejected with the exceptions the block decoder reports
+ * as a corrupted block, rather than indexing past the decoding tables
+ */
+class HuffmanDecoderTest
+{
+    /**
+     * @return three symbols of length 1, which no prefix code has
+     */
+    private static int[] overSubscribed()
+    {
+        int[] lengths = new int[Compressor.ALPHABET_SIZE];
+        lengths['a'] = 1;
+        lengths['b'] = 1;
+        lengths['c'] = 1;
+        return lengths;
+    }
+
+    /**
+     * @return the table as CanonicalCode.writeLengths writes it
+     */
+    private static byte[] table(int[] lengths) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CanonicalCode.writeLengths(lengths, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    @Test
+    void initRejectsOverSubscribedLengths()
+    {
+        assertThrows(IllegalStateException.class, () -> new HuffmanDecoder().init(overSubscribed()));
+    }
+
+    @Test
+    void initRejectsTooLongLengths()
+    {
+        int[] lengths = new int[Compressor.ALPHABET_SIZE];
+        lengths[0] = CanonicalCode.MAX_LENGTH + 1;
+        assertThrows(IllegalStateException.class, () -> new HuffmanDecoder().init(lengths));
+    }
+
+    @Test
+    void readLengthsRejectsOverSubscribedTable() throws IOException
+    {
+        ByteBuffer in = ByteBuffer.wrap(table(overSubscribed()));
+        assertThrows(IllegalArgumentException.class,
+                () -> CanonicalCode.readLengths(in, new int[Compressor.ALPHABET_SIZE]));
+    }
+
+    @Test
+    void readLengthsRejectsLengthsAboveTheirMaximum() throws IOException
+    {
+        int[] lengths = new int[Compressor.ALPHABET_SIZE];
+        lengths['a'] = 1;
+        lengths['b'] = 2;
+        byte[] table = table(lengths);
+        // the table starts with its longest length; claim 1 while a nibble still holds 2
+        table[0] = 1;
+        assertThrows(IllegalArgumentException.class,
+                () -> CanonicalCode.readLengths(ByteBuffer.wrap(table), new int[Compressor.ALPHABET_SIZE]));
+    }
+
+    @Test
+    void blockWithOverSubscribedTableIsCorrupted() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] payload = table(overSubscribed());
+        out.writeByte(BlockFormat.BLOCK_HUFFMAN);
+        CanonicalCode.writeVarInt(out, 16);
+        CanonicalCode.writeVarInt(out, payload.length + 4);
+        out.write(payload);
+        out.writeInt(0);
+        ByteBuffer block = ByteBuffer.wrap(bytes.toByteArray());
+        assertThrows(IllegalArgumentException.class, () -> new BlockDecoder(null).decode(block, new byte[16], 0));
+    }
+
+    @Test
+    void validTableStillReads() throws IOException
+    {
+        int[] lengths = new int[Compressor.ALPHABET_SIZE];
+        lengths['a'] = 1;
+        lengths['b'] = 2;
+        lengths['c'] = 3;
+        lengths['d'] = 3;
+        int[] read = new int[Compressor.ALPHABET_SIZE];
+        CanonicalCode.readLengths(ByteBuffer.wrap(table(lengths)), read);
+        assertArrayEquals(lengths, read);
+        new HuffmanDecoder().init(read);
+    }
+
+    @Test
+    void readLengthsRejectsOverflowingGap()
+    {
+        // maxLength 8, one run whose gap varint is 0x7FFFFFFF + 1 wrapped negative, size 1
+        byte[] table = {8, 1, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07, 1, 1};
+        assertThrows(IllegalArgumentException.class,
+                () -> CanonicalCode.readLengths(ByteBuffer.wrap(table), new int[Compressor.ALPHABET_SIZE]));
+        byte[] negative = {8, 1, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x0F, 1, 1};
+        assertThrows(IllegalArgumentException.class,
+                () -> CanonicalCode.readLengths(ByteBuffer.wrap(negative), new int[Compressor.ALPHABET_SIZE]));
+    }
+
+    @Test
+    void readVarIntRejectsMoreThanFiveBytes()
+    {
+        byte[] varInt = {(byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, 0};
+        assertThrows(IllegalArgumentException.class, () -> CanonicalCode.readVarInt(ByteBuffer.wrap(varInt)));
+        assertEquals(Integer.MAX_VALUE, CanonicalCode.readVarInt(
+                ByteBuffer.wrap(new byte[]{(byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07})));
+    }
+
+    @Test
+    void truncatedCodesAreCorrupted() throws IOException
+    {
+        int[] lengths = new int[Compressor.ALPHABET_SIZE];
+        lengths['a'] = 1;
+        lengths['b'] = 1;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] table = table(lengths);
+        out.writeByte(BlockFormat.BLOCK_HUFFMAN);
+        // 16 codes of 1 bit but a single byte of them
+        CanonicalCode.writeVarInt(out, 16);
+        CanonicalCode.writeVarInt(out, table.length + 1);
+        out.write(table);
+        out.writeByte(0);
+        ByteBuffer block = ByteBuffer.wrap(bytes.toByteArray());
+        assertThrows(IllegalArgumentException.class, () -> new BlockDecoder(null).decode(block, new byte[16], 0));
+    }
+
+    @Test
+    void corruptedStreamsOnlyFailWithIOException() throws IOException
+    {
+        byte[] data = new byte[3000];
+        Random random = new Random(7);
+        for(int i = 0; i < data.length; ++i)
+            data[i] = (byte)('a' + (int)Math.abs(random.nextGaussian() * 5));
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try(OutputStream out = new HuffmanOutputStream(compressed, 1024))
+        {
+            out.write(data);
+        }
+        byte[] valid = compressed.toByteArray();
+        for(int i = 0; i < valid.length; ++i)
+        {
+            byte[] corrupted = valid.clone();
+            corrupted[i] ^= (byte)(1 << random.nextInt(8));
+            try(InputStream in = new HuffmanInputStream(new ByteArrayInputStream(corrupted)))
+            {
+                in.readAllBytes();
+            }
+            catch(IOException e)
+            {
+                // expected for most positions, the others decode to other bytes
+            }
+        }
+    }
+
+    /**
+     * @return a stream of 1KB blocks with the given header name whose first block claims the given payload length
+     */
+    private static byte[] oversized(int nameLength, int payloadLength) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(BlockFormat.MAGIC);
+        out.writeByte(BlockFormat.VERSION);
+        CanonicalCode.writeVarInt(out, nameLength);
+        out.writeByte(0);
+        out.writeByte(0);
+        CanonicalCode.writeVarInt(out, 1024);
+        out.writeByte(BlockFormat.BLOCK_STORED);
+        CanonicalCode.writeVarInt(out, 16);
+        CanonicalCode.writeVarInt(out, payloadLength);
+        out.write(new byte[16]);
+        out.writeByte(BlockFormat.BLOCK_END);
+        out.writeInt(0);
+        out.writeLong(0);
+        return bytes.toByteArray();
+    }
+
+    @Test
+    void oversizedLengthsAreRejectedBeforeBuffering() throws IOException
+    {
+        assertEquals(16, new HuffmanInputStream(new ByteArrayInputStream(oversized(1, 16))).readAllBytes().length);
+        for(byte[] corrupted : new byte[][]{oversized(Integer.MAX_VALUE, 16), oversized(1, Integer.MAX_VALUE)})
+        {
+            IOException e = assertThrows(IOException.class,
+                    () -> new HuffmanInputStream(new ByteArrayInputStream(corrupted)).readAllBytes());
+            assertTrue(e.getMessage().startsWith("Corrupted"), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package pkj;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests that compressed data is only decoded with the dictionary it was compressed with
+ */
+class HuffmanDictionaryTest
+{
+    @TempDir
+    Path directory;
+
+    private static final byte[] DATA = "GET /index.html HTTP/1.1\r\nHost: example.com\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private static HuffmanDictionary text(int id)
+    {
+        return HuffmanDictionary.train(id, List.of(DATA));
+    }
+
+    private static HuffmanDictionary digits(int id)
+    {
+        return HuffmanDictionary.train(id, List.of("0123456789 0000 1111 2222".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static byte[] compress(HuffmanDictionary dictionary) throws IOException
+    {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try(OutputStream out = new HuffmanOutputStream(compressed, 1 << 16, dictionary))
+        {
+            out.write(DATA);
+        }
+        return compressed.toByteArray();
+    }
+
+    @Test
+    void fingerprintDependsOnTheTableOnly() throws IOException
+    {
+        assertEquals(text(1).getFingerprint(), text(2).getFingerprint());
+        assertNotEquals(text(1).getFingerprint(), digits(1).getFingerprint());
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        text(1).write(stored);
+        assertEquals(text(1).getFingerprint(),
+                HuffmanDictionary.read(new ByteArrayInputStream(stored.toByteArray())).getFingerprint());
+    }
+
+    @Test
+    void decodesWithTheSameDictionary() throws IOException
+    {
+        DictionaryCache cache = new DictionaryCache(4);
+        cache.put(text(7));
+        try(InputStream in = new HuffmanInputStream(new ByteArrayInputStream(compress(text(7))), cache))
+        {
+            assertArrayEquals(DATA, in.readAllBytes());
+        }
+    }
+
+    @Test
+    void rejectsAnotherDictionaryWithTheSameId() throws IOException
+    {
+        DictionaryCache cache = new DictionaryCache(4);
+        cache.put(digits(7));
+        byte[] compressed = compress(text(7));
+        assertThrows(IOException.class, () -> {
+            try(InputStream in = new HuffmanInputStream(new ByteArrayInputStream(compressed), cache))
+            {
+                in.readAllBytes();
+            }
+        });
+    }
+
+    @Test
+    void cacheReloadsAReplacedDictionary()
+    {
+        HuffmanDictionary[] stored = {digits(7)};
+        DictionaryCache cache = new DictionaryCache(4, id -> stored[0]);
+        assertSame(stored[0], cache.get(7));
+        stored[0] = text(7);
+        assertSame(stored[0], cache.get(7, text(7).getFingerprint()));
+        assertThrows(IllegalArgumentException.class, () -> cache.get(7, digits(7).getFingerprint()));
+    }
+
+    @Test
+    void unreadableStoredDictionaryFailsWithIOException() throws IOException
+    {
+        Files.write(directory.resolve("7.dict"), new byte[]{1, 2, 3});
+        DictionaryCache cache = DictionaryCache.fromDirectory(directory, 4);
+        byte[] compressed = compress(text(7));
+        assertThrows(IOException.class, () -> {
+            try(InputStream in = new HuffmanInputStream(new ByteArrayInputStream(compressed), cache))
+            {
+                in.readAllBytes();
+            }
+        });
+    }
+}
@@ -0,0 +1,245 @@
+package pkj;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests that every kind of block decodes to the bytes it was coded from, and that the codec picks
+ * the kind of block the data calls for
+ */
+class RoundTripTest
+{
+    @TempDir
+    Path directory;
+
+    private final Random random = new Random(11);
+
+    /**
+     * @return length bytes, each one of the first symbols letters with geometric odds
+     */
+    private byte[] skewed(int length, int symbols)
+    {
+        byte[] data = new byte[length];
+        for(int i = 0; i < length; ++i)
+        {
+            int symbol = 0;
+            while(symbol < symbols - 1 && random.nextBoolean())
+                ++symbol;
+            data[i] = (byte)('a' + symbol);
+        }
+        return data;
+    }
+
+    /**
+     * Compresses data through buffers and streams, checks both decode to data
+     * @return the container written to the buffer
+     */
+    private static byte[] roundTrip(HuffmanCodec codec, byte[] data) throws IOException
+    {
+        ByteBuffer compressed = ByteBuffer.allocate(codec.maxCompressedLength(data.length));
+        codec.compress(ByteBuffer.wrap(data), compressed);
+        compressed.flip();
+        byte[] container = new byte[compressed.remaining()];
+        compressed.get(container);
+        ByteBuffer decompressed = ByteBuffer.allocate(data.length);
+        assertEquals(data.length, codec.decompress(ByteBuffer.wrap(container), decompressed));
+        assertArrayEquals(data, decompressed.array());
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        codec.compress(new ByteArrayInputStream(data), streamed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.decompress(new ByteArrayInputStream(streamed.toByteArray()), out);
+        assertArrayEquals(data, out.toByteArray());
+        return container;
+    }
+
+    /**
+     * @return the types of the blocks of a container, decoding them on the way
+     */
+    private static Set<Integer> blockTypes(byte[] container) throws IOException
+    {
+        BlockReader reader = new BlockReader(ByteBuffer.wrap(container));
+        reader.readHeader();
+        BlockDecoder decoder = new BlockDecoder(null);
+        reader.configure(decoder, null);
+        byte[] output = new byte[reader.blockSize()];
+        Set<Integer> types = new TreeSet<>();
+        for(ByteBuffer block = reader.nextBlock(); block != null; block = reader.nextBlock())
+        {
+            types.add(block.get(block.position()) & 0xFF);
+            decoder.decode(block, output, 0);
+        }
+        return types;
+    }
+
+    @Test
+    void lz77MatchesAtTheLongestLengthAndDistance() throws IOException
+    {
+        // a copy of 32KB of random bytes is only found as matches of 258 bytes, 32768 bytes back
+        byte[] data = new byte[3 * MatchCoder.WINDOW];
+        byte[] window = new byte[MatchCoder.WINDOW];
+        random.nextBytes(window);
+        for(int i = 0; i < 3; ++i)
+            System.arraycopy(window, 0, data, i * MatchCoder.WINDOW, MatchCoder.WINDOW);
+        HuffmanCodec codec = new HuffmanCodec(1 << 17);
+        codec.setPreTransform(PreTransform.LZ77);
+        byte[] container = roundTrip(codec, data);
+        assertEquals(Set.of(BlockFormat.BLOCK_MATCHES), blockTypes(container));
+        assertTrue(container.length < MatchCoder.WINDOW + 2048, "compressed to " + container.length);
+    }
+
+    @Test
+    void matchTokensAtTheirLimitsDecode() throws IOException
+    {
+        byte[] data = new byte[MatchCoder.WINDOW + MatchCoder.MAX_MATCH + MatchCoder.MIN_MATCH];
+        random.nextBytes(data);
+        int[] tokens = new int[MatchCoder.WINDOW + 2];
+        int count = 0;
+        for(int i = 0; i < MatchCoder.WINDOW; ++i)
+            tokens[count++] = data[i] & 0xFF;
+        tokens[count++] = MatchCoder.match(MatchCoder.MAX_MATCH, MatchCoder.WINDOW);
+        System.arraycopy(data, 0, data, MatchCoder.WINDOW, MatchCoder.MAX_MATCH);
+        tokens[count++] = MatchCoder.match(MatchCoder.MIN_MATCH, 1);
+        Arrays.fill(data, data.length - MatchCoder.MIN_MATCH, data.length, data[data.length - MatchCoder.MIN_MATCH - 1]);
+
+        MatchCoder coder = new MatchCoder();
+        coder.build(tokens, count, CanonicalCode.MAX_LENGTH);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        coder.write(tokens, count, new DataOutputStream(payload), new BitWriter(payload));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(BlockFormat.BLOCK_MATCHES);
+        CanonicalCode.writeVarInt(out, data.length);
+        CanonicalCode.writeVarInt(out, payload.size());
+        payload.writeTo(out);
+
+        byte[] output = new byte[data.length];
+        BlockDecoder decoder = new BlockDecoder(null);
+        // a matches block is only valid in a file that records a stage
+        assertThrows(IllegalArgumentException.class, () -> decoder.decode(ByteBuffer.wrap(bytes.toByteArray()), output, 0));
+        decoder.setPreTransform(PreTransform.LZ77);
+        assertEquals(data.length, decoder.decode(ByteBuffer.wrap(bytes.toByteArray()), output, 0));
+        assertArrayEquals(data, output);
+    }
+
+    @Test
+    void runLengthMatches() throws IOException
+    {
+        // runs shorter and longer than the longest match
+        byte[] data = new byte[1 << 16];
+        for(int i = 0, run = 1; i < data.length; run = run * 7 % 1000 + 1)
+        {
+            int end = Math.min(data.length, i + run);
+            Arrays.fill(data, i, end, (byte)('a' + random.nextInt(26)));
+            i = end;
+        }
+        HuffmanCodec codec = new HuffmanCodec(1 << 14);
+        codec.setPreTransform(PreTransform.RLE);
+        assertEquals(Set.of(BlockFormat.BLOCK_MATCHES), blockTypes(roundTrip(codec, data)));
+    }
+
+    @Test
+    void adaptiveBlocks() throws IOException
+    {
+        HuffmanCodec codec = new HuffmanCodec(1 << 12);
+        codec.setAdaptive(true);
+        byte[] data = skewed(10000, 20);
+        assertEquals(Set.of(BlockFormat.BLOCK_ADAPTIVE), blockTypes(roundTrip(codec, data)));
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try(HuffmanOutputStream out = new HuffmanOutputStream(compressed, 1 << 12))
+        {
+            out.setAdaptive(true);
+            out.write(data);
+        }
+        assertEquals(Set.of(BlockFormat.BLOCK_ADAPTIVE), blockTypes(compressed.toByteArray()));
+        try(HuffmanInputStream in = new HuffmanInputStream(new ByteArrayInputStream(compressed.toByteArray())))
+        {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+    }
+
+    @Test
+    void interleavedBlocks() throws IOException
+    {
+        HuffmanCodec codec = new HuffmanCodec(BlockFormat.MIN_BLOCK_SIZE);
+        codec.setInterleaved(true);
+        // block lengths that don't divide evenly between the sub-streams, down to a last block of 3 bytes
+        for(int length : new int[]{BlockFormat.MIN_BLOCK_SIZE * 3 + 3, BlockFormat.MIN_BLOCK_SIZE * 2 + 1})
+            assertTrue(blockTypes(roundTrip(codec, skewed(length, 12))).contains(BlockFormat.BLOCK_HUFFMAN_STREAMS));
+    }
+
+    @Test
+    void contextTables() throws IOException
+    {
+        // each byte mostly follows from the one before it, while every byte value is about as frequent
+        byte[] data = new byte[1 << 16];
+        for(int i = 1; i < data.length; ++i)
+            data[i] = (byte)(random.nextInt(8) == 0 ? random.nextInt(64) : (data[i - 1] * 5 + 1) & 63);
+        HuffmanCodec codec = new HuffmanCodec(1 << 16);
+        codec.setContextModeling(true);
+        assertEquals(Set.of(BlockFormat.BLOCK_CONTEXT), blockTypes(roundTrip(codec, data)));
+    }
+
+    @Test
+    void randomBytesAreStored() throws IOException
+    {
+        byte[] data = new byte[10000];
+        random.nextBytes(data);
+        for(PreTransform preTransform : PreTransform.values())
+        {
+            HuffmanCodec codec = new HuffmanCodec(1 << 12);
+            codec.setPreTransform(preTransform);
+            codec.setContextModeling(true);
+            byte[] container = roundTrip(codec, data);
+            assertEquals(Set.of(BlockFormat.BLOCK_STORED), blockTypes(container));
+            assertTrue(container.length <= codec.maxCompressedLength(data.length));
+        }
+    }
+
+    @Test
+    void rangesAcrossBlocks() throws IOException
+    {
+        // words of 7 letters stepping through the alphabet, a letter now and then off by one, so blocks keep matches
+        byte[] data = new byte[10 * BlockFormat.MIN_BLOCK_SIZE + 100];
+        for(int i = 0; i < data.length; ++i)
+            data[i] = (byte)(i % 8 == 7 ? ' ' : 'a' + (i / 8 * 7 + i % 8) % 26 + (random.nextInt(16) == 0 ? 1 : 0));
+        Path original = Files.write(directory.resolve("original"), data);
+        Path compressed = directory.resolve("original.huf");
+        Compressor compressor = new Compressor(original);
+        compressor.setBlockSize(BlockFormat.MIN_BLOCK_SIZE);
+        compressor.setPreTransform(PreTransform.LZ77);
+        compressor.compress(compressed.toString());
+        assertEquals(Set.of(BlockFormat.BLOCK_MATCHES), blockTypes(Files.readAllBytes(compressed)));
+
+        Decompressor decompressor = new Decompressor(compressed);
+        decompressor.setParallelism(2);
+        int block = BlockFormat.MIN_BLOCK_SIZE;
+        long[][] ranges = {{0, 0}, {0, data.length}, {block - 1, block + 1}, {block, 2 * block},
+                {500, 5 * block + 7}, {3 * block + 1, 3 * block + 2}, {data.length - 10, data.length + 1000}};
+        for(long[] range : ranges)
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            decompressor.decompress(range[0], range[1], out);
+            int end = (int)Math.min(range[1], data.length);
+            assertArrayEquals(Arrays.copyOfRange(data, (int)range[0], end), out.toByteArray(),
+                    range[0] + ".." + range[1]);
+        }
+    }
+}